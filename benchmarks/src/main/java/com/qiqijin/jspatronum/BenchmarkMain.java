@@ -0,0 +1,26 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ *
+ * 基准测试入口，参数与 JMH 相同，未指定结果格式时把结果导出为 jmh-result.json，便于不同版本之间对比
+ * @author
+ */
+public class BenchmarkMain {
+
+    public static void main(String[] args) throws Exception {
+        List<String> argList = new ArrayList<String>();
+        List<String> given = Arrays.asList(args);
+        if (!given.contains("-rf")) {
+            argList.addAll(Arrays.asList("-rf", "json"));
+            if (!given.contains("-rff")) {
+                argList.addAll(Arrays.asList("-rff", "jmh-result.json"));
+            }
+        }
+        argList.addAll(given);
+        org.openjdk.jmh.Main.main(argList.toArray(new String[0]));
+    }
+}
@@ -0,0 +1,68 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * Compressor 的耗时，输入从 100KB 到 50MB，耗时应与输入大小成正比
+ * @author
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class CompressorBenchmark {
+    @Param({"100000", "1000000", "10000000", "50000000"})
+    private int size;
+
+    private String source;
+
+    /**
+     *
+     * 打印后的代码片段，包含注释、字符串、正则和除号
+     */
+    private static String block(int i) {
+        return "function f" + i + "(a, b) {\n"
+            + "  // comment " + i + "\n"
+            + "  var s = \"str  " + i + "\", r = /x+" + i + "/g;\n"
+            + "  if (a > b) {\n"
+            + "    return a / b + s.length;\n"
+            + "  }\n"
+            + "  for (var k = 0; k < 10; k++) {\n"
+            + "    b += k;\n"
+            + "  }\n"
+            + "  return r.test(s) ? a : b;\n"
+            + "}\n";
+    }
+
+    @Setup
+    public void setup() {
+        StringBuilder builder = new StringBuilder(this.size + 256);
+        for (int i = 0; builder.length() < this.size; i++) {
+            builder.append(block(i));
+        }
+        this.source = builder.toString();
+    }
+
+    @Benchmark
+    public void compress() throws IOException {
+        new Compressor().compress(new StringReader(this.source), Writer.nullWriter());
+    }
+}
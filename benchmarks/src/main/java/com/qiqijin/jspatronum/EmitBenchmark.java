@@ -0,0 +1,70 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.Writer;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.ast.AstRoot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 输出阶段的耗时：打印、StringHack 和压缩，输入是完整混淆后的语法树
+ * printer 和 printerMinified 是 CodePrinter 一次完成的对应步骤：toSource + stringHack，以及再加上 compress
+ * @author
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class EmitBenchmark {
+    private AstRoot astRoot;
+    private String printed;
+    private String escaped;
+
+    @Setup(Level.Trial)
+    public void prepare(JsInput input) {
+        this.astRoot = Pipeline.parse(input.getSource());
+        Pipeline.run(this.astRoot, null, null);
+        this.printed = this.astRoot.toSource();
+        this.escaped = new StringHack().escapedCharacters(this.printed);
+    }
+
+    @Benchmark
+    public String toSource() {
+        return this.astRoot.toSource();
+    }
+
+    @Benchmark
+    public String stringHack() {
+        return new StringHack().escapedCharacters(this.printed);
+    }
+
+    @Benchmark
+    public void compress() throws IOException {
+        new Compressor().compress(new StringReader(this.escaped), Writer.nullWriter());
+    }
+
+    @Benchmark
+    public void printer() throws IOException {
+        new CodePrinter(Writer.nullWriter(), false, true).print(this.astRoot);
+    }
+
+    @Benchmark
+    public void printerMinified() throws IOException {
+        new CodePrinter(Writer.nullWriter(), true, true).print(this.astRoot);
+    }
+}
@@ -0,0 +1,56 @@
+package com.qiqijin.jspatronum;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.ast.AstRoot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 第一个刷新点的 freshAST：在 StringToArray 之后的树上重建作用域或打印后重新解析
+ * @author
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class FreshAstBenchmark {
+    @Param({"rebuild", "reparse"})
+    private String mode;
+
+    private String prefixSource;
+    private AstRoot astRoot;
+
+    @Setup(Level.Trial)
+    public void prepare(JsInput input) {
+        this.prefixSource = Pipeline.prefix(input.getSource(), "LiteralToVar");
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() {
+        this.astRoot = Pipeline.parse(this.prefixSource);
+        Pipeline.run(this.astRoot, "LiteralToVar", "SetScope");
+    }
+
+    @Benchmark
+    public AstRoot freshAST() {
+        if (this.mode.equals("reparse")) {
+            return Pipeline.parse(CodePrinter.print(this.astRoot, false, false));
+        }
+        new ScopeRebuilder().rebuild(this.astRoot);
+        return this.astRoot;
+    }
+}
@@ -0,0 +1,206 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ *
+ * 生成基准测试用的 JavaScript 代码，相同参数生成的代码相同
+ * literalDensity: 表达式的叶子是字面量而不是标识符的概率
+ * identifierDensity: 每个函数声明的局部变量数和全局变量数，0 到 1 对应 1 到 16 个
+ * functionDensity: 一条语句是函数声明的概率
+ * @author
+ */
+public class JsGenerator {
+    private static final String[] words = {
+        "name", "value", "index", "length", "result", "status", "message", "count",
+        "items", "total", "error", "config", "target", "source", "handler", "options"
+    };
+    private static final String[] properties = {
+        "push", "join", "length", "slice", "indexOf", "concat", "toString", "charAt"
+    };
+
+    private Random random;
+    private double literalDensity;
+    private double identifierDensity;
+    private double functionDensity;
+    private StringBuilder builder;
+    private int functionCount;
+    private List<String> functionNames = new ArrayList<String>();
+
+    /**
+     *
+     * @param seed 随机种子
+     * @param literalDensity 字面量密度
+     * @param identifierDensity 标识符密度
+     * @param functionDensity 函数密度
+     */
+    public JsGenerator(long seed, double literalDensity, double identifierDensity, double functionDensity) {
+        this.random = new Random(seed);
+        this.literalDensity = literalDensity;
+        this.identifierDensity = identifierDensity;
+        this.functionDensity = functionDensity;
+    }
+
+    /**
+     *
+     * 生成不小于 size 个字符的代码
+     * @param size
+     * @return
+     */
+    public String generate(int size) {
+        this.builder = new StringBuilder(size + 1024);
+        this.functionCount = 0;
+        this.functionNames.clear();
+        List<String> globals = this.declareNames("g", this.nameCount());
+        for (String global : globals) {
+            this.builder.append("var ").append(global).append(" = ").append(this.literal()).append(";\n");
+        }
+        // 循环只出现在函数里，顶层只有声明和调用
+        while (this.builder.length() < size) {
+            if (this.random.nextDouble() < this.functionDensity || this.functionNames.isEmpty()) {
+                this.function(globals, 0);
+            } else if (this.random.nextBoolean()) {
+                String global = globals.get(this.random.nextInt(globals.size()));
+                this.builder.append(global).append(" = ").append(this.expression(globals, 2)).append(";\n");
+            } else {
+                this.builder.append("console.log(").append(this.call(globals)).append(");\n");
+            }
+        }
+        return this.builder.toString();
+    }
+
+    private int nameCount() {
+        return 1 + (int) Math.round(this.identifierDensity * 15);
+    }
+
+    private List<String> declareNames(String prefix, int count) {
+        List<String> names = new ArrayList<String>();
+        for (int i = 0; i < count; i++) {
+            names.add(prefix + words[i % words.length] + (i / words.length == 0 ? "" : String.valueOf(i / words.length)));
+        }
+        return names;
+    }
+
+    private void indent(int depth) {
+        for (int i = 0; i < depth; i++) {
+            this.builder.append("  ");
+        }
+    }
+
+    private void function(List<String> outer, int depth) {
+        String name = "fn" + this.functionCount++;
+        List<String> locals = new ArrayList<String>(outer);
+        List<String> params = this.declareNames("p" + depth, 1 + this.random.nextInt(3));
+        List<String> vars = this.declareNames("v" + depth, this.nameCount());
+        locals.addAll(params);
+        locals.addAll(vars);
+
+        this.indent(depth);
+        this.builder.append("function ").append(name).append("(").append(String.join(", ", params)).append(") {\n");
+        for (String var : vars) {
+            this.indent(depth + 1);
+            this.builder.append("var ").append(var).append(" = ").append(this.expression(locals, 1)).append(";\n");
+        }
+        int statements = 2 + this.random.nextInt(5);
+        for (int i = 0; i < statements; i++) {
+            if (depth < 2 && this.random.nextDouble() < this.functionDensity) {
+                this.function(locals, depth + 1);
+            } else {
+                this.statement(locals, vars, depth + 1);
+            }
+        }
+        this.indent(depth + 1);
+        this.builder.append("return ").append(this.expression(locals, 2)).append(";\n");
+        this.indent(depth);
+        this.builder.append("}\n");
+        if (depth == 0) {
+            this.functionNames.add(name);
+        }
+    }
+
+    private void statement(List<String> locals, List<String> vars, int depth) {
+        String var = vars.get(this.random.nextInt(vars.size()));
+        this.indent(depth);
+        switch (this.random.nextInt(5)) {
+        case 0:
+            this.builder.append("if (").append(this.expression(locals, 1)).append(" > ").append(this.number())
+                .append(") {\n");
+            this.indent(depth + 1);
+            this.builder.append(var).append(" = ").append(this.expression(locals, 2)).append(";\n");
+            this.indent(depth);
+            this.builder.append("} else {\n");
+            this.indent(depth + 1);
+            this.builder.append(var).append(" = ").append(this.expression(locals, 2)).append(";\n");
+            this.indent(depth);
+            this.builder.append("}\n");
+            break;
+        case 1:
+            this.builder.append("for (var i").append(depth).append(" = 0; i").append(depth).append(" < ")
+                .append(this.number()).append("; i").append(depth).append("++) {\n");
+            this.indent(depth + 1);
+            this.builder.append(var).append(" = ").append(var).append(" + ").append(this.expression(locals, 1)).append(";\n");
+            this.indent(depth);
+            this.builder.append("}\n");
+            break;
+        case 2:
+            this.builder.append("while (").append(var).append(" > ").append(this.number()).append(") {\n");
+            this.indent(depth + 1);
+            this.builder.append(var).append(" = ").append(var).append(" / 2;\n");
+            this.indent(depth);
+            this.builder.append("}\n");
+            break;
+        case 3:
+            this.builder.append(var).append(" = [").append(this.expression(locals, 1)).append(", ")
+                .append(this.expression(locals, 1)).append("].").append(properties[this.random.nextInt(properties.length)])
+                .append(";\n");
+            break;
+        default:
+            this.builder.append(var).append(" = ").append(this.expression(locals, 3)).append(";\n");
+            break;
+        }
+    }
+
+    private String expression(List<String> names, int depth) {
+        if (depth <= 0 || this.random.nextInt(3) == 0) {
+            return this.leaf(names);
+        }
+        switch (this.random.nextInt(4)) {
+        case 0:
+            return this.expression(names, depth - 1) + " + " + this.expression(names, depth - 1);
+        case 1:
+            return names.get(this.random.nextInt(names.size())) + "." + properties[this.random.nextInt(properties.length)];
+        case 2:
+            return "(" + this.expression(names, depth - 1) + " ? " + this.leaf(names) + " : " + this.leaf(names) + ")";
+        default:
+            return this.functionNames.isEmpty() ? this.leaf(names) : this.call(names);
+        }
+    }
+
+    private String call(List<String> names) {
+        if (this.functionNames.isEmpty()) {
+            return this.leaf(names);
+        }
+        String name = this.functionNames.get(this.random.nextInt(this.functionNames.size()));
+        return name + "(" + this.leaf(names) + ", " + this.leaf(names) + ")";
+    }
+
+    private String leaf(List<String> names) {
+        if (this.random.nextDouble() < this.literalDensity) {
+            return this.literal();
+        }
+        return names.get(this.random.nextInt(names.size()));
+    }
+
+    private String literal() {
+        if (this.random.nextInt(3) == 0) {
+            return this.number();
+        }
+        return "\"" + words[this.random.nextInt(words.length)] + " " + words[this.random.nextInt(words.length)] + "\"";
+    }
+
+    private String number() {
+        return String.valueOf(this.random.nextInt(1000));
+    }
+}
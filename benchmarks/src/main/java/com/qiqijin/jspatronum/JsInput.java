@@ -0,0 +1,42 @@
+package com.qiqijin.jspatronum;
+
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *
+ * 基准测试的输入代码，按大小和各类节点的密度生成
+ * @author
+ */
+@State(Scope.Benchmark)
+public class JsInput {
+    @Param({"10000", "100000", "1000000"})
+    private int size;
+
+    @Param({"0.3"})
+    private double literalDensity;
+
+    @Param({"0.5"})
+    private double identifierDensity;
+
+    @Param({"0.2"})
+    private double functionDensity;
+
+    private String source;
+
+    @Setup(Level.Trial)
+    public void generate() {
+        this.source = new JsGenerator(42, this.literalDensity, this.identifierDensity, this.functionDensity)
+            .generate(this.size);
+    }
+
+    /**
+     * @return the source
+     */
+    public String getSource() {
+        return source;
+    }
+}
@@ -0,0 +1,120 @@
+package com.qiqijin.jspatronum;
+
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 在 Rhino 中比较不透明谓词策略对循环密集代码的运行开销，只执行 VisitorOpaquePredicates
+ * none: 原始代码；inline: 每个条件里计算谓词；hoisted: 在顶层函数里计算一次，内层函数复制到局部变量，条件只读取局部变量
+ * 谓词的形式是随机选的，开销差别很大（Math.abs 调用或可以常量折叠的算术），所以混淆 VARIANTS 份，每次调用全部
+ * @author
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OpaquePredicateBenchmark {
+    @Param({"none", "inline", "hoisted"})
+    private String strategy;
+
+    @Param({"-1", "9"})
+    private int optimizationLevel;
+
+    static final int VARIANTS = 8;
+
+    private Context context;
+    private Function[] runs = new Function[VARIANTS];
+    private ScriptableObject scope;
+
+    /**
+     *
+     * 外层 for、内层 while，循环体里有 if；被频繁调用的小函数里也有一个循环
+     * 和混淆结果一样包在立即执行函数里，hoisted 策略在其中计算一次谓词
+     */
+    static final String SOURCE = "!function() {\n"
+        + "function digits(x) {\n"
+        + "  var count = 0;\n"
+        + "  while (x > 0) {\n"
+        + "    x = (x / 10) | 0;\n"
+        + "    count++;\n"
+        + "  }\n"
+        + "  return count;\n"
+        + "}\n"
+        + "function run(n) {\n"
+        + "  var total = 0;\n"
+        + "  for (var i = 0; i < n; i++) {\n"
+        + "    var j = 0;\n"
+        + "    while (j < 100) {\n"
+        + "      if ((i + j) % 3 === 0) {\n"
+        + "        total += j;\n"
+        + "      }\n"
+        + "      j++;\n"
+        + "    }\n"
+        + "    total += digits(i);\n"
+        + "  }\n"
+        + "  return total;\n"
+        + "}\n"
+        + "this.run = run;\n"
+        + "}();\n";
+
+    static String instrument(String source, String strategy) {
+        AstRoot root = new Parser().parse(source, null, 1);
+        if (!strategy.equals("none")) {
+            root.visit(new VisitorOpaquePredicates(Collections.<AstNode>emptySet(), strategy.equals("hoisted")));
+        }
+        return root.toSource();
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() {
+        StringBuilder code = new StringBuilder();
+        for (int i = 0; i < VARIANTS; i++) {
+            code.append(instrument(SOURCE.replaceAll("\\brun\\b", "run" + i), this.strategy));
+        }
+        this.context = Context.enter();
+        this.context.setOptimizationLevel(this.optimizationLevel);
+        this.context.setLanguageVersion(Context.VERSION_ES6);
+        this.scope = this.context.initStandardObjects();
+        this.context.evaluateString(this.scope, code.toString(), this.strategy, 1, null);
+        for (int i = 0; i < VARIANTS; i++) {
+            this.runs[i] = (Function) ScriptableObject.getProperty(this.scope, "run" + i);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public double loop() {
+        double total = 0;
+        for (Function run : this.runs) {
+            total += Context.toNumber(run.call(this.context, this.scope, this.scope, new Object[] {Integer.valueOf(200)}));
+        }
+        return total;
+    }
+}
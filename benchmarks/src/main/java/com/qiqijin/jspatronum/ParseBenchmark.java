@@ -0,0 +1,30 @@
+package com.qiqijin.jspatronum;
+
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.ast.AstRoot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 解析输入代码的耗时
+ * @author
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class ParseBenchmark {
+
+    @Benchmark
+    public AstRoot parse(JsInput input) {
+        return Pipeline.parse(input.getSource());
+    }
+}
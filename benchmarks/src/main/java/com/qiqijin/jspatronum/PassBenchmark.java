@@ -0,0 +1,85 @@
+package com.qiqijin.jspatronum;
+
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.ast.AstRoot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 单个 pass 的耗时。输入是执行完前面所有 pass 后的代码，每次调用前重新解析，解析不计入耗时
+ * threads 大于 0 时，可以分块的 pass 用 ChunkedTraversal 在这么多线程上执行（和 --parallel 相同）
+ * @author
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx2g"})
+public class PassBenchmark {
+    @Param({"ConstantFolding", "DisableConsole", "HostNameBind", "GlobalVar", "PropertyToElement", "LiteralToVar", "TopFunction",
+            "StringToArray", "SetScope", "LocalVar", "Constant", "OpaquePredicates", "ControlFlowFlattening"})
+    private String pass;
+
+    @Param({"0"})
+    private int threads;
+
+    private String prefixSource;
+    private AstRoot astRoot;
+    private Pass visitor;
+    private ForkJoinPool pool;
+
+    /**
+     * TopFunction 依赖同一棵树上 LiteralToVar 收集的参数，从 LiteralToVar 之前开始准备
+     */
+    private String inputPass() {
+        return this.pass.equals("TopFunction") ? "LiteralToVar" : this.pass;
+    }
+
+    @Setup(Level.Trial)
+    public void prepare(JsInput input) {
+        this.prefixSource = Pipeline.prefix(input.getSource(), this.inputPass());
+        if (this.threads > 0) {
+            this.pool = new ForkJoinPool(this.threads);
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        if (this.pool != null) {
+            this.pool.shutdown();
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void parse() {
+        this.astRoot = Pipeline.parse(this.prefixSource);
+        VisitorLiteralToVar visitorLiteralToVar = Pipeline.run(this.astRoot, this.inputPass(), this.pass);
+        this.visitor = Pipeline.createPass(this.pass, visitorLiteralToVar);
+    }
+
+    @Benchmark
+    public AstRoot visit() {
+        if (this.pool != null && this.visitor.isChunkable()
+            && new ChunkedTraversal(Collections.singletonList(this.visitor), this.astRoot).run(this.pool)) {
+            return this.astRoot;
+        }
+        this.astRoot.visit(this.visitor);
+        return this.astRoot;
+    }
+}
@@ -0,0 +1,115 @@
+package com.qiqijin.jspatronum;
+
+import java.util.List;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.ast.AstRoot;
+
+/**
+ *
+ * 按 Obfuscator 的顺序执行 pass，为单个 pass 的基准测试准备输入
+ * @author
+ */
+public class Pipeline {
+    /**
+     * 与 Obfuscator.Test() 相同的 pass 顺序
+     */
+    public static final List<String> passes = List.of(
+        "ConstantFolding", "DisableConsole", "HostNameBind", "GlobalVar", "PropertyToElement", "LiteralToVar", "TopFunction",
+        "StringToArray", "SetScope", "LocalVar", "Constant", "OpaquePredicates", "ControlFlowFlattening");
+
+    /**
+     * 执行完这些 pass 后 Obfuscator 会刷新语法树
+     */
+    private static final List<String> barriers = List.of("StringToArray", "OpaquePredicates");
+
+    /**
+     *
+     * 与 Obfuscator 相同的解析方式
+     * @param source
+     * @return
+     */
+    public static AstRoot parse(String source) {
+        return new Parser(CompilerEnvirons.ideEnvirons()).parse(source, null, 1);
+    }
+
+    /**
+     *
+     * 创建指定名字的 pass，TopFunction 需要同一棵树上执行过的 LiteralToVar
+     * @param name
+     * @param visitorLiteralToVar
+     * @return
+     */
+    public static Pass createPass(String name, VisitorLiteralToVar visitorLiteralToVar) {
+        switch (name) {
+        case "ConstantFolding":
+            return new VisitorConstantFolding();
+        case "DisableConsole":
+            return new VisitorDisableConsole();
+        case "HostNameBind":
+            return new VisitorHostNameBind("localhost");
+        case "GlobalVar":
+            return new VisitorGlobalVar();
+        case "PropertyToElement":
+            return new VisitorPropertyToElement();
+        case "LiteralToVar":
+            return new VisitorLiteralToVar();
+        case "TopFunction":
+            return new VisitorTopFunction(visitorLiteralToVar);
+        case "StringToArray":
+            return new VisitorStringToArray();
+        case "SetScope":
+            return new VisitorSetScope();
+        case "LocalVar":
+            return new VisitorLocalVar();
+        case "Constant":
+            return new VisitorConstant();
+        case "OpaquePredicates":
+            return new VisitorOpaquePredicates();
+        case "ControlFlowFlattening":
+            return new VisitorControlFlowFlattening();
+        default:
+            throw new IllegalArgumentException("unknown pass " + name);
+        }
+    }
+
+    /**
+     *
+     * 在 astRoot 上依次执行 from 到 to 之前的 pass，null 表示从头开始或执行到最后
+     * 中间遇到的刷新点用 ScopeRebuilder 刷新，最后一个 pass 之后不刷新
+     * @param astRoot
+     * @param from
+     * @param to
+     * @return 执行过的 LiteralToVar，没有时为 null
+     */
+    public static VisitorLiteralToVar run(AstRoot astRoot, String from, String to) {
+        int end = to == null ? passes.size() : passes.indexOf(to);
+        VisitorLiteralToVar visitorLiteralToVar = null;
+        for (int i = from == null ? 0 : passes.indexOf(from); i < end; i++) {
+            String name = passes.get(i);
+            Pass pass = createPass(name, visitorLiteralToVar);
+            if (pass instanceof VisitorLiteralToVar) {
+                visitorLiteralToVar = (VisitorLiteralToVar) pass;
+            }
+            astRoot.visit(pass);
+            if (barriers.contains(name) && i < end - 1) {
+                new ScopeRebuilder().rebuild(astRoot);
+            }
+        }
+        return visitorLiteralToVar;
+    }
+
+    /**
+     *
+     * 执行 to 之前的全部 pass 并打印，作为 to 的输入
+     * @param source
+     * @param to
+     * @return
+     */
+    public static String prefix(String source, String to) {
+        AstRoot astRoot = parse(source);
+        run(astRoot, null, to);
+        return CodePrinter.print(astRoot, false, false);
+    }
+}
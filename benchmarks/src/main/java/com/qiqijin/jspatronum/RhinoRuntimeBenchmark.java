@@ -0,0 +1,140 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.util.concurrent.TimeUnit;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.ScriptableObject;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ *
+ * 在 Rhino 中比较原始代码和混淆后代码的运行耗时，dictionary 为使用 --string-dictionary 混淆
+ * load: 执行整个脚本，混淆后包括按字符表解码每个不同的字符串，每个字符串只解码一次，耗时与下标数成正比
+ * hotLoop: 调用循环中使用字符串的函数，混淆后的引用处读取外层函数的参数，不再解码
+ * @author
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class RhinoRuntimeBenchmark {
+    @Param({"source", "obfuscated", "dictionary"})
+    private String mode;
+
+    @Param({"100", "10000"})
+    private int strings;
+
+    @Param({"-1", "9"})
+    private int optimizationLevel;
+
+    private Context context;
+    private Script script;
+    private Function run;
+    private ScriptableObject scope;
+
+    /**
+     *
+     * 顶层有 strings 个不同的字符串，run 在循环中比较和拼接字符串
+     */
+    static String source(int strings) {
+        StringBuilder builder = new StringBuilder("var messages = [\n");
+        for (int i = 0; i < strings; i++) {
+            builder.append("  \"message ").append(i).append(": request failed with status\",\n");
+        }
+        builder.append("];\n"
+                       + "function run(n) {\n"
+                       + "  var total = 0;\n"
+                       + "  for (var i = 0; i < n; i++) {\n"
+                       + "    var label = \"item-\" + (i % 10);\n"
+                       + "    if (label.indexOf(\"item\") === 0) {\n"
+                       + "      total += label.length;\n"
+                       + "    }\n"
+                       + "    total += \"abcdefghij\".charAt(i % 10) === \"a\" ? 1 : 0;\n"
+                       + "    total += messages[i % messages.length].length;\n"
+                       + "  }\n"
+                       + "  return total;\n"
+                       + "}\n");
+        return builder.toString();
+    }
+
+    static String obfuscate(String source, boolean dictionary) throws IOException {
+        Options options = new Options();
+        options.setCompress(Boolean.TRUE);
+        options.setStringDictionary(Boolean.valueOf(dictionary));
+        Obfuscator obfuscator = new Obfuscator(new StringReader(source), options, new ErrorReporter() {
+                public void warning(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                }
+
+                public void error(String message, String sourceName, int line, String lineSource, int lineOffset) {
+                    throw new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+                }
+
+                public EvaluatorException runtimeError(String message, String sourceName, int line,
+                                                       String lineSource, int lineOffset) {
+                    return new EvaluatorException(message, sourceName, line, lineSource, lineOffset);
+                }
+            });
+        obfuscator.obfuscate();
+        StringWriter out = new StringWriter();
+        obfuscator.compress(out);
+        return out.toString();
+    }
+
+    private ScriptableObject newScope() {
+        ScriptableObject scope = this.context.initStandardObjects();
+        // 混淆后的代码通过 window 访问全局对象
+        ScriptableObject.putProperty(scope, "window", scope);
+        return scope;
+    }
+
+    @Setup(Level.Trial)
+    public void prepare() throws IOException {
+        String code = source(this.strings);
+        if (!this.mode.equals("source")) {
+            code = obfuscate(code, this.mode.equals("dictionary"));
+        }
+        this.context = Context.enter();
+        this.context.setOptimizationLevel(this.optimizationLevel);
+        this.context.setLanguageVersion(Context.VERSION_ES6);
+        this.script = this.context.compileString(code, this.mode, 1, null);
+        this.scope = this.newScope();
+        this.script.exec(this.context, this.scope);
+        this.run = (Function) ScriptableObject.getProperty(this.scope, "run");
+    }
+
+    @TearDown(Level.Trial)
+    public void release() {
+        Context.exit();
+    }
+
+    @Benchmark
+    public Object load() {
+        return this.script.exec(this.context, this.newScope());
+    }
+
+    @Benchmark
+    public Object hotLoop() {
+        return this.run.call(this.context, this.scope, this.scope, new Object[] {Integer.valueOf(10000)});
+    }
+}
@@ -0,0 +1,112 @@
+package com.qiqijin.jspatronum;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ *
+ * 批量执行文件混淆任务
+ * 多线程时按文件大小从大到小提交，输出仍按输入顺序
+ * @author
+ */
+public class BatchRunner {
+    private int jobs;
+    private boolean virtualThreads;
+
+    /**
+     *
+     * @param jobs 并发执行的任务数，小于等于 1 时顺序执行
+     * @param virtualThreads 是否使用虚拟线程
+     */
+    public BatchRunner(int jobs, boolean virtualThreads) {
+        this.jobs = jobs;
+        this.virtualThreads = virtualThreads;
+    }
+
+    private ExecutorService createExecutor() {
+        if (this.virtualThreads) {
+            return Executors.newFixedThreadPool(this.jobs, Thread.ofVirtual().name("jspatronum-", 0).factory());
+        }
+        return Executors.newFixedThreadPool(this.jobs);
+    }
+
+    /**
+     *
+     * 输出一个任务的诊断信息和结果
+     * @return 任务是否失败
+     */
+    private boolean report(FileJob job, PrintStream out, PrintStream err) {
+        err.print(job.getDiagnostics());
+        Throwable failure = job.getFailure();
+        if (failure != null) {
+            err.println("[ERROR] in " + job.getInputFilename());
+            err.println("  " + failure);
+            return true;
+        }
+        if (job.getOutput() != null) {
+            // 已经按 --charset 编码，不再经过 PrintStream 的字符集
+            out.write(job.getOutput(), 0, job.getOutput().length);
+            out.flush();
+        }
+        return false;
+    }
+
+    /**
+     *
+     * 执行全部任务，单个文件失败不会中止其他文件
+     * @param fileJobs 按输入顺序排列的任务
+     * @param out 未指定输出文件时的结果输出
+     * @param err 诊断信息输出
+     * @return 失败的文件数
+     */
+    public int run(List<FileJob> fileJobs, PrintStream out, PrintStream err) {
+        int failed = 0;
+        if (this.jobs <= 1 || fileJobs.size() <= 1) {
+            for (FileJob job : fileJobs) {
+                if (this.report(job.call(), out, err)) {
+                    failed++;
+                }
+            }
+            return failed;
+        }
+
+        List<FileJob> schedule = new ArrayList<FileJob>(fileJobs);
+        schedule.sort(Comparator.comparingLong(FileJob::getInputSize).reversed());
+        Map<FileJob, Future<FileJob>> futures = new IdentityHashMap<FileJob, Future<FileJob>>();
+        ExecutorService executor = this.createExecutor();
+        try {
+            for (FileJob job : schedule) {
+                futures.put(job, executor.submit(job));
+            }
+            executor.shutdown();
+            for (FileJob job : fileJobs) {
+                try {
+                    futures.get(job).get();
+                } catch (ExecutionException e) {
+                    // FileJob 只抛出内存耗尽之类的虚拟机错误，其他文件也无法继续
+                    throw (VirtualMachineError) e.getCause();
+                }
+                if (this.report(job, out, err)) {
+                    failed++;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            err.println("[ERROR] interrupted");
+            failed++;
+        } finally {
+            // 被中断时等已经开始的任务停下，调用方返回后不会再有文件写出
+            executor.shutdownNow();
+            executor.close();
+        }
+        return failed;
+    }
+}
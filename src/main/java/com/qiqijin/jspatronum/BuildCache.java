@@ -0,0 +1,242 @@
+package com.qiqijin.jspatronum;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ *
+ * 混淆结果的磁盘缓存，以输入内容、影响输出的选项和版本号的 SHA-256 为键
+ * 先写临时文件再原子改名，命中时更新修改时间，总大小超过上限时按修改时间淘汰最久未用的条目
+ * 总大小在打开时统计一次，之后按写入累加；其他进程写入的条目不计入，超过上限扫描目录时再校正
+ * @author
+ */
+public class BuildCache {
+    private static final String SUFFIX = ".js";
+    /**
+     * 淘汰到上限的这个比例以下，避免缓存满后每次写入都扫描目录
+     */
+    private static final double LOW_WATER_MARK = 0.9;
+
+    private Path dir;
+    private long maxBytes;
+    private AtomicInteger hits = new AtomicInteger();
+    private AtomicInteger misses = new AtomicInteger();
+    private AtomicLong total = new AtomicLong();
+
+    /**
+     *
+     * 扫描目录时记下的条目，排序期间不再读取文件属性，以免命中更新修改时间后比较结果前后矛盾
+     */
+    private static class Entry {
+        private Path path;
+        private long modified;
+        private long size;
+
+        Entry(Path path, BasicFileAttributes attributes) {
+            this.path = path;
+            this.modified = attributes.lastModifiedTime().toMillis();
+            this.size = attributes.size();
+        }
+    }
+
+    /**
+     *
+     * @param dir 缓存目录，不存在时创建
+     * @param maxBytes 缓存总大小上限
+     *
+     * @throws IOException
+     */
+    public BuildCache(File dir, long maxBytes) throws IOException {
+        this.dir = dir.toPath();
+        this.maxBytes = maxBytes;
+        Files.createDirectories(this.dir);
+        long size = 0;
+        for (Entry entry : this.list()) {
+            size += entry.size;
+        }
+        this.total.set(size);
+    }
+
+    private static void update(MessageDigest digest, String field) {
+        digest.update(String.valueOf(field).getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+    /**
+     *
+     * 计算缓存键
+     * @param input 输入文件的字节，不改变它的位置
+     * @param options 混淆选项，只有影响输出的选项参与计算
+     * @return 十六进制的 SHA-256
+     */
+    public String key(ByteBuffer input, Options options) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, Main.VERSION);
+        update(digest, String.valueOf(options.getCompress()));
+        update(digest, String.valueOf(options.getDisableConsole()));
+        update(digest, String.valueOf(options.getControlFlow()));
+        update(digest, options.getHostName());
+        update(digest, String.valueOf(options.getStringDictionary()));
+        update(digest, String.valueOf(options.getShortNames()));
+        update(digest, String.valueOf(options.getMaxLiteralParams()));
+        update(digest, String.valueOf(options.getDefines()));
+        update(digest, options.getProfileDriver());
+        if (options.getProfileDriver() != null) {
+            // 驱动脚本改动后重新 profile
+            File driver = new File(options.getProfileDriver());
+            update(digest, driver.lastModified() + ":" + driver.length());
+        }
+        update(digest, String.valueOf(options.getHotFunctions()));
+        update(digest, String.valueOf(options.getOverheadBudget()));
+        update(digest, options.getPredicateStrategy());
+        update(digest, String.valueOf(options.getMaxExpansion()));
+        update(digest, String.valueOf(options.getExpansionFallback()));
+        update(digest, options.getCharset());
+        // 有种子时输出由种子决定，并行时随机数按任务 split，结果和顺序执行不同
+        update(digest, String.valueOf(options.getSeed()));
+        update(digest, String.valueOf(options.getParallel()));
+        digest.update(input.duplicate());
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     *
+     * 读取缓存的输出
+     * @param key
+     * @return 缓存的字节，未命中时为 null
+     */
+    public byte[] get(String key) {
+        Path entry = this.dir.resolve(key + SUFFIX);
+        try {
+            byte[] output = Files.readAllBytes(entry);
+            entry.toFile().setLastModified(System.currentTimeMillis());
+            this.hits.incrementAndGet();
+            return output;
+        } catch (IOException e) {
+            // 不存在或已被其他进程淘汰
+            this.misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     *
+     * 写入一条缓存，并在超过大小上限时淘汰旧条目
+     * @param key
+     * @param output
+     *
+     * @throws IOException
+     */
+    public void put(String key, byte[] output) throws IOException {
+        Path temp = Files.createTempFile(this.dir, key, ".tmp");
+        long replaced = 0;
+        try {
+            Files.write(temp, output);
+            Path entry = this.dir.resolve(key + SUFFIX);
+            try {
+                replaced = Files.size(entry);
+            } catch (NoSuchFileException e) {
+                // 新条目
+            }
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+        if (this.total.addAndGet(output.length - replaced) > this.maxBytes) {
+            this.evict();
+        }
+    }
+
+    /**
+     *
+     * 列出全部条目，每个文件只读取一次属性
+     */
+    private List<Entry> list() throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        try (Stream<Path> paths = Files.list(this.dir)) {
+            for (Path path : (Iterable<Path>) paths::iterator) {
+                if (path.getFileName().toString().endsWith(SUFFIX)) {
+                    try {
+                        entries.add(new Entry(path, Files.readAttributes(path, BasicFileAttributes.class)));
+                    } catch (NoSuchFileException e) {
+                        // 已被其他进程删除
+                    }
+                }
+            }
+        }
+        return entries;
+    }
+
+    /**
+     *
+     * 重新统计总大小，超过上限时按修改时间从旧到新删除条目，直到低于上限的 LOW_WATER_MARK
+     */
+    private synchronized void evict() throws IOException {
+        if (this.total.get() <= this.maxBytes) {
+            // 其他线程已经淘汰过
+            return;
+        }
+        List<Entry> entries = this.list();
+        long size = 0;
+        for (Entry entry : entries) {
+            size += entry.size;
+        }
+        if (size > this.maxBytes) {
+            long target = (long) (this.maxBytes * LOW_WATER_MARK);
+            entries.sort(Comparator.comparingLong((Entry entry) -> entry.modified));
+            for (Entry entry : entries) {
+                if (size <= target) {
+                    break;
+                }
+                // 已被其他进程删除时同样不再计入
+                Files.deleteIfExists(entry.path);
+                size -= entry.size;
+            }
+        }
+        // 扫描期间其他线程写入的条目可能少算或多算，下次扫描时校正
+        this.total.set(size);
+    }
+
+    /**
+     * @return 命中次数
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return 未命中次数
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+}
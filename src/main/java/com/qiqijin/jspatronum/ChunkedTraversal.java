@@ -0,0 +1,290 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.Scope;
+
+/**
+ *
+ * 在一棵大的语法树上并行执行一组可以分块的 pass
+ * 把树划分为互不重叠的语句、函数子树（分块）和其余的骨架：先在骨架上按先序执行，
+ * 再按分块在树中的顺序为每块 fork 出 pass 实例，在线程池里并行遍历各块
+ * 分块里较大的嵌套函数在外层遍历完后再 fork 出实例，作为子任务并行遍历（平坦化、不透明谓词都以函数为单位）
+ * 分块和子任务只取决于树的结构，和线程数、执行顺序无关，随机数流也就是确定的
+ * @author
+ */
+public class ChunkedTraversal {
+    /**
+     * 分块的目标节点数，比它大的语句或函数继续拆成里面的语句和函数
+     */
+    static final int CHUNK_NODES = 1 << 14;
+
+    /**
+     * 分块里的函数至少有这么多节点时作为子任务单独执行
+     */
+    static final int FUNCTION_TASK_NODES = 1 << 9;
+
+    private List<Pass> passes;
+    private AstNode root;
+    private Map<AstNode, Integer> sizes = new IdentityHashMap<AstNode, Integer>();
+    private int chunkCount = 0;
+
+    /**
+     *
+     * @param passes 都是 isChunkable 的 pass，按加入顺序访问每个节点
+     * @param root
+     */
+    public ChunkedTraversal(List<Pass> passes, AstNode root) {
+        this.passes = passes;
+        this.root = root;
+    }
+
+    /**
+     *
+     * 可以作为分块的子树：语句列表里的语句和函数
+     * 可分块的 pass 只改写访问节点所在的最近的语句或函数，各块的改动互不影响
+     */
+    private static boolean isCandidate(AstNode node) {
+        AstNode parent = node.getParent();
+        return node instanceof FunctionNode || parent instanceof AstRoot
+            || parent != null && (parent.getClass() == Block.class || parent.getClass() == Scope.class);
+    }
+
+    /**
+     *
+     * 一次先序遍历得到每个候选子树的节点数
+     * 路径上的节点放在栈里，遇到不是栈顶子节点的节点时，出栈的子树已经遍历完
+     */
+    private void measure() {
+        final List<AstNode> path = new ArrayList<AstNode>();
+        final List<Integer> starts = new ArrayList<Integer>();
+        final Set<AstNode> onPath = Collections.newSetFromMap(new IdentityHashMap<AstNode, Boolean>());
+        final int[] index = new int[1];
+        this.root.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    // 父节点不在路径上（pass 没有设置新节点的父节点）时当作栈顶的子节点
+                    if (onPath.contains(astNode.getParent())) {
+                        while (path.get(path.size() - 1) != astNode.getParent()) {
+                            close(path, starts, onPath, index[0]);
+                        }
+                    }
+                    path.add(astNode);
+                    starts.add(index[0]);
+                    onPath.add(astNode);
+                    index[0]++;
+                    return true;
+                }
+            });
+        while (!path.isEmpty()) {
+            close(path, starts, onPath, index[0]);
+        }
+    }
+
+    private void close(List<AstNode> path, List<Integer> starts, Set<AstNode> onPath, int end) {
+        AstNode node = path.remove(path.size() - 1);
+        int start = starts.remove(starts.size() - 1);
+        onPath.remove(node);
+        if (node == this.root || isCandidate(node)) {
+            this.sizes.put(node, end - start);
+        }
+    }
+
+    /**
+     *
+     * 子树里最外层的候选子树
+     */
+    private List<AstNode> split(final AstNode node) {
+        final List<AstNode> parts = new ArrayList<AstNode>();
+        node.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (astNode != node && sizes.containsKey(astNode)) {
+                        parts.add(astNode);
+                        return false;
+                    }
+                    return true;
+                }
+            });
+        return parts;
+    }
+
+    /**
+     *
+     * 从根开始不断拆开最大的子树，直到都不超过 CHUNK_NODES 或不能再拆
+     * @return 分块
+     */
+    private Set<AstNode> partition() {
+        Set<AstNode> chunks = Collections.newSetFromMap(new IdentityHashMap<AstNode, Boolean>());
+        PriorityQueue<AstNode> queue = new PriorityQueue<AstNode>(Comparator.comparingInt((AstNode node) -> this.sizes.get(node)).reversed());
+        queue.addAll(this.split(this.root));
+        while (!queue.isEmpty()) {
+            AstNode largest = queue.poll();
+            if (this.sizes.get(largest) <= CHUNK_NODES) {
+                chunks.add(largest);
+                chunks.addAll(queue);
+                break;
+            }
+            List<AstNode> parts = this.split(largest);
+            if (parts.isEmpty()) {
+                chunks.add(largest);
+            } else {
+                queue.addAll(parts);
+            }
+        }
+        return chunks;
+    }
+
+    /**
+     *
+     * 在骨架上执行 pass，按先序返回遇到的分块
+     */
+    private List<AstNode> visitSkeleton(final Set<AstNode> chunks) {
+        final List<AstNode> ordered = new ArrayList<AstNode>();
+        this.root.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (chunks.contains(astNode)) {
+                        ordered.add(astNode);
+                        return false;
+                    }
+                    for (Pass pass : passes) {
+                        pass.visit(astNode);
+                    }
+                    return true;
+                }
+            });
+        return ordered;
+    }
+
+    /**
+     *
+     * 遍历一个分块或函数：先执行除较大嵌套函数以外的部分，
+     * 再按顺序为每个较大的嵌套函数 fork 出 pass 实例，并行遍历它们
+     * 外层的改写（如平坦化移动语句）在子任务开始前完成，不会和子任务同时改动树
+     */
+    private class FunctionTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        // 任务不会序列化
+        private transient AstNode node;
+        private transient List<Pass> passes;
+
+        FunctionTask(AstNode node, List<Pass> passes) {
+            this.node = node;
+            this.passes = passes;
+        }
+
+        @Override
+        protected void compute() {
+            final List<AstNode> functions = new ArrayList<AstNode>();
+            this.node.visit(new NodeVisitor() {
+                    @Override
+                    public boolean visit(AstNode astNode) {
+                        if (astNode != node && astNode instanceof FunctionNode) {
+                            Integer size = sizes.get(astNode);
+                            if (size != null && size >= FUNCTION_TASK_NODES) {
+                                functions.add(astNode);
+                                return false;
+                            }
+                        }
+                        for (Pass pass : passes) {
+                            pass.visit(astNode);
+                        }
+                        return true;
+                    }
+                });
+            if (functions.isEmpty()) {
+                return;
+            }
+            List<FunctionTask> tasks = new ArrayList<FunctionTask>(functions.size());
+            for (AstNode function : functions) {
+                tasks.add(new FunctionTask(function, forkAll(this.passes)));
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    private static List<Pass> forkAll(List<Pass> passes) {
+        List<Pass> forked = new ArrayList<Pass>(passes.size());
+        for (Pass pass : passes) {
+            forked.add(pass.fork());
+        }
+        return forked;
+    }
+
+    /**
+     *
+     * 执行全部 pass，树太小不值得分块时不做任何事
+     * @param pool 执行分块的线程池
+     * @return 是否已经执行
+     */
+    public boolean run(ForkJoinPool pool) {
+        this.measure();
+        if (this.sizes.get(this.root) <= CHUNK_NODES) {
+            return false;
+        }
+        List<AstNode> chunks = this.visitSkeleton(this.partition());
+        this.chunkCount = chunks.size();
+
+        // fork 在当前线程按分块顺序进行，相邻的小块合并成一个任务
+        List<ForkJoinTask<?>> tasks = new ArrayList<ForkJoinTask<?>>();
+        List<AstNode> batch = new ArrayList<AstNode>();
+        List<List<Pass>> batchPasses = new ArrayList<List<Pass>>();
+        int batchSize = 0;
+        for (AstNode chunk : chunks) {
+            batch.add(chunk);
+            batchPasses.add(forkAll(this.passes));
+            batchSize += this.sizes.get(chunk);
+            if (batchSize >= CHUNK_NODES) {
+                tasks.add(task(batch, batchPasses));
+                batch = new ArrayList<AstNode>();
+                batchPasses = new ArrayList<List<Pass>>();
+                batchSize = 0;
+            }
+        }
+        if (!batch.isEmpty()) {
+            tasks.add(task(batch, batchPasses));
+        }
+        pool.invoke(new RecursiveAction() {
+                @Override
+                protected void compute() {
+                    invokeAll(tasks);
+                }
+            });
+        return true;
+    }
+
+    private ForkJoinTask<?> task(final List<AstNode> chunks, final List<List<Pass>> passes) {
+        return ForkJoinTask.adapt(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < chunks.size(); i++) {
+                        new FunctionTask(chunks.get(i), passes.get(i)).invoke();
+                    }
+                }
+            });
+    }
+
+    /**
+     * @return 上一次 run 并行遍历的分块数
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+}
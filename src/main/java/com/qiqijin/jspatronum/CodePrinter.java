@@ -0,0 +1,1147 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+import java.nio.CharBuffer;
+import java.util.List;
+
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.ArrayLiteral;
+import org.mozilla.javascript.ast.Assignment;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.BigIntLiteral;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.BreakStatement;
+import org.mozilla.javascript.ast.CatchClause;
+import org.mozilla.javascript.ast.Comment;
+import org.mozilla.javascript.ast.ConditionalExpression;
+import org.mozilla.javascript.ast.ContinueStatement;
+import org.mozilla.javascript.ast.DoLoop;
+import org.mozilla.javascript.ast.ElementGet;
+import org.mozilla.javascript.ast.EmptyExpression;
+import org.mozilla.javascript.ast.EmptyStatement;
+import org.mozilla.javascript.ast.ErrorNode;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.ForInLoop;
+import org.mozilla.javascript.ast.ForLoop;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.IfStatement;
+import org.mozilla.javascript.ast.InfixExpression;
+import org.mozilla.javascript.ast.KeywordLiteral;
+import org.mozilla.javascript.ast.Label;
+import org.mozilla.javascript.ast.LabeledStatement;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NewExpression;
+import org.mozilla.javascript.ast.NumberLiteral;
+import org.mozilla.javascript.ast.ObjectLiteral;
+import org.mozilla.javascript.ast.ObjectProperty;
+import org.mozilla.javascript.ast.ParenthesizedExpression;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.RegExpLiteral;
+import org.mozilla.javascript.ast.ReturnStatement;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.SwitchCase;
+import org.mozilla.javascript.ast.SwitchStatement;
+import org.mozilla.javascript.ast.TaggedTemplateLiteral;
+import org.mozilla.javascript.ast.TemplateCharacters;
+import org.mozilla.javascript.ast.TemplateLiteral;
+import org.mozilla.javascript.ast.ThrowStatement;
+import org.mozilla.javascript.ast.TryStatement;
+import org.mozilla.javascript.ast.UnaryExpression;
+import org.mozilla.javascript.ast.UpdateExpression;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+import org.mozilla.javascript.ast.WhileLoop;
+import org.mozilla.javascript.ast.WithStatement;
+import org.mozilla.javascript.ast.Yield;
+
+/**
+ *
+ * 一次遍历语法树，把代码直接写到 Appendable，不生成中间的字符串
+ * 格式化输出与 AstNode.toSource() 逐字节相同；压缩输出与 Compressor 压缩 toSource() 的结果相同（模板字符串的 ${} 里也会压缩），
+ * 记号之间的分隔由和 Compressor 共用的 TokenJoiner 决定
+ * toSource() 里子节点结果的 trim() 由待定空白实现：空白先暂存，遇到非空白才写出，trim 的区域结束时丢弃
+ * 修正转义（StringHack）在写字符串和正则等原文时逐个完成，不再对整个输出做正则替换
+ * 不认识的节点（E4X、数组推导等）退回到节点自己的 toSource()
+ * @author
+ */
+public class CodePrinter {
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_INDENT = 42;
+    private static final String[] INDENTATIONS = new String[MAX_INDENT + 1];
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    static {
+        StringBuilder sb = new StringBuilder();
+        INDENTATIONS[0] = sb.toString();
+        for (int i = 1; i <= MAX_INDENT; i++) {
+            sb.append("  ");
+            INDENTATIONS[i] = sb.toString();
+        }
+    }
+
+    private Appendable out;
+    private boolean minify;
+    private boolean escapes;
+    private char[] buffer = new char[BUFFER_SIZE];
+    private int position;
+
+    // 还没有写出的空白，trimLeading 时丢弃开头的空白
+    private StringBuilder pendingWhitespace = new StringBuilder();
+    private boolean trimLeading;
+
+    // 压缩时的状态：记号之间的分隔，和正在写的是否是标识符（code 可能分几次写完一个标识符）
+    private TokenJoiner joiner = new TokenJoiner();
+    private boolean inWord;
+
+    /**
+     *
+     * @param out 输出，打印完成前不会关闭也不会 flush
+     * @param minify 是否输出压缩后的代码
+     * @param escapes 是否修正转义，和 StringHack.escapedCharacters 相同；重新解析用的代码不修正
+     */
+    public CodePrinter(Appendable out, boolean minify, boolean escapes) {
+        this.out = out;
+        this.minify = minify;
+        this.escapes = escapes;
+    }
+
+    /**
+     *
+     * 打印到字符串
+     * @param node
+     * @param minify 是否压缩
+     * @param escapes 是否修正转义
+     * @return 代码
+     */
+    public static String print(AstNode node, boolean minify, boolean escapes) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            new CodePrinter(sb, minify, escapes).print(node);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     *
+     * 打印一棵语法树，结束时写出缓冲区的内容
+     * @param node
+     *
+     * @throws IOException
+     */
+    public void print(AstNode node) throws IOException {
+        this.print(node, 0);
+        if (!this.minify) {
+            this.buffer(this.pendingWhitespace);
+        }
+        this.pendingWhitespace.setLength(0);
+        this.joiner.clearPending();
+        this.flush();
+    }
+
+    private void flush() throws IOException {
+        if (this.position == 0) {
+            return;
+        }
+        if (this.out instanceof Writer) {
+            ((Writer) this.out).write(this.buffer, 0, this.position);
+        } else if (this.out instanceof StringBuilder) {
+            ((StringBuilder) this.out).append(this.buffer, 0, this.position);
+        } else {
+            this.out.append(CharBuffer.wrap(this.buffer, 0, this.position));
+        }
+        this.position = 0;
+    }
+
+    private void write(char c) throws IOException {
+        if (this.position == this.buffer.length) {
+            this.flush();
+        }
+        this.buffer[this.position++] = c;
+        this.joiner.wrote(c);
+    }
+
+    private void buffer(CharSequence s) throws IOException {
+        this.buffer(s, 0, s.length());
+    }
+
+    private void buffer(CharSequence s, int from, int to) throws IOException {
+        if (from == to) {
+            return;
+        }
+        if (to - from > this.buffer.length - this.position) {
+            this.flush();
+            if (to - from > this.buffer.length) {
+                this.out.append(s, from, to);
+                this.joiner.wrote(s.charAt(to - 1));
+                return;
+            }
+        }
+        if (s instanceof String) {
+            ((String) s).getChars(from, to, this.buffer, this.position);
+            this.position += to - from;
+        } else {
+            for (int i = from; i < to; i++) {
+                this.buffer[this.position++] = s.charAt(i);
+            }
+        }
+        this.joiner.wrote(s.charAt(to - 1));
+    }
+
+    // ---- 空白和 trim ----
+
+    private void whitespace(CharSequence s) {
+        this.whitespace(s, 0, s.length());
+    }
+
+    private void whitespace(CharSequence s, int from, int to) {
+        if (!this.trimLeading) {
+            this.pendingWhitespace.append(s, from, to);
+        }
+    }
+
+    private void indent(int depth) {
+        this.whitespace(INDENTATIONS[Math.min(MAX_INDENT, Math.max(0, depth))]);
+    }
+
+    /**
+     *
+     * 写非空白内容之前写出暂存的空白
+     */
+    private void beforeContent() throws IOException {
+        this.trimLeading = false;
+        if (this.pendingWhitespace.length() == 0) {
+            return;
+        }
+        if (this.minify) {
+            for (int i = 0; i < this.pendingWhitespace.length(); i++) {
+                this.separator(this.pendingWhitespace.charAt(i));
+            }
+        } else {
+            this.buffer(this.pendingWhitespace);
+        }
+        this.pendingWhitespace.setLength(0);
+    }
+
+    /**
+     *
+     * 开始一段要 trim 的输出
+     * @return 传给 endTrim
+     */
+    private boolean beginTrim() {
+        boolean outer = this.trimLeading;
+        this.trimLeading = true;
+        return outer;
+    }
+
+    private void endTrim(boolean outer) {
+        if (this.trimLeading) {
+            // 这一段只有空白，之前暂存的空白不属于它
+            this.trimLeading = outer;
+        } else {
+            this.pendingWhitespace.setLength(0);
+        }
+    }
+
+    private void trimmed(AstNode node, int depth) throws IOException {
+        boolean outer = this.beginTrim();
+        this.print(node, depth);
+        this.endTrim(outer);
+    }
+
+    /**
+     *
+     * 写代码文本：关键字、标识符、数字、运算符，可以包含空白
+     */
+    private void code(String s) throws IOException {
+        this.text(s, false);
+    }
+
+    private void text(String s, boolean comment) throws IOException {
+        int length = s.length();
+        int start = 0;
+        while (start < length && s.charAt(start) <= ' ') {
+            start++;
+        }
+        if (start == length) {
+            this.whitespace(s);
+            return;
+        }
+        int end = length;
+        while (s.charAt(end - 1) <= ' ') {
+            end--;
+        }
+        this.whitespace(s, 0, start);
+        this.beforeContent();
+        if (!this.minify) {
+            this.buffer(s, start, end);
+        } else if (comment) {
+            this.minifyComment(s, start, end);
+        } else {
+            this.minifyCode(s, start, end);
+        }
+        if (end < length) {
+            this.pendingWhitespace.append(s, end, length);
+        }
+    }
+
+    // ---- 压缩，分隔规则在 TokenJoiner 里 ----
+
+    private void separator(char c) {
+        if (TokenJoiner.isLineTerminator(c)) {
+            this.joiner.newline();
+        } else {
+            this.joiner.space();
+        }
+        this.inWord = false;
+    }
+
+    private void minifyCode(String s, int from, int to) throws IOException {
+        for (int i = from; i < to; i++) {
+            char c = s.charAt(i);
+            int next = i + 1 < to ? s.charAt(i + 1) : -1;
+            if (c <= ' ' || (c > 127 && Character.isSpaceChar(c))) {
+                this.separator(c);
+            } else if (TokenJoiner.isNameChar(c)) {
+                if (!this.inWord) {
+                    this.flushSeparator(c, next);
+                    this.joiner.beginWord(c);
+                    this.inWord = true;
+                }
+                this.write(c);
+                this.joiner.wordChar(c);
+            } else {
+                boolean separated = this.joiner.isSeparated();
+                this.flushSeparator(c, next);
+                this.joiner.punctuator(c, separated);
+                this.write(c);
+                this.inWord = false;
+            }
+        }
+    }
+
+    private void minifyComment(String s, int from, int to) {
+        boolean newline = false;
+        if (s.startsWith("/*", from)) {
+            for (int i = from; i < to && !newline; i++) {
+                newline = TokenJoiner.isLineTerminator(s.charAt(i));
+            }
+        }
+        // 含换行的多行注释在自动分号规则里等同于换行
+        if (newline) {
+            this.joiner.newline();
+        } else {
+            this.joiner.space();
+        }
+        this.inWord = false;
+    }
+
+    /**
+     *
+     * 写入下一个记号前，写出被删除的空白需要保留的换行或空格
+     * @param c 下一个记号的首字符
+     * @param next 第二个字符，不知道时为 -1
+     */
+    private void flushSeparator(int c, int next) throws IOException {
+        int separator = this.joiner.separator(c, next);
+        if (separator >= 0) {
+            this.write((char) separator);
+        }
+    }
+
+    // ---- 字面量 ----
+
+    /**
+     *
+     * 开始写一个原样输出的字面量（字符串、正则、模板字符串）
+     */
+    private void beginLiteral(char first, int second) throws IOException {
+        this.beforeContent();
+        if (this.minify) {
+            this.flushSeparator(first, second);
+            this.joiner.literal();
+            this.inWord = false;
+        }
+    }
+
+    /**
+     *
+     * 字面量内部的原文，不做 trim 和压缩
+     */
+    private void raw(String s) throws IOException {
+        if (this.minify) {
+            this.pendingWhitespace.setLength(0);
+            this.joiner.clearPending();
+        } else {
+            this.beforeContent();
+        }
+        this.trimLeading = false;
+        this.buffer(s);
+        if (this.minify) {
+            this.joiner.literal();
+            this.inWord = false;
+        }
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f');
+    }
+
+    /**
+     *
+     * \\ 后面是 u 和 4 个小写十六进制数字，StringHack 会删掉这个 \\
+     */
+    private static boolean isUnicodeEscape(CharSequence s, int i) {
+        if (i + 5 > s.length() || s.charAt(i) != 'u') {
+            return false;
+        }
+        for (int j = i + 1; j < i + 5; j++) {
+            if (!isHex(s.charAt(j))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     *
+     * 对原文做 StringHack.escapedCharacters 的替换
+     */
+    private String fixEscapes(String s) {
+        if (!this.escapes || s.indexOf('\\') < 0) {
+            return s;
+        }
+        StringBuilder sb = new StringBuilder(s.length());
+        int length = s.length();
+        for (int i = 0; i < length; i++) {
+            char c = s.charAt(i);
+            if (c == '\\' && isUnicodeEscape(s, i + 1)) {
+                sb.append(s, i + 1, i + 6);
+                i += 5;
+            } else {
+                sb.append(c);
+            }
+        }
+        return sb.toString();
+    }
+
+    private void hex(int c, int digits) throws IOException {
+        for (int shift = (digits - 1) * 4; shift >= 0; shift -= 4) {
+            this.write(HEX[0xf & (c >> shift)]);
+        }
+    }
+
+    /**
+     *
+     * 按 ScriptRuntime.escapeString 转义后直接写出，同时完成 StringHack 的修正：
+     * 生成的 \\uXXXX 去掉 \\，字符串里的 \\ 后面是 uXXXX 时只写一个 \\
+     */
+    private void string(StringLiteral stringLiteral) throws IOException {
+        String value = stringLiteral.getValue();
+        char quote = stringLiteral.getQuoteCharacter();
+        if (quote != '"' && quote != '\'') {
+            // 和 toSource() 一样报错
+            ScriptRuntime.escapeString(value, quote);
+        }
+        this.beginLiteral(quote, value.isEmpty() ? quote : value.charAt(0));
+        this.write(quote);
+        int length = value.length();
+        int run = 0;
+        for (int i = 0; i < length; i++) {
+            char c = value.charAt(i);
+            if (' ' <= c && c <= '~' && c != quote && c != '\\') {
+                continue;
+            }
+            this.buffer(value, run, i);
+            run = i + 1;
+            int escape = -1;
+            switch (c) {
+            case '\b':
+                escape = 'b';
+                break;
+            case '\f':
+                escape = 'f';
+                break;
+            case '\n':
+                escape = 'n';
+                break;
+            case '\r':
+                escape = 'r';
+                break;
+            case '\t':
+                escape = 't';
+                break;
+            case 0xb:
+                escape = 'v';
+                break;
+            case '\\':
+                escape = '\\';
+                break;
+            default:
+                break;
+            }
+            if (c == '\\' && this.escapes && isUnicodeEscape(value, i + 1)) {
+                this.write('\\');
+            } else if (escape >= 0) {
+                this.write('\\');
+                this.write((char) escape);
+            } else if (c == quote) {
+                this.write('\\');
+                this.write(quote);
+            } else if (c < 256) {
+                this.write('\\');
+                this.write('x');
+                this.hex(c, 2);
+            } else {
+                if (!this.escapes) {
+                    this.write('\\');
+                }
+                this.write('u');
+                this.hex(c, 4);
+            }
+        }
+        this.buffer(value, run, length);
+        this.write(quote);
+    }
+
+    private void regExp(RegExpLiteral regExpLiteral) throws IOException {
+        String value = this.fixEscapes(regExpLiteral.getValue());
+        this.beginLiteral('/', value.isEmpty() ? '/' : value.charAt(0));
+        this.buffer("/");
+        this.buffer(value);
+        this.buffer("/");
+        if (regExpLiteral.getFlags() != null) {
+            this.buffer(regExpLiteral.getFlags());
+        }
+    }
+
+    private void template(TemplateLiteral templateLiteral) throws IOException {
+        this.beginLiteral('`', -1);
+        this.buffer("`");
+        for (AstNode element : templateLiteral.getElements()) {
+            if (element.getType() == Token.TEMPLATE_CHARS) {
+                this.raw(this.fixEscapes(((TemplateCharacters) element).getRawValue()));
+            } else {
+                this.raw("${");
+                this.print(element, 0);
+                this.raw("}");
+            }
+        }
+        this.raw("`");
+    }
+
+    /**
+     *
+     * 不认识的节点用它自己的 toSource()，压缩时由 Compressor 扫描，接着同一个 TokenJoiner 的状态
+     */
+    private void fallback(AstNode node, int depth) throws IOException {
+        String source = this.fixEscapes(node.toSource(depth));
+        if (!this.minify) {
+            this.code(source);
+            return;
+        }
+        this.beforeContent();
+        StringWriter minified = new StringWriter();
+        new Compressor(this.joiner).append(new StringReader(source), minified);
+        this.buffer(minified.getBuffer());
+        this.inWord = false;
+    }
+
+    // ---- 节点，和各个节点的 toSource(int depth) 一一对应 ----
+
+    private void list(List<? extends AstNode> items) throws IOException {
+        int max = items.size();
+        int count = 0;
+        for (AstNode item : items) {
+            this.print(item, 0);
+            if (count++ < max - 1) {
+                this.code(", ");
+            } else if (item instanceof EmptyExpression) {
+                this.code(",");
+            }
+        }
+    }
+
+    private void children(AstNode parent, int depth) throws IOException {
+        for (AstNode kid = (AstNode) parent.getFirstChild(); kid != null; kid = (AstNode) kid.getNext()) {
+            this.print(kid, depth);
+            if (kid.getType() == Token.COMMENT) {
+                this.whitespace("\n");
+            }
+        }
+    }
+
+    private void inlineComment(AstNode node, int depth) throws IOException {
+        if (node.getInlineComment() != null) {
+            this.print(node.getInlineComment(), depth);
+        }
+    }
+
+    private void print(AstNode node, int depth) throws IOException {
+        Class<?> type = node.getClass();
+        if (type == Name.class) {
+            String identifier = ((Name) node).getIdentifier();
+            this.indent(depth);
+            this.code(identifier == null ? "<null>" : identifier);
+        } else if (type == StringLiteral.class) {
+            this.indent(depth);
+            this.string((StringLiteral) node);
+        } else if (type == PropertyGet.class) {
+            PropertyGet propertyGet = (PropertyGet) node;
+            this.indent(depth);
+            this.print(propertyGet.getLeft(), 0);
+            this.code(".");
+            this.print(propertyGet.getRight(), 0);
+        } else if (type == NumberLiteral.class) {
+            String value = ((NumberLiteral) node).getValue();
+            this.indent(depth);
+            this.code(value == null ? "<null>" : value);
+        } else if (type == FunctionCall.class) {
+            this.functionCall((FunctionCall) node, depth);
+        } else if (type == InfixExpression.class || type == Assignment.class) {
+            InfixExpression infixExpression = (InfixExpression) node;
+            this.indent(depth);
+            this.print(infixExpression.getLeft(), 0);
+            this.whitespace(" ");
+            this.code(AstNode.operatorToString(node.getType()));
+            this.whitespace(" ");
+            this.print(infixExpression.getRight(), 0);
+        } else if (type == ExpressionStatement.class) {
+            this.print(((ExpressionStatement) node).getExpression(), depth);
+            this.code(";");
+            this.inlineComment(node, depth);
+            this.whitespace("\n");
+        } else if (type == ElementGet.class) {
+            ElementGet elementGet = (ElementGet) node;
+            this.indent(depth);
+            this.print(elementGet.getTarget(), 0);
+            this.code("[");
+            this.print(elementGet.getElement(), 0);
+            this.code("]");
+        } else if (type == KeywordLiteral.class) {
+            this.keyword((KeywordLiteral) node, depth);
+        } else if (type == VariableDeclaration.class) {
+            this.variableDeclaration((VariableDeclaration) node, depth);
+        } else if (type == VariableInitializer.class) {
+            VariableInitializer variableInitializer = (VariableInitializer) node;
+            this.indent(depth);
+            this.print(variableInitializer.getTarget(), 0);
+            if (variableInitializer.getInitializer() != null) {
+                this.code(" = ");
+                this.print(variableInitializer.getInitializer(), 0);
+            }
+        } else if (type == Block.class) {
+            this.indent(depth);
+            this.code("{\n");
+            this.children(node, depth + 1);
+            this.indent(depth);
+            this.code("}");
+            this.inlineComment(node, depth);
+            this.whitespace("\n");
+        } else if (type == Scope.class) {
+            this.indent(depth);
+            this.code("{\n");
+            this.children(node, depth + 1);
+            this.indent(depth);
+            this.code("}\n");
+        } else if (type == ReturnStatement.class) {
+            AstNode returnValue = ((ReturnStatement) node).getReturnValue();
+            this.indent(depth);
+            this.code("return");
+            if (returnValue != null) {
+                this.whitespace(" ");
+                this.print(returnValue, 0);
+            }
+            this.code(";\n");
+        } else if (type == FunctionNode.class) {
+            this.function((FunctionNode) node, depth);
+        } else if (type == IfStatement.class) {
+            this.ifStatement((IfStatement) node, depth);
+        } else if (type == UnaryExpression.class) {
+            UnaryExpression unaryExpression = (UnaryExpression) node;
+            int operator = node.getType();
+            this.indent(depth);
+            this.code(AstNode.operatorToString(operator));
+            if (operator == Token.TYPEOF || operator == Token.DELPROP || operator == Token.VOID) {
+                this.whitespace(" ");
+            }
+            this.print(unaryExpression.getOperand(), 0);
+        } else if (type == ObjectProperty.class) {
+            this.objectProperty((ObjectProperty) node, depth);
+        } else if (type == ObjectLiteral.class) {
+            this.indent(depth);
+            this.code("{");
+            this.list(((ObjectLiteral) node).getElements());
+            this.code("}");
+        } else if (type == ArrayLiteral.class) {
+            this.indent(depth);
+            this.code("[");
+            this.list(((ArrayLiteral) node).getElements());
+            this.code("]");
+        } else if (type == ParenthesizedExpression.class) {
+            this.indent(depth);
+            this.code("(");
+            this.print(((ParenthesizedExpression) node).getExpression(), 0);
+            this.code(")");
+        } else if (type == ConditionalExpression.class) {
+            ConditionalExpression conditionalExpression = (ConditionalExpression) node;
+            this.indent(depth);
+            this.print(conditionalExpression.getTestExpression(), depth);
+            this.code(" ? ");
+            this.print(conditionalExpression.getTrueExpression(), 0);
+            this.code(" : ");
+            this.print(conditionalExpression.getFalseExpression(), 0);
+        } else if (type == UpdateExpression.class) {
+            UpdateExpression updateExpression = (UpdateExpression) node;
+            String operator = AstNode.operatorToString(node.getType());
+            this.indent(depth);
+            if (!updateExpression.isPostfix()) {
+                this.code(operator);
+            }
+            this.print(updateExpression.getOperand(), 0);
+            if (updateExpression.isPostfix()) {
+                this.code(operator);
+            }
+        } else if (type == NewExpression.class) {
+            this.newExpression((NewExpression) node, depth);
+        } else if (type == RegExpLiteral.class) {
+            this.indent(depth);
+            this.regExp((RegExpLiteral) node);
+        } else if (type == AstRoot.class) {
+            this.children(node, depth);
+        } else if (type == ForLoop.class) {
+            this.forLoop((ForLoop) node, depth);
+        } else if (type == ForInLoop.class) {
+            this.forInLoop((ForInLoop) node, depth);
+        } else if (type == WhileLoop.class) {
+            this.whileLoop((WhileLoop) node, depth);
+        } else if (type == DoLoop.class) {
+            DoLoop doLoop = (DoLoop) node;
+            this.indent(depth);
+            this.code("do ");
+            if (node.getInlineComment() != null) {
+                this.print(node.getInlineComment(), depth + 1);
+                this.whitespace("\n");
+            }
+            this.trimmed(doLoop.getBody(), depth);
+            this.code(" while (");
+            this.print(doLoop.getCondition(), 0);
+            this.code(");\n");
+        } else if (type == SwitchStatement.class) {
+            SwitchStatement switchStatement = (SwitchStatement) node;
+            this.indent(depth);
+            this.code("switch (");
+            this.print(switchStatement.getExpression(), 0);
+            this.code(") {\n");
+            for (SwitchCase switchCase : switchStatement.getCases()) {
+                this.print(switchCase, depth + 1);
+            }
+            this.indent(depth);
+            this.code("}\n");
+        } else if (type == SwitchCase.class) {
+            this.switchCase((SwitchCase) node, depth);
+        } else if (type == BreakStatement.class) {
+            this.jump("break", ((BreakStatement) node).getBreakLabel(), depth);
+        } else if (type == ContinueStatement.class) {
+            this.jump("continue", ((ContinueStatement) node).getLabel(), depth);
+        } else if (type == ThrowStatement.class) {
+            this.indent(depth);
+            this.code("throw ");
+            this.print(((ThrowStatement) node).getExpression(), 0);
+            this.code(";\n");
+        } else if (type == TryStatement.class) {
+            this.tryStatement((TryStatement) node, depth);
+        } else if (type == CatchClause.class) {
+            CatchClause catchClause = (CatchClause) node;
+            this.indent(depth);
+            this.code("catch (");
+            this.print(catchClause.getVarName(), 0);
+            if (catchClause.getCatchCondition() != null) {
+                this.code(" if ");
+                this.print(catchClause.getCatchCondition(), 0);
+            }
+            this.code(") ");
+            this.print(catchClause.getBody(), 0);
+        } else if (type == EmptyStatement.class) {
+            this.indent(depth);
+            this.code(";\n");
+        } else if (type == EmptyExpression.class) {
+            this.indent(depth);
+        } else if (type == LabeledStatement.class) {
+            LabeledStatement labeledStatement = (LabeledStatement) node;
+            for (Label label : labeledStatement.getLabels()) {
+                this.print(label, depth);
+            }
+            this.print(labeledStatement.getStatement(), depth + 1);
+        } else if (type == Label.class) {
+            this.indent(depth);
+            this.code(((Label) node).getName() + ":\n");
+        } else if (type == Comment.class) {
+            Comment comment = (Comment) node;
+            this.indent(depth);
+            this.text(this.fixEscapes(comment.getValue()), true);
+            if (comment.getCommentType() == Token.CommentType.BLOCK_COMMENT) {
+                this.whitespace("\n");
+            }
+        } else if (type == WithStatement.class) {
+            this.withStatement((WithStatement) node, depth);
+        } else if (type == TemplateLiteral.class) {
+            this.indent(depth);
+            this.template((TemplateLiteral) node);
+        } else if (type == TaggedTemplateLiteral.class) {
+            TaggedTemplateLiteral taggedTemplateLiteral = (TaggedTemplateLiteral) node;
+            this.indent(depth);
+            this.print(taggedTemplateLiteral.getTarget(), 0);
+            this.print(taggedTemplateLiteral.getTemplateLiteral(), 0);
+        } else if (type == BigIntLiteral.class) {
+            BigIntLiteral bigIntLiteral = (BigIntLiteral) node;
+            this.indent(depth);
+            this.code(bigIntLiteral.getBigInt() == null ? "<null>" : bigIntLiteral.getBigInt().toString() + "n");
+        } else if (type == Yield.class) {
+            AstNode value = ((Yield) node).getValue();
+            this.code("yield");
+            if (value != null) {
+                this.whitespace(" ");
+                this.print(value, 0);
+            }
+        } else if (type == ErrorNode.class) {
+            return;
+        } else {
+            this.fallback(node, depth);
+        }
+    }
+
+    private void functionCall(FunctionCall functionCall, int depth) throws IOException {
+        this.indent(depth);
+        this.print(functionCall.getTarget(), 0);
+        this.code("(");
+        this.list(functionCall.getArguments());
+        this.code(")");
+        if (functionCall.getInlineComment() != null) {
+            this.print(functionCall.getInlineComment(), depth);
+            this.whitespace("\n");
+        }
+    }
+
+    private void newExpression(NewExpression newExpression, int depth) throws IOException {
+        this.indent(depth);
+        this.code("new ");
+        this.print(newExpression.getTarget(), 0);
+        this.code("(");
+        this.list(newExpression.getArguments());
+        this.code(")");
+        if (newExpression.getInitializer() != null) {
+            this.whitespace(" ");
+            this.print(newExpression.getInitializer(), 0);
+        }
+    }
+
+    private void keyword(KeywordLiteral keywordLiteral, int depth) throws IOException {
+        this.indent(depth);
+        switch (keywordLiteral.getType()) {
+        case Token.THIS:
+            this.code("this");
+            break;
+        case Token.NULL:
+            this.code("null");
+            break;
+        case Token.TRUE:
+            this.code("true");
+            break;
+        case Token.FALSE:
+            this.code("false");
+            break;
+        case Token.DEBUGGER:
+            this.code("debugger;\n");
+            break;
+        default:
+            throw new IllegalStateException("Invalid keyword literal type: " + keywordLiteral.getType());
+        }
+    }
+
+    private static String declarationKeyword(int type) {
+        switch (type) {
+        case Token.VAR:
+            return "var";
+        case Token.LET:
+            return "let";
+        case Token.CONST:
+            return "const";
+        default:
+            return Token.typeToName(type).toLowerCase();
+        }
+    }
+
+    private void variableDeclaration(VariableDeclaration variableDeclaration, int depth) throws IOException {
+        this.indent(depth);
+        this.code(declarationKeyword(variableDeclaration.getType()));
+        this.whitespace(" ");
+        this.list(variableDeclaration.getVariables());
+        if (variableDeclaration.isStatement()) {
+            this.code(";");
+        }
+        if (variableDeclaration.getInlineComment() != null) {
+            this.print(variableDeclaration.getInlineComment(), depth);
+            this.whitespace("\n");
+        } else if (variableDeclaration.isStatement()) {
+            this.whitespace("\n");
+        }
+    }
+
+    private void function(FunctionNode functionNode, int depth) throws IOException {
+        PassManager.checkInterrupted();
+        boolean isArrow = functionNode.getFunctionType() == FunctionNode.ARROW_FUNCTION;
+        if (!functionNode.isMethod()) {
+            this.indent(depth);
+            if (!isArrow) {
+                this.code("function");
+            }
+        }
+        if (functionNode.getFunctionName() != null) {
+            this.whitespace(" ");
+            this.print(functionNode.getFunctionName(), 0);
+        }
+        List<AstNode> params = functionNode.getParams();
+        if (params.isEmpty()) {
+            this.code("() ");
+        } else if (isArrow && functionNode.getLp() == -1) {
+            this.list(params);
+            this.whitespace(" ");
+        } else {
+            this.code("(");
+            this.list(params);
+            if (functionNode.getIntProp(AstNode.TRAILING_COMMA, 0) == 1) {
+                this.code(", ");
+            }
+            this.code(") ");
+        }
+        if (isArrow) {
+            this.code("=> ");
+        }
+        AstNode body = functionNode.getBody();
+        if (functionNode.isExpressionClosure()) {
+            if (body.getLastChild() instanceof ReturnStatement) {
+                this.print(((ReturnStatement) body.getLastChild()).getReturnValue(), 0);
+                if (functionNode.getFunctionType() == FunctionNode.FUNCTION_STATEMENT) {
+                    this.code(";");
+                }
+            } else {
+                this.whitespace(" ");
+                this.print(body, 0);
+            }
+        } else {
+            this.trimmed(body, depth);
+        }
+        if (functionNode.getFunctionType() == FunctionNode.FUNCTION_STATEMENT || functionNode.isMethod()) {
+            this.whitespace("\n");
+        }
+    }
+
+    private void ifStatement(IfStatement ifStatement, int depth) throws IOException {
+        AstNode thenPart = ifStatement.getThenPart();
+        AstNode elsePart = ifStatement.getElsePart();
+        this.indent(depth);
+        this.code("if (");
+        this.print(ifStatement.getCondition(), 0);
+        this.code(") ");
+        if (ifStatement.getInlineComment() != null) {
+            this.whitespace("    ");
+            this.print(ifStatement.getInlineComment(), 0);
+            this.whitespace("\n");
+        }
+        if (thenPart.getType() != Token.BLOCK) {
+            if (ifStatement.getInlineComment() == null) {
+                this.whitespace("\n");
+            }
+            this.indent(depth + 1);
+        }
+        this.trimmed(thenPart, depth);
+        if (elsePart != null) {
+            if (thenPart.getType() != Token.BLOCK) {
+                this.whitespace("\n");
+                this.indent(depth);
+                this.code("else ");
+            } else {
+                this.code(" else ");
+            }
+            if (ifStatement.getElseKeyWordInlineComment() != null) {
+                this.whitespace("    ");
+                this.print(ifStatement.getElseKeyWordInlineComment(), 0);
+                this.whitespace("\n");
+            }
+            if (elsePart.getType() != Token.BLOCK && elsePart.getType() != Token.IF) {
+                if (ifStatement.getElseKeyWordInlineComment() == null) {
+                    this.whitespace("\n");
+                }
+                this.indent(depth + 1);
+            }
+            this.trimmed(elsePart, depth);
+        }
+        this.whitespace("\n");
+    }
+
+    private void objectProperty(ObjectProperty objectProperty, int depth) throws IOException {
+        boolean colon = objectProperty.getType() == Token.COLON;
+        this.whitespace("\n");
+        this.indent(depth + 1);
+        if (objectProperty.isGetterMethod()) {
+            this.code("get ");
+        } else if (objectProperty.isSetterMethod()) {
+            this.code("set ");
+        }
+        this.print(objectProperty.getLeft(), colon ? 0 : depth);
+        if (colon) {
+            this.code(": ");
+        }
+        this.print(objectProperty.getRight(), colon ? 0 : depth + 1);
+    }
+
+    private void forLoop(ForLoop forLoop, int depth) throws IOException {
+        AstNode body = forLoop.getBody();
+        boolean comment = forLoop.getInlineComment() != null;
+        this.indent(depth);
+        this.code("for (");
+        this.print(forLoop.getInitializer(), 0);
+        this.code("; ");
+        this.print(forLoop.getCondition(), 0);
+        this.code("; ");
+        this.print(forLoop.getIncrement(), 0);
+        this.code(") ");
+        if (comment) {
+            this.print(forLoop.getInlineComment(), 0);
+            this.whitespace("\n");
+        }
+        if (body.getType() == Token.BLOCK) {
+            if (comment) {
+                this.print(body, depth);
+            } else {
+                this.trimmed(body, depth);
+            }
+            this.whitespace("\n");
+        } else {
+            if (!comment) {
+                this.whitespace("\n");
+            }
+            this.print(body, depth + 1);
+        }
+    }
+
+    private void forInLoop(ForInLoop forInLoop, int depth) throws IOException {
+        AstNode body = forInLoop.getBody();
+        this.indent(depth);
+        this.code("for ");
+        if (forInLoop.isForEach()) {
+            this.code("each ");
+        }
+        this.code("(");
+        this.print(forInLoop.getIterator(), 0);
+        this.code(forInLoop.isForOf() ? " of " : " in ");
+        this.print(forInLoop.getIteratedObject(), 0);
+        this.code(") ");
+        if (body.getType() == Token.BLOCK) {
+            this.trimmed(body, depth);
+            this.whitespace("\n");
+        } else {
+            this.whitespace("\n");
+            this.print(body, depth + 1);
+        }
+    }
+
+    private void whileLoop(WhileLoop whileLoop, int depth) throws IOException {
+        AstNode body = whileLoop.getBody();
+        this.indent(depth);
+        this.code("while (");
+        this.print(whileLoop.getCondition(), 0);
+        this.code(") ");
+        if (whileLoop.getInlineComment() != null) {
+            this.print(whileLoop.getInlineComment(), depth + 1);
+            this.whitespace("\n");
+        }
+        if (body.getType() == Token.BLOCK) {
+            this.trimmed(body, depth);
+            this.whitespace("\n");
+        } else {
+            if (whileLoop.getInlineComment() == null) {
+                this.whitespace("\n");
+            }
+            this.print(body, depth + 1);
+        }
+    }
+
+    private void withStatement(WithStatement withStatement, int depth) throws IOException {
+        AstNode statement = withStatement.getStatement();
+        this.indent(depth);
+        this.code("with (");
+        this.print(withStatement.getExpression(), 0);
+        this.code(") ");
+        this.inlineComment(withStatement, depth + 1);
+        if (statement.getType() == Token.BLOCK) {
+            if (withStatement.getInlineComment() != null) {
+                this.whitespace("\n");
+            }
+            this.trimmed(statement, depth);
+            this.whitespace("\n");
+        } else {
+            this.whitespace("\n");
+            this.print(statement, depth + 1);
+        }
+    }
+
+    private void switchCase(SwitchCase switchCase, int depth) throws IOException {
+        this.indent(depth);
+        if (switchCase.getExpression() == null) {
+            this.code("default:\n");
+        } else {
+            this.code("case ");
+            this.print(switchCase.getExpression(), 0);
+            this.code(":");
+            this.inlineComment(switchCase, depth + 1);
+            this.whitespace("\n");
+        }
+        if (switchCase.getStatements() != null) {
+            for (AstNode statement : switchCase.getStatements()) {
+                this.print(statement, depth + 1);
+                if (statement.getType() == Token.COMMENT
+                    && ((Comment) statement).getCommentType() == Token.CommentType.LINE) {
+                    this.whitespace("\n");
+                }
+            }
+        }
+    }
+
+    private void jump(String keyword, Name label, int depth) throws IOException {
+        this.indent(depth);
+        this.code(keyword);
+        if (label != null) {
+            this.whitespace(" ");
+            this.print(label, 0);
+        }
+        this.code(";\n");
+    }
+
+    private void tryStatement(TryStatement tryStatement, int depth) throws IOException {
+        this.indent(depth);
+        this.code("try ");
+        if (tryStatement.getInlineComment() != null) {
+            this.print(tryStatement.getInlineComment(), depth + 1);
+            this.whitespace("\n");
+        }
+        this.trimmed(tryStatement.getTryBlock(), depth);
+        for (CatchClause catchClause : tryStatement.getCatchClauses()) {
+            this.print(catchClause, depth);
+        }
+        if (tryStatement.getFinallyBlock() != null) {
+            this.code(" finally ");
+            this.print(tryStatement.getFinallyBlock(), depth);
+        }
+    }
+}
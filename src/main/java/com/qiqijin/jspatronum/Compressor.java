@@ -1,86 +1,294 @@
 package com.qiqijin.jspatronum;
 
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Collection;
-import java.util.Iterator;
-import java.util.List;
-
-import org.mozilla.javascript.ast.AstNode;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
 
+/**
+ *
+ * 流式压缩打印后的代码：逐字符词法扫描，删除注释和多余的空白，直接写到输出
+ * 字符串、正则和模板字符串原样复制，其余记号交给 TokenJoiner，只在标识符相连、运算符会粘连或换行影响自动分号时保留分隔符
+ * 语法树的压缩输出由 CodePrinter 打印，分隔规则是同一个 TokenJoiner
+ * 扫描是线性的，额外内存只有固定大小的读写缓冲区
+ * @author
+ */
 public class Compressor {
-	private AstNode astNode;
+    private static final int BUFFER_SIZE = 8192;
+
+    private Reader in;
+    private char[] inBuffer = new char[BUFFER_SIZE];
+    private int inPos;
+    private int inLimit;
+
+    private Writer out;
+    private char[] outBuffer = new char[BUFFER_SIZE];
+    private int outPos;
+
+    private TokenJoiner joiner;
+
+    public Compressor() {
+        this(new TokenJoiner());
+    }
+
+    /**
+     *
+     * @param joiner 分隔规则的状态，和 CodePrinter 共用时接着它的输出压缩
+     */
+    Compressor(TokenJoiner joiner) {
+        this.joiner = joiner;
+    }
 
-	/**
-	 *
-	 */
-	public Compressor(AstNode astNode) {
-        this.astNode = astNode; 
+    /**
+     *
+     * 从 in 读取代码，压缩后写到 out，不关闭两端
+     * @param in
+     * @param out
+     *
+     * @throws IOException
+     */
+    public void compress(Reader in, Writer out) throws IOException {
+        this.joiner.reset();
+        this.append(in, out);
     }
 
-    private String removeEnter(String source) {
-        String newStr = "";
-        for (int i = 0; i < source.length(); i++) {
-            if (source.charAt(i) != '\n') {
-                newStr += source.substring(i, i+1);
+    /**
+     *
+     * 接着 joiner 记住的上一个记号压缩，用于把一段代码接到已有的压缩输出后面
+     * 末尾删除的空白留在 joiner 里，由下一个记号决定是否保留
+     */
+    void append(Reader in, Writer out) throws IOException {
+        this.in = in;
+        this.out = out;
+        this.inPos = 0;
+        this.inLimit = 0;
+        this.outPos = 0;
+
+        int c;
+        while ((c = this.peek(0)) != -1) {
+            if (TokenJoiner.isLineTerminator(c)) {
+                this.inPos++;
+                this.joiner.newline();
+            } else if (isWhitespace(c)) {
+                this.inPos++;
+                this.joiner.space();
+            } else if (c == '/' && this.peek(1) == '/') {
+                this.skipLineComment();
+            } else if (c == '/' && this.peek(1) == '*') {
+                this.skipBlockComment();
+            } else if (this.isHtmlComment(c)) {
+                this.skipLineComment();
+            } else if (c == '/' && this.joiner.isRegexAllowed()) {
+                this.flushSeparator(c);
+                this.copyRegex();
+                this.joiner.literal();
+            } else if (c == '"' || c == '\'') {
+                this.flushSeparator(c);
+                this.copyString();
+                this.joiner.literal();
+            } else if (c == '`') {
+                this.flushSeparator(c);
+                this.copyTemplate();
+                this.joiner.literal();
+            } else if (TokenJoiner.isNameChar(c)) {
+                this.flushSeparator(c);
+                this.copyWord();
+            } else {
+                boolean separated = this.joiner.isSeparated();
+                this.flushSeparator(c);
+                this.inPos++;
+                this.joiner.punctuator(c, separated);
+                this.write(c);
             }
         }
-        return newStr;
-	}
-
-	private List<String> splitSource() {
-        String source = this.astNode.toSource();
-		source = this.removeEnter(source);
-		String[] sources = source.split(" ");
-		List<String> sourceList = new ArrayList<String>();
-		sourceList.addAll(Arrays.asList(sources));
-		Iterator<String> it = sourceList.iterator();
-		while (it.hasNext()) {
-			String sourceItem = it.next();
-			if (sourceItem.length() == 0) {
-				it.remove();
-			}
-		}
-		return sourceList;
-	}
-
-	private boolean isNameChar(char c) {
-        for (int i = 0; i < Build_in.varCharArray.length; i++) {
-            if (c == Build_in.varCharArray[i]) {
-                return true;
+        this.flush();
+    }
+
+    private int peek(int offset) throws IOException {
+        if (this.inPos + offset >= this.inLimit) {
+            int remaining = this.inLimit - this.inPos;
+            System.arraycopy(this.inBuffer, this.inPos, this.inBuffer, 0, remaining);
+            this.inPos = 0;
+            this.inLimit = remaining;
+            while (this.inLimit <= offset) {
+                int n = this.in.read(this.inBuffer, this.inLimit, this.inBuffer.length - this.inLimit);
+                if (n < 0) {
+                    return -1;
+                }
+                this.inLimit += n;
             }
         }
-        return false;
-	}
-
-    private boolean isCanMerge(String beforItem, String item) {
-        if (beforItem == null) {
-            return true;
-        }
-        char beforLastChar = beforItem.charAt(beforItem.length()-1);
-        char nowFirstChar = item.charAt(0);
-		if (Build_in.notNameSymbol.contains(beforLastChar) || Build_in.notNameSymbol.contains(nowFirstChar)) {
-            return true;
-        }
-        return false;
-    }
-
-	private String mergeSource(List<String> sourceList) {
-        String source = "";
-        String beforItem = null;
-        for (String item : sourceList) {
-			if (!isCanMerge(beforItem, item)) {
-				source += " ";
-			}
-			source += item;
-			beforItem = item;
-		}
-		return source;
-	}
-
-	public String compress() {
-		List<String> sourceList = this.splitSource();
-		String source = this.mergeSource(sourceList);
-		return source;
-	}
+        return this.inBuffer[this.inPos + offset];
+    }
+
+    private int read() throws IOException {
+        int c = this.peek(0);
+        if (c != -1) {
+            this.inPos++;
+        }
+        return c;
+    }
+
+    private void write(int c) throws IOException {
+        if (this.outPos == this.outBuffer.length) {
+            this.flush();
+        }
+        this.outBuffer[this.outPos++] = (char) c;
+        this.joiner.wrote(c);
+    }
+
+    private void flush() throws IOException {
+        this.out.write(this.outBuffer, 0, this.outPos);
+        this.outPos = 0;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\u000b' || c == '\f' || c == '\ufeff' ||
+            (c > 127 && Character.isSpaceChar(c));
+    }
+
+    /**
+     *
+     * 写入下一个记号前，写出被删除的空白需要保留的换行或空格
+     * @param c 下一个记号的首字符
+     */
+    private void flushSeparator(int c) throws IOException {
+        if (!this.joiner.isSeparated()) {
+            return;
+        }
+        int separator = this.joiner.separator(c, this.peek(1));
+        if (separator >= 0) {
+            this.write(separator);
+        }
+    }
+
+    /**
+     *
+     * &lt;!-- 和行首的 --&gt; 在浏览器和 Rhino 中都是单行注释
+     */
+    private boolean isHtmlComment(int c) throws IOException {
+        if (c == '<') {
+            return this.peek(1) == '!' && this.peek(2) == '-' && this.peek(3) == '-';
+        }
+        return c == '-' && this.joiner.isLineStart() &&
+            this.peek(1) == '-' && this.peek(2) == '>';
+    }
+
+    private void skipLineComment() throws IOException {
+        int c;
+        while ((c = this.peek(0)) != -1 && !TokenJoiner.isLineTerminator(c)) {
+            this.inPos++;
+        }
+        this.joiner.space();
+    }
+
+    private void skipBlockComment() throws IOException {
+        this.inPos += 2;
+        boolean newline = false;
+        int c;
+        while ((c = this.read()) != -1) {
+            if (c == '*' && this.peek(0) == '/') {
+                this.inPos++;
+                break;
+            }
+            newline |= TokenJoiner.isLineTerminator(c);
+        }
+        // 含换行的多行注释在自动分号规则里等同于换行
+        if (newline) {
+            this.joiner.newline();
+        } else {
+            this.joiner.space();
+        }
+    }
+
+    private void copyWord() throws IOException {
+        int c = this.peek(0);
+        this.joiner.beginWord(c);
+        while ((c = this.peek(0)) != -1 && TokenJoiner.isNameChar(c)) {
+            this.inPos++;
+            this.write(c);
+            this.joiner.wordChar((char) c);
+        }
+    }
+
+    private void copyString() throws IOException {
+        int quote = this.read();
+        this.write(quote);
+        int c;
+        while ((c = this.read()) != -1) {
+            this.write(c);
+            if (c == '\\') {
+                if ((c = this.read()) != -1) {
+                    this.write(c);
+                }
+            } else if (c == quote || TokenJoiner.isLineTerminator(c)) {
+                break;
+            }
+        }
+    }
+
+    private void copyRegex() throws IOException {
+        this.write(this.read());
+        boolean inClass = false;
+        int c;
+        while ((c = this.read()) != -1) {
+            this.write(c);
+            if (c == '\\') {
+                if ((c = this.read()) != -1) {
+                    this.write(c);
+                }
+            } else if (c == '[') {
+                inClass = true;
+            } else if (c == ']') {
+                inClass = false;
+            } else if ((c == '/' && !inClass) || TokenJoiner.isLineTerminator(c)) {
+                break;
+            }
+        }
+        // 标志位
+        while ((c = this.peek(0)) != -1 && TokenJoiner.isNameChar(c)) {
+            this.inPos++;
+            this.write(c);
+        }
+    }
+
+    private void copyTemplate() throws IOException {
+        this.write(this.read());
+        int c;
+        while ((c = this.read()) != -1) {
+            this.write(c);
+            if (c == '\\') {
+                if ((c = this.read()) != -1) {
+                    this.write(c);
+                }
+            } else if (c == '`') {
+                return;
+            } else if (c == '$' && this.peek(0) == '{') {
+                this.write(this.read());
+                this.copySubstitution();
+            }
+        }
+    }
+
+    /**
+     *
+     * 原样复制模板字符串中的 ${...}，只跟踪括号、字符串和嵌套的模板
+     */
+    private void copySubstitution() throws IOException {
+        int depth = 1;
+        int c;
+        while ((c = this.peek(0)) != -1) {
+            if (c == '"' || c == '\'') {
+                this.copyString();
+            } else if (c == '`') {
+                this.copyTemplate();
+            } else {
+                this.write(this.read());
+                if (c == '{') {
+                    depth++;
+                } else if (c == '}' && --depth == 0) {
+                    return;
+                }
+            }
+        }
+    }
 }
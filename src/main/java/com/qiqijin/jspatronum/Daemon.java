@@ -0,0 +1,509 @@
+package com.qiqijin.jspatronum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardProtocolFamily;
+import java.net.UnixDomainSocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.EnumSet;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ *
+ * 常驻的混淆守护进程，避免每次构建都付出 JVM 启动、类加载和 JIT 预热的开销
+ * 监听 Unix 域套接字或本机回环端口，每个连接是一次命令行调用，在守护进程里按客户端的工作目录执行 Main.run
+ * 作业以守护进程用户的权限读写文件，只接受同一用户的请求：
+ *   Unix 域套接字放在只有所有者能访问（0700）的目录里，套接字文件为 0600
+ *   回环端口任何本机用户都能连接，启动时生成随机令牌写入 ~/.jspatronum 下 0600 的文件，请求必须带上令牌
+ * 协议中的整数都是大端序，字符串和字节串都是 4 字节长度加内容：
+ *   请求：MAGIC、类型、令牌（Unix 域套接字为空串）；作业请求接着是参数个数、各参数、工作目录、标准输入（长度 -1 表示没有）
+ *   响应：'O' 标准输出、'E' 标准错误，最后是 'X' 退出码
+ * 作业在固定数量的工作线程上执行，等待队列已满时立即拒绝，超时的作业被取消，停下后才响应客户端
+ * 收到停止请求或 JVM 退出时先关闭监听，再等待已接受的作业完成
+ * @author
+ */
+public class Daemon {
+    static final int MAGIC = 0x4A535044;
+    static final int REQUEST_JOB = 1;
+    static final int REQUEST_STOP = 2;
+    static final int FRAME_STDOUT = 'O';
+    static final int FRAME_STDERR = 'E';
+    static final int FRAME_EXIT = 'X';
+    /**
+     * 等待队列已满或正在停止
+     */
+    static final int EXIT_BUSY = 75;
+    /**
+     * 作业超时
+     */
+    static final int EXIT_TIMEOUT = 124;
+    /**
+     * 令牌不对
+     */
+    static final int EXIT_DENIED = 77;
+
+    private static final int MAX_FRAME = 1 << 30;
+    private static final int MAX_ARGS = 1 << 16;
+    private static final int TOKEN_BYTES = 32;
+    private static final int WARM_UP_ROUNDS = 20;
+    private static final String WARM_UP_SOURCE =
+        "var config = {name: \"demo\", items: [1, 2, 3], enabled: true};\n"
+        + "function sum(items) {\n"
+        + "  var total = 0;\n"
+        + "  for (var i = 0; i < items.length; i++) {\n"
+        + "    total += items[i];\n"
+        + "  }\n"
+        + "  return total;\n"
+        + "}\n"
+        + "function describe(config) {\n"
+        + "  var message = \"name: \" + config.name + \", total: \" + sum(config.items);\n"
+        + "  if (config.enabled) {\n"
+        + "    console.log(message);\n"
+        + "  } else {\n"
+        + "    message = message.toUpperCase();\n"
+        + "  }\n"
+        + "  return message;\n"
+        + "}\n"
+        + "describe(config);\n";
+
+    private SocketAddress address;
+    private ThreadPoolExecutor workers;
+    private ExecutorService connections = Executors.newVirtualThreadPerTaskExecutor();
+    private long timeoutMillis;
+    private ServerSocketChannel serverChannel;
+    private AtomicBoolean stopping = new AtomicBoolean();
+    private CountDownLatch terminated = new CountDownLatch(1);
+    private PrintStream log = System.err;
+    private byte[] token;
+    private Path tokenFile;
+
+    /**
+     *
+     * @param address 监听地址
+     * @param jobs 同时执行的作业数
+     * @param queue 等待队列的容量
+     * @param timeoutMillis 每个作业从提交到完成的时间上限
+     */
+    public Daemon(SocketAddress address, int jobs, int queue, long timeoutMillis) {
+        this.address = address;
+        this.workers = new ThreadPoolExecutor(Math.max(jobs, 1), Math.max(jobs, 1), 0L, TimeUnit.MILLISECONDS,
+                                              new ArrayBlockingQueue<Runnable>(Math.max(queue, 1)));
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     *
+     * 解析命令行中的地址，纯数字为本机回环端口，否则为 Unix 域套接字的路径
+     * @param spec
+     * @return
+     */
+    public static SocketAddress address(String spec) {
+        if (spec.matches("\\d+")) {
+            return new InetSocketAddress(InetAddress.getLoopbackAddress(), Integer.parseInt(spec));
+        }
+        return UnixDomainSocketAddress.of(spec);
+    }
+
+    /**
+     *
+     * 回环端口的令牌文件，守护进程和客户端按端口号找到同一个文件
+     */
+    static Path tokenFile(int port) {
+        return Paths.get(System.getProperty("user.home"), ".jspatronum", "daemon-" + port + ".token");
+    }
+
+    /**
+     *
+     * 请求中要带的令牌，Unix 域套接字为空串
+     * @throws IOException 读不到回环端口的令牌文件
+     */
+    static String token(SocketAddress address) throws IOException {
+        if (address instanceof InetSocketAddress) {
+            return Files.readString(tokenFile(((InetSocketAddress) address).getPort()), StandardCharsets.UTF_8).trim();
+        }
+        return "";
+    }
+
+    private static boolean isPosix(Path path) {
+        return path.getFileSystem().supportedFileAttributeViews().contains("posix");
+    }
+
+    /**
+     *
+     * 确保目录只有所有者能访问：不存在时创建为 0700，已存在时必须属于当前用户且组和其他用户没有任何权限
+     */
+    private static void privateDirectory(Path dir) throws IOException {
+        if (Files.notExists(dir)) {
+            Files.createDirectories(dir);
+            if (isPosix(dir)) {
+                // 不受 umask 影响
+                Files.setPosixFilePermissions(dir, PosixFilePermissions.fromString("rwx------"));
+            }
+            return;
+        }
+        if (!isPosix(dir)) {
+            return;
+        }
+        UserPrincipal user = dir.getFileSystem().getUserPrincipalLookupService()
+            .lookupPrincipalByName(System.getProperty("user.name"));
+        Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(dir);
+        permissions.removeAll(EnumSet.of(PosixFilePermission.OWNER_READ, PosixFilePermission.OWNER_WRITE,
+                                         PosixFilePermission.OWNER_EXECUTE));
+        if (!Files.getOwner(dir).equals(user) || !permissions.isEmpty()) {
+            throw new IOException(dir + " must be a directory that only its owner can access (chmod 700)");
+        }
+    }
+
+    static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        if (bytes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    static byte[] readBytes(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > MAX_FRAME) {
+            throw new IOException("bad frame length " + length);
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    static void writeString(DataOutputStream out, String string) throws IOException {
+        writeBytes(out, string.getBytes(StandardCharsets.UTF_8));
+    }
+
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = readBytes(in);
+        if (bytes == null) {
+            throw new IOException("missing string");
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     *
+     * 绑定监听地址；Unix 域套接字文件已存在但没有进程监听时，视为上次异常退出留下的文件并删除
+     */
+    private ServerSocketChannel bind() throws IOException {
+        if (this.address instanceof UnixDomainSocketAddress) {
+            UnixDomainSocketAddress unix = (UnixDomainSocketAddress) this.address;
+            privateDirectory(unix.getPath().toAbsolutePath().getParent());
+            if (Files.exists(unix.getPath())) {
+                try {
+                    SocketChannel.open(unix).close();
+                    throw new IOException("a daemon is already listening on " + unix.getPath());
+                } catch (ConnectException e) {
+                    Files.delete(unix.getPath());
+                }
+            }
+            ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX).bind(unix);
+            if (isPosix(unix.getPath())) {
+                Files.setPosixFilePermissions(unix.getPath(), PosixFilePermissions.fromString("rw-------"));
+            }
+            return channel;
+        }
+        return ServerSocketChannel.open().bind(this.address);
+    }
+
+    /**
+     *
+     * 生成这次运行的令牌，写入只有所有者能读写的文件
+     * @param port 实际监听的端口
+     */
+    private void writeToken(int port) throws IOException {
+        byte[] random = new byte[TOKEN_BYTES];
+        new SecureRandom().nextBytes(random);
+        StringBuilder builder = new StringBuilder();
+        for (byte b : random) {
+            builder.append(String.format("%02x", b));
+        }
+        this.token = builder.toString().getBytes(StandardCharsets.UTF_8);
+        this.tokenFile = tokenFile(port);
+        privateDirectory(this.tokenFile.getParent());
+        Files.deleteIfExists(this.tokenFile);
+        if (isPosix(this.tokenFile)) {
+            Files.createFile(this.tokenFile, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+        } else {
+            Files.createFile(this.tokenFile);
+        }
+        Files.write(this.tokenFile, this.token);
+    }
+
+    /**
+     *
+     * 用内置的样例把所有 pass 执行若干次，加载类并让 JIT 编译热点方法
+     */
+    private void warmUp(PrintStream log) {
+        Options options = new Options();
+        options.setCompress(Boolean.TRUE);
+        options.setDisableConsole(Boolean.TRUE);
+        options.setControlFlow(Boolean.TRUE);
+        options.setHostName("localhost");
+        long start = System.nanoTime();
+        for (int i = 0; i < WARM_UP_ROUNDS; i++) {
+            FileJob job = new FileJob("-", null, options);
+            job.setStdin(new ByteArrayInputStream(WARM_UP_SOURCE.getBytes(StandardCharsets.UTF_8)));
+            if (job.call().getFailure() != null) {
+                log.println("[WARNING] warm-up failed: " + job.getFailure());
+                return;
+            }
+        }
+        log.println("warmed up in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+
+    /**
+     *
+     * 监听并处理请求，直到收到停止请求或 JVM 退出
+     * @param log 守护进程自己的日志输出
+     *
+     * @throws IOException 无法绑定监听地址
+     */
+    public void serve(PrintStream log) throws IOException {
+        this.log = log;
+        this.serverChannel = this.bind();
+        Thread hook = new Thread(this::stopAndWait);
+        Runtime.getRuntime().addShutdownHook(hook);
+        try {
+            if (this.serverChannel.getLocalAddress() instanceof InetSocketAddress) {
+                this.writeToken(((InetSocketAddress) this.serverChannel.getLocalAddress()).getPort());
+                log.println("token written to " + this.tokenFile);
+            }
+            this.warmUp(log);
+            log.println("JsPatronum daemon listening on " + this.address);
+            while (true) {
+                SocketChannel channel = this.serverChannel.accept();
+                this.connections.execute(() -> this.handle(channel));
+            }
+        } catch (ClosedChannelException e) {
+            // stop() 关闭了监听
+        } finally {
+            this.stop();
+            this.drain(log);
+            try {
+                Runtime.getRuntime().removeShutdownHook(hook);
+            } catch (IllegalStateException e) {
+                // JVM 正在退出，钩子正等待 terminated
+            }
+            this.terminated.countDown();
+        }
+    }
+
+    /**
+     *
+     * 停止接受新连接，已接受的作业继续执行
+     */
+    public void stop() {
+        if (!this.stopping.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            this.serverChannel.close();
+        } catch (IOException e) {
+            e.printStackTrace(this.log);
+        }
+    }
+
+    private void stopAndWait() {
+        this.stop();
+        try {
+            this.terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     *
+     * 等待已接受的连接全部响应完毕，每个连接最多等待一个作业超时
+     */
+    private void drain(PrintStream log) {
+        this.connections.shutdown();
+        this.workers.shutdown();
+        try {
+            if (!this.connections.awaitTermination(this.timeoutMillis + 1000L, TimeUnit.MILLISECONDS)) {
+                log.println("[WARNING] some clients did not receive a response");
+            }
+            if (!this.workers.awaitTermination(1000L, TimeUnit.MILLISECONDS)) {
+                this.workers.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            this.workers.shutdownNow();
+        }
+        try {
+            if (this.address instanceof UnixDomainSocketAddress) {
+                Files.deleteIfExists(((UnixDomainSocketAddress) this.address).getPath());
+            }
+            if (this.tokenFile != null) {
+                Files.deleteIfExists(this.tokenFile);
+            }
+        } catch (IOException e) {
+            e.printStackTrace(log);
+        }
+        log.println("JsPatronum daemon stopped");
+    }
+
+    private void handle(SocketChannel channel) {
+        try (SocketChannel c = channel) {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(c)));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(c)));
+            if (in.readInt() != MAGIC) {
+                return;
+            }
+            int type = in.readInt();
+            byte[] token = readBytes(in);
+            if (this.token != null && (token == null || !MessageDigest.isEqual(this.token, token))) {
+                respond(out, new byte[0], "[ERROR] wrong daemon token\n".getBytes(StandardCharsets.UTF_8), EXIT_DENIED);
+                return;
+            }
+            if (type == REQUEST_STOP) {
+                respond(out, new byte[0], "JsPatronum daemon stopping\n".getBytes(StandardCharsets.UTF_8), 0);
+                this.stop();
+                return;
+            }
+            if (type != REQUEST_JOB) {
+                return;
+            }
+            int argc = in.readInt();
+            if (argc < 0 || argc > MAX_ARGS) {
+                return;
+            }
+            String[] args = new String[argc];
+            for (int i = 0; i < argc; i++) {
+                args[i] = readString(in);
+            }
+            File cwd = new File(readString(in));
+            byte[] stdin = readBytes(in);
+
+            ByteArrayOutputStream stdout = new ByteArrayOutputStream();
+            ByteArrayOutputStream stderr = new ByteArrayOutputStream();
+            int code = this.execute(args, cwd, stdin, stdout, stderr);
+            respond(out, stdout.toByteArray(), stderr.toByteArray(), code);
+        } catch (IOException e) {
+            // 客户端断开或请求格式错误，放弃这次请求
+        }
+    }
+
+    /**
+     *
+     * 把作业交给工作线程并等待结果
+     * 超时时取消还在排队的作业；已经开始的作业被中断，等它真正停下（临时文件已删除、不会再写输出）后才返回
+     * @return 退出码
+     */
+    private int execute(String[] args, File cwd, byte[] stdin, ByteArrayOutputStream stdout,
+                        ByteArrayOutputStream stderr) {
+        final PrintStream out = new PrintStream(stdout, true, StandardCharsets.UTF_8);
+        final PrintStream err = new PrintStream(stderr, true, StandardCharsets.UTF_8);
+        final InputStream in = stdin == null ? InputStream.nullInputStream() : new ByteArrayInputStream(stdin);
+        // 0 排队，1 执行中，2 超时前没有开始
+        final AtomicInteger state = new AtomicInteger();
+        final CountDownLatch finished = new CountDownLatch(1);
+        Future<Integer> future;
+        try {
+            future = this.workers.submit(() -> {
+                if (!state.compareAndSet(0, 1)) {
+                    return Integer.valueOf(EXIT_TIMEOUT);
+                }
+                try {
+                    return Integer.valueOf(Main.run(args, cwd, in, out, err));
+                } finally {
+                    finished.countDown();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            err.println(this.workers.isShutdown() ? "[ERROR] daemon is stopping"
+                        : "[ERROR] daemon is busy, " + this.workers.getQueue().size() + " job(s) waiting");
+            return EXIT_BUSY;
+        }
+        try {
+            return future.get(this.timeoutMillis, TimeUnit.MILLISECONDS).intValue();
+        } catch (TimeoutException e) {
+            if (state.compareAndSet(0, 2)) {
+                future.cancel(false);
+            } else {
+                // 中断后在下一次检查时停止
+                future.cancel(true);
+                awaitUninterruptibly(finished);
+            }
+            err.println("[ERROR] job timed out after " + this.timeoutMillis + " ms");
+            return EXIT_TIMEOUT;
+        } catch (ExecutionException e) {
+            e.getCause().printStackTrace(err);
+            return 1;
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            err.println("[ERROR] interrupted");
+            return 1;
+        }
+    }
+
+    private static void awaitUninterruptibly(CountDownLatch latch) {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                latch.await();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void respond(DataOutputStream out, byte[] stdout, byte[] stderr, int code) throws IOException {
+        out.writeByte(FRAME_STDOUT);
+        writeBytes(out, stdout);
+        out.writeByte(FRAME_STDERR);
+        writeBytes(out, stderr);
+        out.writeByte(FRAME_EXIT);
+        out.writeInt(code);
+        out.flush();
+    }
+}
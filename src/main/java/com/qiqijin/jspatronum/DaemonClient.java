@@ -0,0 +1,90 @@
+package com.qiqijin.jspatronum;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.net.SocketAddress;
+import java.nio.channels.Channels;
+import java.nio.channels.SocketChannel;
+
+/**
+ *
+ * 守护进程的客户端，把命令行参数、工作目录和标准输入转发给守护进程，并原样输出结果
+ * 协议见 Daemon
+ * @author
+ */
+public class DaemonClient {
+    /**
+     * 无法连接守护进程
+     */
+    static final int EXIT_UNAVAILABLE = 69;
+
+    /**
+     *
+     * 在守护进程中执行一次命令行调用
+     * @param address 守护进程的地址
+     * @param args 去掉 --connect 后的参数
+     * @param cwd 相对路径的基准目录
+     * @param stdin 转发的标准输入，没有时为 null
+     * @param out
+     * @param err
+     * @return 守护进程返回的退出码
+     */
+    public static int forward(SocketAddress address, String[] args, File cwd, byte[] stdin,
+                              PrintStream out, PrintStream err) {
+        return exchange(address, args, cwd, stdin, out, err);
+    }
+
+    /**
+     *
+     * 请求守护进程在已接受的作业完成后退出
+     * @param address
+     * @param out
+     * @param err
+     * @return
+     */
+    public static int stop(SocketAddress address, PrintStream out, PrintStream err) {
+        return exchange(address, null, null, null, out, err);
+    }
+
+    private static int exchange(SocketAddress address, String[] args, File cwd, byte[] stdin,
+                                PrintStream out, PrintStream err) {
+        try (SocketChannel channel = SocketChannel.open(address)) {
+            DataOutputStream request = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+            request.writeInt(Daemon.MAGIC);
+            request.writeInt(args == null ? Daemon.REQUEST_STOP : Daemon.REQUEST_JOB);
+            Daemon.writeString(request, Daemon.token(address));
+            if (args != null) {
+                request.writeInt(args.length);
+                for (String arg : args) {
+                    Daemon.writeString(request, arg);
+                }
+                Daemon.writeString(request, cwd.getAbsolutePath());
+                Daemon.writeBytes(request, stdin);
+            }
+            request.flush();
+
+            DataInputStream response = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            while (true) {
+                int frame = response.readUnsignedByte();
+                if (frame == Daemon.FRAME_EXIT) {
+                    out.flush();
+                    err.flush();
+                    return response.readInt();
+                }
+                byte[] bytes = Daemon.readBytes(response);
+                if (bytes != null) {
+                    PrintStream target = frame == Daemon.FRAME_STDOUT ? out : err;
+                    target.write(bytes, 0, bytes.length);
+                }
+            }
+        } catch (IOException e) {
+            err.println("[ERROR] daemon at " + address + ": " + e);
+            return EXIT_UNAVAILABLE;
+        }
+    }
+}
@@ -0,0 +1,398 @@
+package com.qiqijin.jspatronum;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+import org.mozilla.javascript.ErrorReporter;
+import org.mozilla.javascript.EvaluatorException;
+
+/**
+ *
+ * 单个文件的混淆任务
+ * 警告和错误先写入任务自己的缓冲区，由 BatchRunner 按输入顺序输出，避免多线程时交错
+ * @author
+ */
+public class FileJob implements Callable<FileJob> {
+    private String inputFilename;
+    private String outputFilename;
+    private Options options;
+    private Charset charset;
+    private StringWriter diagnostics = new StringWriter();
+    private byte[] output;
+    private Throwable failure;
+    private Profile profile;
+    private SizeReport sizeReport;
+    private PrintWriter log;
+    private BuildCache cache;
+    private InputStream stdin = System.in;
+
+    /**
+     *
+     * @param inputFilename 输入文件，"-" 表示标准输入
+     * @param outputFilename 输出文件，为 null 时结果缓存起来写到标准输出
+     * @param options 混淆选项
+     */
+    public FileJob(String inputFilename, String outputFilename, Options options) {
+        this.inputFilename = inputFilename;
+        this.outputFilename = outputFilename;
+        this.options = options;
+        this.charset = SourceIO.charset(options);
+    }
+
+    private ErrorReporter createErrorReporter() {
+        final PrintWriter err = new PrintWriter(this.diagnostics, true);
+        final String localFilename = this.inputFilename;
+        return new ErrorReporter() {
+            public void warning(String message, String sourceName, int line,
+                                String lineSource, int lineOffset) {
+                err.println("\n[WARNING] in " + localFilename);
+                if (line < 0) {
+                    err.println("  " + message);
+                } else {
+                    err.println("  " + line + ':' + lineOffset + ':' + message);
+                }
+            }
+
+            public void error(String message, String sourceName, int line,
+                              String lineSource, int lineOffset) {
+                err.println("[ERROR] in " + localFilename);
+                if (line < 0) {
+                    err.println("  " + message);
+                } else {
+                    err.println("  " + line + ':' + lineOffset + ':' + message);
+                }
+            }
+
+            public EvaluatorException runtimeError(String message, String sourceName, int line,
+                                                   String lineSource, int lineOffset) {
+                error(message, sourceName, line, lineSource, lineOffset);
+                return new EvaluatorException(message);
+            }
+        };
+    }
+
+    private ByteBuffer readInput() throws IOException {
+        if (this.inputFilename.equals("-")) {
+            return ByteBuffer.wrap(this.stdin.readAllBytes());
+        }
+        return SourceIO.read(Paths.get(this.inputFilename));
+    }
+
+    private void writeOutput(byte[] bytes) throws IOException {
+        if (this.outputFilename == null) {
+            this.output = bytes;
+        } else {
+            // 已取消的任务不再覆盖输出文件
+            PassManager.checkInterrupted();
+            SourceIO.write(Paths.get(this.outputFilename), bytes);
+        }
+    }
+
+    /**
+     *
+     * 解析并执行混淆
+     * @param source 解码后的输入
+     */
+    private Obfuscator obfuscate(String source, Options options) throws IOException {
+        if (options.getProfile() != null) {
+            this.profile = new Profile(this.inputFilename);
+            this.profile.begin("parse", null);
+        }
+        Obfuscator obfuscator = new Obfuscator(new StringReader(source), options, this.createErrorReporter());
+        obfuscator.setRandomStreams(RandomStreams.forFile(options.getSeed(), source));
+        if (this.profile != null) {
+            this.profile.end(obfuscator.getAstRoot());
+            obfuscator.setProfile(this.profile);
+        }
+        if (this.sizeReport != null) {
+            obfuscator.setSizeReport(this.sizeReport);
+        }
+        if (isTrue(options.getVerbose())) {
+            obfuscator.setLog(this.log);
+        }
+        if (options.getProfileDriver() != null) {
+            // profile 时按位置对应函数，需要和解析时相同的代码
+            obfuscator.excludeHotFunctions(source);
+        }
+        obfuscator.obfuscate();
+        return obfuscator;
+    }
+
+    private void emit(Obfuscator obfuscator, Writer out) throws IOException {
+        if (this.profile != null) {
+            this.profile.begin("emit", obfuscator.getAstRoot());
+        }
+        obfuscator.compress(out);
+        if (this.profile != null) {
+            this.profile.end(obfuscator.getAstRoot());
+        }
+    }
+
+    private String emit(Obfuscator obfuscator) throws IOException {
+        StringWriter out = new StringWriter();
+        this.emit(obfuscator, out);
+        return out.toString();
+    }
+
+    private static boolean isTrue(Boolean value) {
+        return value != null && value.booleanValue();
+    }
+
+    /**
+     *
+     * 超过 --max-expansion 时依次尝试的配置，混淆强度从高到低：压缩输出、切换字符串表的存储方式、关闭控制流混淆
+     * 字符串表按单词还是按字符存储更小取决于代码，两种都试；hoisted 谓词的变量名较长，并不更小
+     * @return 改动的说明到选项
+     */
+    private static Map<String, Options> fallbacks(Options options) {
+        Map<String, Options> fallbacks = new LinkedHashMap<String, Options>();
+        List<String> changes = new ArrayList<String>();
+        Options compressed = options.copy();
+        if (!isTrue(options.getCompress())) {
+            compressed.setCompress(Boolean.TRUE);
+            changes.add("-c");
+            fallbacks.put("-c", compressed);
+        }
+        boolean dictionary = isTrue(options.getStringDictionary());
+        Options toggled = compressed.copy();
+        toggled.setStringDictionary(Boolean.valueOf(!dictionary));
+        String toggle = dictionary ? "no --string-dictionary" : "--string-dictionary";
+        fallbacks.put(describe(changes, toggle), toggled);
+        if (isTrue(options.getControlFlow())) {
+            Options plain = compressed.copy();
+            plain.setControlFlow(Boolean.FALSE);
+            fallbacks.put(describe(changes, "no -f"), plain);
+            Options plainToggled = toggled.copy();
+            plainToggled.setControlFlow(Boolean.FALSE);
+            fallbacks.put(describe(changes, "no -f", toggle), plainToggled);
+        }
+        return fallbacks;
+    }
+
+    private static String describe(List<String> changes, String... more) {
+        List<String> all = new ArrayList<String>(changes);
+        all.addAll(Arrays.asList(more));
+        return String.join(", ", all);
+    }
+
+    /**
+     *
+     * 输出超过压缩后输入的 --max-expansion 倍时，按 --expansion-fallback 换更省的配置重新混淆，都超过时失败
+     * 和压缩后的输入比较，输入里的注释和空白不会放宽限制
+     * @param source 解码后的输入
+     * @param result 按当前选项混淆的结果
+     * @return 不超过限制的结果
+     */
+    private String limitExpansion(String source, String result) throws IOException {
+        double limit = this.options.getMaxExpansion().doubleValue();
+        long base = SizeReport.minify(source).getBytes(this.charset).length;
+        double expansion = base == 0 ? 0 : (double) result.getBytes(this.charset).length / base;
+        if (expansion <= limit) {
+            return result;
+        }
+        String message = String.format("output is %.2fx the minified input, over --max-expansion %s",
+                                       expansion, this.options.getMaxExpansion());
+        if (!isTrue(this.options.getExpansionFallback())) {
+            throw new IllegalStateException(message);
+        }
+        double smallest = expansion;
+        for (Map.Entry<String, Options> fallback : fallbacks(this.options).entrySet()) {
+            if (this.sizeReport != null) {
+                this.sizeReport = new SizeReport();
+                this.sizeReport.add("input", source);
+            }
+            String retried = this.emit(this.obfuscate(source, fallback.getValue()));
+            double retriedExpansion = (double) retried.getBytes(this.charset).length / base;
+            if (retriedExpansion <= limit) {
+                this.diagnostics.write(String.format("\n[WARNING] in %s\n  %s, using %s (%.2fx)\n",
+                                                     this.inputFilename, message, fallback.getKey(), retriedExpansion));
+                return retried;
+            }
+            smallest = Math.min(smallest, retriedExpansion);
+        }
+        throw new IllegalStateException(String.format("%s, smallest fallback is %.2fx", message, smallest));
+    }
+
+    /**
+     *
+     * 执行混淆，任何异常都记录在任务中而不向外抛出，以免影响其他文件
+     * 嵌套过深的输入会让解析和遍历栈溢出，也只算这个文件失败；内存耗尽等虚拟机错误仍然抛出
+     */
+    @Override
+    public FileJob call() {
+        Writer out = null;
+        try {
+            ByteBuffer input = this.readInput();
+            String key = null;
+            if (this.cache != null) {
+                // 命中时直接输出缓存，不解析
+                key = this.cache.key(input, this.options);
+                byte[] cached = this.cache.get(key);
+                if (cached != null) {
+                    this.writeOutput(cached);
+                    return this;
+                }
+            }
+            String source = SourceIO.decode(input, this.charset);
+            input = null;
+            boolean sizeReport = isTrue(this.options.getSizeReport());
+            if (isTrue(this.options.getVerbose()) || sizeReport) {
+                this.log = new PrintWriter(this.diagnostics, true);
+                this.log.println("[INFO] in " + this.inputFilename);
+            }
+            if (sizeReport) {
+                this.sizeReport = new SizeReport();
+                this.sizeReport.add("input", source);
+            }
+
+            Obfuscator obfuscator = this.obfuscate(source, this.options);
+            if (this.outputFilename != null && this.cache == null && this.options.getMaxExpansion() == null && !sizeReport) {
+                // 边编码边写入临时文件，不生成整个输出的字符串和字节数组
+                SourceIO.AtomicWriter file = new SourceIO.AtomicWriter(Paths.get(this.outputFilename), this.charset);
+                out = file;
+                this.emit(obfuscator, file);
+                // 取消时由 finally 关闭并删除临时文件
+                PassManager.checkInterrupted();
+                file.commit();
+                return this;
+            }
+
+            // 写缓存、检查大小都需要完整的结果
+            String result = this.emit(obfuscator);
+            if (this.options.getMaxExpansion() != null) {
+                result = this.limitExpansion(source, result);
+            }
+            if (this.sizeReport != null) {
+                this.sizeReport.add("output", result);
+                this.sizeReport.write(this.log);
+            }
+            byte[] bytes = result.getBytes(this.charset);
+            this.writeOutput(bytes);
+            if (this.cache != null) {
+                this.putCache(key, bytes);
+            }
+        } catch (IOException | RuntimeException | StackOverflowError e) {
+            this.failure = e;
+        } catch (VirtualMachineError e) {
+            throw e;
+        } catch (Error e) {
+            this.failure = e;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    if (this.failure == null) {
+                        this.failure = e;
+                    }
+                }
+            }
+        }
+        return this;
+    }
+
+    /**
+     *
+     * 写缓存失败不影响本次输出，只记录警告
+     */
+    private void putCache(String key, byte[] bytes) {
+        try {
+            this.cache.put(key, bytes);
+        } catch (IOException e) {
+            this.diagnostics.write("\n[WARNING] in " + this.inputFilename + "\n  cache: " + e + "\n");
+        }
+    }
+
+    /**
+     *
+     * 输入文件的字节数，用于大文件优先调度；标准输入视为 0
+     * @return
+     */
+    public long getInputSize() {
+        if (this.inputFilename.equals("-")) {
+            return 0;
+        }
+        return new File(this.inputFilename).length();
+    }
+
+    /**
+     * @return the inputFilename
+     */
+    public String getInputFilename() {
+        return inputFilename;
+    }
+
+    /**
+     * @return the outputFilename
+     */
+    public String getOutputFilename() {
+        return outputFilename;
+    }
+
+    /**
+     * @return 缓存的警告和错误信息
+     */
+    public String getDiagnostics() {
+        return diagnostics.toString();
+    }
+
+    /**
+     * @return 没有指定输出文件时的混淆结果，按 --charset 编码
+     */
+    public byte[] getOutput() {
+        return output;
+    }
+
+    /**
+     * @return 任务失败的原因，成功时为 null
+     */
+    public Throwable getFailure() {
+        return failure;
+    }
+
+    /**
+     *
+     * 设置共享的输出缓存
+     * @param cache
+     */
+    public void setCache(BuildCache cache) {
+        this.cache = cache;
+    }
+
+    /**
+     *
+     * 设置输入文件为 "-" 时读取的流，默认为 System.in
+     * @param stdin
+     */
+    public void setStdin(InputStream stdin) {
+        this.stdin = stdin;
+    }
+
+    /**
+     * @return 各阶段的统计，未开启 --profile 时为 null
+     */
+    public Profile getProfile() {
+        return profile;
+    }
+
+    /**
+     * @return 各阶段之后的代码大小，未开启 --size-report 时为 null
+     */
+    public SizeReport getSizeReport() {
+        return sizeReport;
+    }
+}
@@ -0,0 +1,360 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.ContextFactory;
+import org.mozilla.javascript.IRFactory;
+import org.mozilla.javascript.Interpreter;
+import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.ScriptNode;
+import org.mozilla.javascript.debug.DebugFrame;
+import org.mozilla.javascript.debug.DebuggableScript;
+import org.mozilla.javascript.debug.Debugger;
+
+/**
+ *
+ * 在嵌入的 Rhino 中执行原始代码和驱动脚本，统计每个函数的调用次数、总耗时和自身耗时
+ * 以解释模式执行，通过 Debugger 的 onEnter/onExit 计时；函数按在原始代码中的起始位置对应到混淆器的语法树
+ * 控制流平坦化和不透明谓词会跳过选出的热点函数
+ * 驱动脚本可能来自第三方：作用域只有 ECMAScript 标准对象，不能访问 Java；执行的指令数有上限，死循环也会停下
+ * @author
+ */
+public class HotFunctionProfiler {
+    /**
+     * 检查中断的指令间隔，守护进程超时取消任务时驱动脚本也能停下
+     */
+    private static final int INSTRUCTION_THRESHOLD = 100000;
+
+    /**
+     * 原始代码和驱动脚本合计最多执行的解释器指令数，大约相当于十几秒
+     */
+    static final long MAX_INSTRUCTIONS = 1000000000L;
+
+    private static final ContextFactory contextFactory = new ContextFactory() {
+            @Override
+            protected Context makeContext() {
+                return new CountingContext(this);
+            }
+
+            @Override
+            protected void observeInstructionCount(Context cx, int instructionCount) {
+                if (Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("interrupted while running the profile driver");
+                }
+                CountingContext counting = (CountingContext) cx;
+                counting.instructions += instructionCount;
+                if (counting.instructions > MAX_INSTRUCTIONS) {
+                    throw new BudgetExceededError("the profile driver ran more than " + MAX_INSTRUCTIONS + " instructions");
+                }
+            }
+        };
+
+    /**
+     *
+     * 记录已执行指令数的 Context
+     */
+    private static class CountingContext extends Context {
+        private long instructions;
+
+        CountingContext(ContextFactory factory) {
+            super(factory);
+        }
+    }
+
+    /**
+     *
+     * 执行的指令数超过 MAX_INSTRUCTIONS
+     * 是 Error 而不是 RhinoException，脚本里的 catch 和 finally 都拦不住，已收集的统计仍然有效
+     */
+    public static class BudgetExceededError extends Error {
+        private static final long serialVersionUID = 1L;
+
+        BudgetExceededError(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     *
+     * 一个函数（或顶层脚本）的统计
+     */
+    public static class FunctionStats {
+        private String name;
+        private int line;
+        private int position;
+        private AstNode node;
+        private long calls;
+        private long totalTime;
+        private long selfTime;
+        private int active;
+
+        FunctionStats(String name, int line, int position) {
+            this.name = name;
+            this.line = line;
+            this.position = position;
+        }
+
+        /**
+         * @return 函数名，匿名函数为空串，顶层脚本为 "(top level)"
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return 函数所在的行
+         */
+        public int getLine() {
+            return line;
+        }
+
+        /**
+         * @return 混淆器语法树中对应的节点，顶层脚本为 AstRoot，没有对应时为 null
+         */
+        public AstNode getNode() {
+            return node;
+        }
+
+        /**
+         * @return 调用次数
+         */
+        public long getCalls() {
+            return calls;
+        }
+
+        /**
+         * @return 包括被调函数的耗时，递归调用只计最外层，单位纳秒
+         */
+        public long getTotalTime() {
+            return totalTime;
+        }
+
+        /**
+         * @return 不包括被调函数的耗时，单位纳秒
+         */
+        public long getSelfTime() {
+            return selfTime;
+        }
+    }
+
+    /**
+     *
+     * 一次调用的计时，自身耗时为总耗时减去被调函数的耗时
+     */
+    private class Frame implements DebugFrame {
+        private FunctionStats stats;
+        private long start;
+        private long children;
+
+        Frame(FunctionStats stats) {
+            this.stats = stats;
+        }
+
+        @Override
+        public void onEnter(Context cx, Scriptable activation, Scriptable thisObj, Object[] args) {
+            this.stats.calls++;
+            this.stats.active++;
+            this.start = System.nanoTime();
+            stack.push(this);
+        }
+
+        @Override
+        public void onExit(Context cx, boolean byThrow, Object resultOrException) {
+            long elapsed = System.nanoTime() - this.start;
+            // 生成器等情况下进出可能不配对，弹出到自己为止
+            while (!stack.isEmpty() && stack.pop() != this) {
+            }
+            this.stats.active--;
+            if (this.stats.active == 0) {
+                this.stats.totalTime += elapsed;
+            }
+            this.stats.selfTime += elapsed - this.children;
+            if (!stack.isEmpty()) {
+                stack.peek().children += elapsed;
+            }
+        }
+
+        @Override
+        public void onLineChange(Context cx, int lineNumber) {
+        }
+
+        @Override
+        public void onExceptionThrown(Context cx, Throwable ex) {
+        }
+
+        @Override
+        public void onDebuggerStatement(Context cx) {
+        }
+    }
+
+    private String source;
+    private Map<DebuggableScript, FunctionStats> scripts = new IdentityHashMap<DebuggableScript, FunctionStats>();
+    private List<FunctionStats> functions = new ArrayList<FunctionStats>();
+    private Deque<Frame> stack = new ArrayDeque<Frame>();
+
+    /**
+     *
+     * @param source 混淆前的代码，必须和混淆器解析的字符串相同，位置才能对应
+     */
+    public HotFunctionProfiler(String source) {
+        this.source = source;
+    }
+
+    /**
+     *
+     * 按编译顺序对应 DebuggableScript 和 IRFactory 登记的 FunctionNode
+     */
+    private void index(DebuggableScript script, ScriptNode node) {
+        FunctionStats stats;
+        if (node instanceof FunctionNode) {
+            String name = script.getFunctionName();
+            stats = new FunctionStats(name == null ? "" : name, node.getLineno(), node.getAbsolutePosition());
+        } else {
+            stats = new FunctionStats("(top level)", 1, -1);
+        }
+        this.scripts.put(script, stats);
+        this.functions.add(stats);
+        for (int i = 0; i < script.getFunctionCount(); i++) {
+            this.index(script.getFunction(i), node.getFunctionNode(i));
+        }
+    }
+
+    /**
+     *
+     * 执行原始代码，再执行驱动脚本；任何一个出错时抛出 RhinoException，超过指令数上限时抛出 BudgetExceededError，已收集的统计仍然有效
+     * @param driver 驱动脚本的内容
+     * @param driverName 驱动脚本的文件名，用于错误信息
+     */
+    public void run(String driver, String driverName) {
+        Context cx = contextFactory.enterContext();
+        try {
+            cx.setOptimizationLevel(-1);
+            cx.setLanguageVersion(Context.VERSION_ES6);
+            cx.setGeneratingDebug(true);
+            cx.setInstructionObserverThreshold(INSTRUCTION_THRESHOLD);
+            CompilerEnvirons compilerEnvirons = new CompilerEnvirons();
+            compilerEnvirons.initFromContext(cx);
+            AstRoot root = new Parser(compilerEnvirons).parse(this.source, "input", 1);
+            ScriptNode tree = new IRFactory(compilerEnvirons).transformTree(root);
+            Interpreter interpreter = new Interpreter();
+            Object bytecode = interpreter.compile(compilerEnvirons, tree, tree.getEncodedSource(), false);
+            this.index((DebuggableScript) bytecode, tree);
+            Script script = interpreter.createScriptObject(bytecode, null);
+
+            cx.setDebugger(new Debugger() {
+                    @Override
+                    public void handleCompilationDone(Context cx, DebuggableScript fnOrScript, String source) {
+                    }
+
+                    @Override
+                    public DebugFrame getFrame(Context cx, DebuggableScript fnOrScript) {
+                        FunctionStats stats = scripts.get(fnOrScript);
+                        return stats == null ? null : new Frame(stats);
+                    }
+                }, null);
+            // 不提供 Packages、java 等 LiveConnect 对象
+            ScriptableObject scope = cx.initSafeStandardObjects();
+            // 混淆的代码通常面向浏览器，通过 window 访问全局对象，console 的输出丢弃
+            ScriptableObject.putProperty(scope, "window", scope);
+            cx.evaluateString(scope, "var console = {log: function() {}, info: function() {}, warn: function() {},"
+                              + " error: function() {}, debug: function() {}};", "console", 1, null);
+            script.exec(cx, scope);
+            cx.evaluateString(scope, driver, driverName, 1, null);
+        } finally {
+            Context.exit();
+        }
+    }
+
+    /**
+     *
+     * 把统计对应到混淆器的语法树，必须在任何 pass 修改语法树之前调用
+     * @param astRoot 由同一份代码解析得到的语法树
+     */
+    public void map(AstRoot astRoot) {
+        final Map<Integer, AstNode> positions = new HashMap<Integer, AstNode>();
+        positions.put(Integer.valueOf(-1), astRoot);
+        astRoot.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (astNode instanceof FunctionNode) {
+                        positions.put(Integer.valueOf(astNode.getAbsolutePosition()), astNode);
+                    }
+                    return true;
+                }
+            });
+        for (FunctionStats stats : this.functions) {
+            stats.node = positions.get(Integer.valueOf(stats.position));
+        }
+    }
+
+    /**
+     * @return 所有函数自身耗时之和，单位纳秒
+     */
+    public long getProfiledTime() {
+        long total = 0;
+        for (FunctionStats stats : this.functions) {
+            total += stats.selfTime;
+        }
+        return total;
+    }
+
+    /**
+     * @return 所有函数（包括顶层脚本）的统计，按编译顺序
+     */
+    public List<FunctionStats> getFunctions() {
+        return Collections.unmodifiableList(this.functions);
+    }
+
+    /**
+     *
+     * 按自身耗时从高到低选出热点函数，只考虑被调用过且能对应到语法树的函数，两个条件取并集
+     * @param hotPercent 选出函数总数的前 hotPercent%，为 null 时不按比例选
+     * @param overheadBudget 从最热的开始排除，直到其余函数的自身耗时不超过总耗时的 overheadBudget%，为 null 时不按预算选
+     * @return 选出的函数，从热到冷
+     */
+    public List<FunctionStats> select(Integer hotPercent, Integer overheadBudget) {
+        List<FunctionStats> ranked = new ArrayList<FunctionStats>();
+        for (FunctionStats stats : this.functions) {
+            if (stats.calls > 0 && stats.node != null) {
+                ranked.add(stats);
+            }
+        }
+        ranked.sort(Comparator.comparingLong((FunctionStats stats) -> stats.selfTime)
+                    .thenComparingLong(stats -> stats.calls).reversed());
+
+        int count = 0;
+        if (hotPercent != null) {
+            count = (int) Math.ceil(this.functions.size() * hotPercent.intValue() / 100.0);
+        }
+        if (overheadBudget != null) {
+            long total = this.getProfiledTime();
+            long remaining = total;
+            int budgetCount = 0;
+            while (budgetCount < ranked.size() && remaining > total * overheadBudget.intValue() / 100.0) {
+                remaining -= ranked.get(budgetCount).selfTime;
+                budgetCount++;
+            }
+            count = Math.max(count, budgetCount);
+        }
+        return new ArrayList<FunctionStats>(ranked.subList(0, Math.min(count, ranked.size())));
+    }
+}
@@ -13,15 +13,18 @@ public class ImmediatelyInvokedFunction {
     public static void addParamsAndArguments(AstRoot root, final List<AstNode> params, final List<AstNode> arguments) {
         root.visit(new NodeVisitor() {
                 boolean flag = true;
+                boolean paramsFlag = true;
                 @Override
                 public boolean visit(AstNode astNode) {
                     if (astNode.getClass() == FunctionCall.class && this.flag) {
                         FunctionCall functionCall = (FunctionCall) astNode;
                         functionCall.setArguments(arguments);
                         this.flag = false;
-                    } else if (astNode.getClass() == FunctionNode.class) {
+                    } else if (astNode.getClass() == FunctionNode.class && this.paramsFlag) {
+                        // 只设置外层函数，实参里的函数保留自己的参数
                         FunctionNode functionNode = (FunctionNode) astNode;
                         functionNode.setParams(params);
+                        this.paramsFlag = false;
                         return false;
                     }
                     return true;
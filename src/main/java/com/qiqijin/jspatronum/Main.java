@@ -1,17 +1,5 @@
 package com.qiqijin.jspatronum;
 
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
-import java.io.Reader;
-import java.io.Writer;
-
-import org.mozilla.javascript.ErrorReporter;
-import org.mozilla.javascript.EvaluatorException;
-
 import com.sanityinc.jargs.CmdLineParser;
 
 /**
@@ -21,7 +9,27 @@ import com.sanityinc.jargs.CmdLineParser;
  * @author Gin
  */
 public class Main {
+    /**
+     * 版本号，也是缓存键的一部分
+     */
+    public static final String VERSION = "3.14";
+
     public static void main(String args[]) {
+	System.exit(run(args, null, System.in, System.out, System.err));
+    }
+
+    /**
+     *
+     * 执行一次命令行调用，供 main 和守护进程共用
+     * @param args 命令行参数
+     * @param cwd 客户端的工作目录，相对路径据此解析；为 null 时表示本进程直接调用
+     * @param in 输入文件为 "-" 时读取的标准输入
+     * @param out 标准输出
+     * @param err 标准错误
+     * @return 退出码
+     */
+    public static int run(String args[], java.io.File cwd, java.io.InputStream in,
+			  java.io.PrintStream out, java.io.PrintStream err) {
 	// 命令行输入处理
 	CmdLineParser parser = new CmdLineParser();
 	CmdLineParser.Option<Boolean> helpOpt = parser.addBooleanOption('h', "help");
@@ -31,147 +39,323 @@ public class Main {
 	CmdLineParser.Option<Boolean> disableConsoleOpt = parser.addBooleanOption('d', "disable-console");
 	CmdLineParser.Option<String> bindHostNameOpt = parser.addStringOption('b', "bind-hostname");
 	CmdLineParser.Option<Boolean> controlFlowOpt = parser.addBooleanOption('f', "control-flow");
-	Reader in = null;
-	Writer out = null;
+	CmdLineParser.Option<Integer> jobsOpt = parser.addIntegerOption('j', "jobs");
+	CmdLineParser.Option<Boolean> virtualThreadsOpt = parser.addBooleanOption("virtual-threads");
+	CmdLineParser.Option<Boolean> parallelOpt = parser.addBooleanOption("parallel");
+	CmdLineParser.Option<Long> seedOpt = parser.addLongOption("seed");
+	CmdLineParser.Option<Boolean> verboseOpt = parser.addBooleanOption("verbose");
+	CmdLineParser.Option<Boolean> reparseOpt = parser.addBooleanOption("reparse");
+	CmdLineParser.Option<String> profileOpt = parser.addStringOption("profile");
+	CmdLineParser.Option<String> cacheDirOpt = parser.addStringOption("cache-dir");
+	CmdLineParser.Option<Integer> cacheSizeOpt = parser.addIntegerOption("cache-size");
+	CmdLineParser.Option<Boolean> stringDictionaryOpt = parser.addBooleanOption("string-dictionary");
+	CmdLineParser.Option<Boolean> shortNamesOpt = parser.addBooleanOption("short-names");
+	CmdLineParser.Option<Integer> maxLiteralParamsOpt = parser.addIntegerOption("max-literal-params");
+	CmdLineParser.Option<String> defineOpt = parser.addStringOption("define");
+	CmdLineParser.Option<String> profileDriverOpt = parser.addStringOption("profile-driver");
+	CmdLineParser.Option<Integer> hotFunctionsOpt = parser.addIntegerOption("hot-functions");
+	CmdLineParser.Option<Integer> overheadBudgetOpt = parser.addIntegerOption("overhead-budget");
+	CmdLineParser.Option<String> predicateStrategyOpt = parser.addStringOption("predicate-strategy");
+	CmdLineParser.Option<Boolean> sizeReportOpt = parser.addBooleanOption("size-report");
+	CmdLineParser.Option<Double> maxExpansionOpt = parser.addDoubleOption("max-expansion");
+	CmdLineParser.Option<Boolean> expansionFallbackOpt = parser.addBooleanOption("expansion-fallback");
+	CmdLineParser.Option<String> charsetOpt = parser.addStringOption("charset");
+	CmdLineParser.Option<String> serverOpt = parser.addStringOption("server");
+	CmdLineParser.Option<String> connectOpt = parser.addStringOption("connect");
+	CmdLineParser.Option<Boolean> stopOpt = parser.addBooleanOption("stop");
+	CmdLineParser.Option<Integer> queueOpt = parser.addIntegerOption("queue");
+	CmdLineParser.Option<Integer> timeoutOpt = parser.addIntegerOption("timeout");
 
 	try {
 	    parser.parse(args);
 	    Boolean help = (Boolean) parser.getOptionValue(helpOpt);
 	    if (help != null && help.booleanValue()) {
-		usage();
-		System.exit(0);
+		usage(err);
+		return 0;
 	    }
 
 	    Boolean version = (Boolean) parser.getOptionValue(versionOpt);
 	    if (version != null && version.booleanValue()) {
-		nowVersion();
-		System.exit(0);
+		nowVersion(out);
+		return 0;
 	    }
 
-	    Boolean compress = (Boolean) parser.getOptionValue(compressOpt);
-	    Boolean disableConsole = (Boolean) parser.getOptionValue(disableConsoleOpt);
-	    Boolean controlFlow = (Boolean) parser.getOptionValue(controlFlowOpt);
-	    String hostName = (String) parser.getOptionValue(bindHostNameOpt);
+	    String server = (String) parser.getOptionValue(serverOpt);
+	    String connect = (String) parser.getOptionValue(connectOpt);
+	    if ((server != null || connect != null) && cwd != null) {
+		err.println("[ERROR] --server and --connect cannot be forwarded to a daemon");
+		return 2;
+	    }
+	    if (server != null && connect != null) {
+		err.println("[ERROR] --server and --connect cannot be used together");
+		return 2;
+	    }
+	    Integer jobs = (Integer) parser.getOptionValue(jobsOpt);
+	    if (server != null) {
+		Integer queue = (Integer) parser.getOptionValue(queueOpt);
+		Integer timeout = (Integer) parser.getOptionValue(timeoutOpt);
+		Daemon daemon = new Daemon(Daemon.address(server),
+					   jobs == null ? Runtime.getRuntime().availableProcessors() : jobs.intValue(),
+					   queue == null ? 64 : queue.intValue(),
+					   (timeout == null ? 300L : timeout.longValue()) * 1000L);
+		daemon.serve(err);
+		return 0;
+	    }
+	    if (connect != null) {
+		Boolean stop = (Boolean) parser.getOptionValue(stopOpt);
+		if (stop != null && stop.booleanValue()) {
+		    return DaemonClient.stop(Daemon.address(connect), out, err);
+		}
+		// 没有输入文件或输入为 "-" 时把标准输入一起转发
+		java.util.List<String> remaining = java.util.Arrays.asList(parser.getRemainingArgs());
+		byte[] stdin = remaining.isEmpty() || remaining.contains("-") ? in.readAllBytes() : null;
+		return DaemonClient.forward(Daemon.address(connect), withoutOption(args, "connect"),
+					    new java.io.File(System.getProperty("user.dir")), stdin, out, err);
+	    }
+
+	    Options options = new Options();
+	    options.setCompress((Boolean) parser.getOptionValue(compressOpt));
+	    options.setDisableConsole((Boolean) parser.getOptionValue(disableConsoleOpt));
+	    options.setControlFlow((Boolean) parser.getOptionValue(controlFlowOpt));
+	    options.setHostName((String) parser.getOptionValue(bindHostNameOpt));
+	    options.setVerbose((Boolean) parser.getOptionValue(verboseOpt));
+	    options.setReparse((Boolean) parser.getOptionValue(reparseOpt));
+	    options.setParallel((Boolean) parser.getOptionValue(parallelOpt));
+	    options.setSeed((Long) parser.getOptionValue(seedOpt));
+	    options.setStringDictionary((Boolean) parser.getOptionValue(stringDictionaryOpt));
+	    options.setShortNames((Boolean) parser.getOptionValue(shortNamesOpt));
+	    options.setMaxLiteralParams((Integer) parser.getOptionValue(maxLiteralParamsOpt));
+	    if (options.getMaxLiteralParams() != null && options.getMaxLiteralParams().intValue() < 0) {
+		err.println("[ERROR] --max-literal-params must not be negative");
+		return 2;
+	    }
+	    java.util.Map<String, String> defines = new java.util.TreeMap<String, String>();
+	    for (String define : parser.getOptionValues(defineOpt)) {
+		int equals = define.indexOf('=');
+		if (equals <= 0 || !define.substring(0, equals).matches("[A-Za-z_$][A-Za-z0-9_$]*")) {
+		    err.println("[ERROR] --define needs NAME=value");
+		    return 2;
+		}
+		defines.put(define.substring(0, equals), define.substring(equals + 1));
+	    }
+	    options.setDefines(defines);
+	    options.setProfile(resolve(cwd, (String) parser.getOptionValue(profileOpt)));
+	    options.setProfileDriver(resolve(cwd, (String) parser.getOptionValue(profileDriverOpt)));
+	    options.setHotFunctions((Integer) parser.getOptionValue(hotFunctionsOpt));
+	    options.setOverheadBudget((Integer) parser.getOptionValue(overheadBudgetOpt));
+	    if (options.getProfileDriver() == null) {
+		if (options.getHotFunctions() != null || options.getOverheadBudget() != null) {
+		    err.println("[ERROR] --hot-functions and --overhead-budget need --profile-driver");
+		    return 2;
+		}
+	    } else if (options.getHotFunctions() == null && options.getOverheadBudget() == null) {
+		options.setHotFunctions(Integer.valueOf(10));
+	    }
+	    options.setPredicateStrategy((String) parser.getOptionValue(predicateStrategyOpt));
+	    if (options.getPredicateStrategy() != null
+		&& !options.getPredicateStrategy().equals("inline") && !options.getPredicateStrategy().equals("hoisted")) {
+		err.println("[ERROR] --predicate-strategy must be inline or hoisted");
+		return 2;
+	    }
+	    options.setSizeReport((Boolean) parser.getOptionValue(sizeReportOpt));
+	    options.setMaxExpansion((Double) parser.getOptionValue(maxExpansionOpt));
+	    options.setExpansionFallback((Boolean) parser.getOptionValue(expansionFallbackOpt));
+	    if (options.getMaxExpansion() == null) {
+		if (options.getExpansionFallback() != null) {
+		    err.println("[ERROR] --expansion-fallback needs --max-expansion");
+		    return 2;
+		}
+	    } else if (options.getMaxExpansion().doubleValue() <= 0) {
+		err.println("[ERROR] --max-expansion must be positive");
+		return 2;
+	    }
+	    options.setCharset((String) parser.getOptionValue(charsetOpt));
+	    if (options.getCharset() != null) {
+		try {
+		    java.nio.charset.Charset.forName(options.getCharset());
+		} catch (IllegalArgumentException e) {
+		    err.println("[ERROR] unsupported --charset " + options.getCharset());
+		    return 2;
+		}
+	    }
+	    Boolean virtualThreads = (Boolean) parser.getOptionValue(virtualThreadsOpt);
 	    // 输入
 	    String[] fileArgs = parser.getRemainingArgs();
-	    java.util.List<String> files = java.util.Arrays.asList(fileArgs);
+	    java.util.List<String> files = new java.util.ArrayList<String>();
+	    for (String fileArg : fileArgs) {
+		files.add(resolve(cwd, fileArg));
+	    }
 	    // 如果命令行没有文件输入，则从终端读取
 	    if (files.isEmpty()) {
-		System.out.print("Please input file names: ");
+		out.print("Please input file names: ");
 		files = new java.util.ArrayList<String>();
 		files.add("-");
 	    }
 
 	    // 输出
 	    String output = (String) parser.getOptionValue(outputFilenameOpt);
+	    String outputFilename = output;
 	    String pattern[];
 	    if (output == null) {
 		pattern = new String[0];
 	    } else if (output.matches("(?i)^[a-z]\\:\\\\.*")) { // if output is with something like c:\ dont
 		// split it
 		pattern = new String[] { output };
+		outputFilename = resolve(cwd, output);
 	    } else {
 		pattern = output.split(":");
+		outputFilename = resolve(cwd, output);
 	    }
 
-	    // 保存输入文件内容
+	    // 每个输入文件生成一个混淆任务
+	    java.util.List<FileJob> fileJobs = new java.util.ArrayList<FileJob>();
 	    java.util.Iterator<String> filenames = files.iterator();
 	    while (filenames.hasNext()) {
 		String inputFilename = (String) filenames.next();
-		if (inputFilename.equals("-")) {
-		    in = new InputStreamReader(System.in);
+		FileJob job;
+		if (pattern.length > 1 && files.size() > 0) {
+		    job = new FileJob(inputFilename, inputFilename.replaceFirst(pattern[0], pattern[1]), options);
 		} else {
-		    in = new InputStreamReader(new FileInputStream(inputFilename));
+		    job = new FileJob(inputFilename, outputFilename, options);
 		}
+		job.setStdin(in);
+		fileJobs.add(job);
+	    }
 
-		//
-		String outputFilename = output;
-		if (pattern.length > 1 && files.size() > 0) {
-		    outputFilename = inputFilename.replaceFirst(pattern[0], pattern[1]);
+	    // 缓存
+	    String cacheDir = resolve(cwd, (String) parser.getOptionValue(cacheDirOpt));
+	    Integer cacheSize = (Integer) parser.getOptionValue(cacheSizeOpt);
+
+	    // 守护进程以自己的权限读写文件，只允许访问客户端工作目录以内的路径
+	    java.util.List<String> paths = new java.util.ArrayList<String>();
+	    for (FileJob job : fileJobs) {
+		paths.add(job.getInputFilename());
+		paths.add(job.getOutputFilename());
+	    }
+	    paths.addAll(java.util.Arrays.asList(cacheDir, options.getProfile(), options.getProfileDriver()));
+	    for (String path : paths) {
+		if (!isInside(cwd, path)) {
+		    err.println("[ERROR] " + path + " is outside the working directory " + cwd);
+		    return 2;
 		}
+	    }
 
-		final String localFilename = inputFilename;
-		Obfuscator obfuscator = new Obfuscator(in, compress, disableConsole, hostName, controlFlow,
-		    new ErrorReporter() {
-		    public void warning(String message, String sourceName, int line,
-			String lineSource,
-			int lineOffset) {
-			System.err.println("\n[WARNING] in " + localFilename);
-			if (line < 0) {
-			    System.err.println("  " + message);
-			} else {
-			    System.err.println("  " + line + ':'
-					       + lineOffset + ':' + message);
-			}
-		    }
-
-		    public void error(String message, String sourceName, int line,
-			String lineSource, int lineOffset) {
-			System.err.println("[ERROR] in " + localFilename);
-			if (line < 0) {
-			    System.err.println("  " + message);
-			} else {
-			    System.err.println("  " + line + ':'
-					       + lineOffset + ':' + message);
-			}
-		    }
-
-		    public EvaluatorException runtimeError(String message,
-			String sourceName, int line,
-			String lineSource, int lineOffset) {
-			error(message, sourceName, line, lineSource,
-			    lineOffset);
-			return new EvaluatorException(message);
-		    }
-		    });
-
-		// 关闭输入流，打开输出流，防止输入文件被覆盖
-		in.close();
-		in = null;
-
-		if (outputFilename == null) {
-		    out = new OutputStreamWriter(System.out);
-		} else {
-		    out = new OutputStreamWriter(new FileOutputStream(outputFilename));
+	    BuildCache cache = null;
+	    if (cacheDir != null) {
+		cache = new BuildCache(new java.io.File(cacheDir), (cacheSize == null ? 256L : cacheSize.longValue()) << 20);
+		for (FileJob job : fileJobs) {
+		    job.setCache(cache);
 		}
-		obfuscator.obfuscate();
-		obfuscator.compress(out);
 	    }
+
+	    BatchRunner runner = new BatchRunner(jobs == null ? 1 : jobs.intValue(),
+						 virtualThreads != null && virtualThreads.booleanValue());
+	    int failed = runner.run(fileJobs, out, err);
+	    if (options.getProfile() != null) {
+		writeProfile(fileJobs, options.getProfile(), err);
+	    }
+	    if (cache != null) {
+		err.println("\ncache: " + cache.getHits() + " hit(s), " + cache.getMisses() + " miss(es)");
+	    }
+	    if (failed > 0) {
+		err.println("\n" + failed + " of " + fileJobs.size() + " file(s) failed");
+		return 1;
+	    }
+	    return 0;
 	} catch (CmdLineParser.OptionException e) {
-	    e.printStackTrace();
-	} catch (FileNotFoundException e) {
-	    e.printStackTrace();
-	} catch (IOException e) {
-	    e.printStackTrace();
-	} finally {
-	    if (in != null) {
-		try {
-		    in.close();
-		} catch (IOException e) {
-		    e.printStackTrace();
-		}
+	    e.printStackTrace(err);
+	    return 2;
+	} catch (java.io.IOException e) {
+	    e.printStackTrace(err);
+	    return 1;
+	}
+    }
+
+    /**
+     *
+     * 按客户端的工作目录解析相对路径
+     */
+    private static String resolve(java.io.File cwd, String path) {
+	if (cwd == null || path == null || path.equals("-") || new java.io.File(path).isAbsolute()) {
+	    return path;
+	}
+	return new java.io.File(cwd, path).getPath();
+    }
+
+    /**
+     *
+     * 路径是否在客户端的工作目录以内，按解析符号链接之后的真实路径判断；不在守护进程中时不限制
+     */
+    private static boolean isInside(java.io.File cwd, String path) throws java.io.IOException {
+	if (cwd == null || path == null || path.equals("-")) {
+	    return true;
+	}
+	return realPath(new java.io.File(path).toPath()).startsWith(realPath(cwd.toPath()));
+    }
+
+    /**
+     *
+     * 解析符号链接后的绝对路径；还不存在的输出文件按最近的已存在的上级目录解析
+     */
+    private static java.nio.file.Path realPath(java.nio.file.Path path) throws java.io.IOException {
+	path = path.toAbsolutePath().normalize();
+	java.nio.file.Path existing = path;
+	while (existing != null && !java.nio.file.Files.exists(existing, java.nio.file.LinkOption.NOFOLLOW_LINKS)) {
+	    existing = existing.getParent();
+	}
+	if (existing == null) {
+	    return path;
+	}
+	return existing.toRealPath().resolve(existing.relativize(path));
+    }
+
+    /**
+     *
+     * 去掉 --name value 和 --name=value 形式的选项，得到转发给守护进程的参数
+     */
+    private static String[] withoutOption(String args[], String name) {
+	java.util.List<String> forwarded = new java.util.ArrayList<String>();
+	for (int i = 0; i < args.length; i++) {
+	    if (args[i].equals("--")) {
+		forwarded.addAll(java.util.Arrays.asList(args).subList(i, args.length));
+		break;
+	    } else if (args[i].equals("--" + name)) {
+		i++;
+	    } else if (!args[i].startsWith("--" + name + "=")) {
+		forwarded.add(args[i]);
 	    }
+	}
+	return forwarded.toArray(new String[0]);
+    }
 
-	    if (out != null) {
-		try {
-		    out.close();
-		} catch (IOException e) {
-		    e.printStackTrace();
-		}
+    /**
+     *
+     * 把各文件的 profile 写成 JSON 报告
+     */
+    private static void writeProfile(java.util.List<FileJob> fileJobs, String filename, java.io.PrintStream err) {
+	ProfileReport report = new ProfileReport();
+	for (FileJob job : fileJobs) {
+	    if (job.getProfile() != null) {
+		report.add(job.getProfile());
 	    }
 	}
+	try (java.io.Writer out = new java.io.OutputStreamWriter(new java.io.FileOutputStream(filename), "UTF-8")) {
+	    report.write(out);
+	} catch (java.io.IOException e) {
+	    e.printStackTrace(err);
+	}
     }
 
-    private static void nowVersion() {
-	System.out.println("JsPatronum Version: 3.14");
+    private static void nowVersion(java.io.PrintStream out) {
+	out.println("JsPatronum Version: " + VERSION);
     }
 
     /*
      * 打印帮助信息
      */
-    private static void usage() {
-	System.err.println(
-	    "\nJsPatronum Version: 3.14\n"
+    private static void usage(java.io.PrintStream err) {
+	err.println(
+	    "\nJsPatronum Version: " + VERSION + "\n"
 	    + "\nUsage: java -jar JsPatronum.jar [options] [input file]\n"
 	    + "\n"
 	    + "Global Options\n"
@@ -184,7 +368,50 @@ public class Main {
 	    + " -c, --compress                         Compress code size\n"
 	    + " -d, --disable-console                  Disable console debugging\n"
 	    + " -f, --control-flow                     Enable control flow obfuscation\n"
-	    + " -b <hostname>, --bind-hostname         Bind hostname\n "
+	    + " -b <hostname>, --bind-hostname         Bind hostname\n"
+	    + " --charset <name>                       Read inputs and write outputs in <name> (default UTF-8)\n"
+	    + " --seed <n>                             Derive all random choices from <n>: the same input and options\n"
+	    + "                                        give the same output\n"
+	    + " --string-dictionary                    Store whole words in the string table instead of single characters\n"
+	    + " --short-names                          Give the most referenced locals the shortest names and reuse them\n"
+	    + "                                        across scopes that do not overlap\n"
+	    + " --max-literal-params <n>               Pass up to <n> distinct literals to the top function as parameters\n"
+	    + "                                        (default 255); above that pass the rest in one array, and leave\n"
+	    + "                                        literals inline where indexing would be longer\n"
+	    + " --define <NAME=value>                  Replace the undeclared global NAME with value (true, false, null,\n"
+	    + "                                        a number or a string) before folding constants and removing dead\n"
+	    + "                                        branches; may be repeated\n"
+	    + " --profile-driver <file>                Run the input and then <file> in Rhino, and keep the hottest\n"
+	    + "                                        functions out of -f; scripts get no Java access and stop after\n"
+	    + "                                        10^9 instructions\n"
+	    + " --hot-functions <pct>                  Keep the <pct>% hottest functions out of -f (default 10)\n"
+	    + " --overhead-budget <pct>                Keep the hottest functions out of -f until the rest take at most\n"
+	    + "                                        <pct>% of the profiled time\n"
+	    + " --predicate-strategy <inline|hoisted>  With -f, compute opaque predicates inside each condition (default),\n"
+	    + "                                        or once when the file loads, copied into locals that conditions test\n"
+	    + " --size-report                          Print raw, minified and gzip sizes after each pass\n"
+	    + " --max-expansion <ratio>                Fail files whose output is more than <ratio> times the minified\n"
+	    + "                                        input\n"
+	    + " --expansion-fallback                   With --max-expansion, retry with cheaper settings before failing:\n"
+	    + "                                        -c, the other string table layout, then no -f\n"
+	    + " -j <n>, --jobs                         Obfuscate up to <n> files concurrently, largest first\n"
+	    + " --virtual-threads                      Run --jobs workers on virtual threads\n"
+	    + " --parallel                             Split large files into statement and function chunks and run\n"
+	    + "                                        function-local passes on them in parallel\n"
+	    + " --verbose                              Print per-file pass statistics\n"
+	    + " --reparse                              Refresh the AST by printing and reparsing (slow, for verification)\n"
+	    + " --profile <file>                       Write per-stage time, CPU, allocation and node counts as JSON\n"
+	    + " --cache-dir <dir>                      Reuse outputs of unchanged inputs from <dir>\n"
+	    + " --cache-size <MB>                      Evict least recently used cache entries above <MB> (default 256)\n"
+	    + " --server <socket|port>                 Run as a daemon on a Unix socket path or loopback port;\n"
+	    + "                                        -j sets the number of concurrent jobs. The socket's directory\n"
+	    + "                                        is created private or must already be (chmod 700); a port\n"
+	    + "                                        needs the token the daemon writes to ~/.jspatronum. Jobs may\n"
+	    + "                                        only use files under the client's working directory\n"
+	    + " --queue <n>                            Reject daemon jobs when <n> are already waiting (default 64)\n"
+	    + " --timeout <s>                          Fail daemon jobs that take longer than <s> seconds (default 300)\n"
+	    + " --connect <socket|port>                Forward the other options and files to a running daemon\n"
+	    + " --stop                                 With --connect, shut the daemon down after running jobs finish\n "
 	    + "				If you want to use all functions: \n"
 	    + "				java -jar JsPatronum.jar -c -d -f -b 'localhost' -o '.js$:-new.js' *.js\n");
     }
@@ -0,0 +1,164 @@
+package com.qiqijin.jspatronum;
+
+import java.math.BigInteger;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.SplittableRandom;
+
+/**
+ *
+ * 由计数器生成互不相同的短变量名，字符取自 Build_in.varCharArray
+ * 第 n 个名字按长度分组：先是 54 个一位名，再是 54*64 个两位名，以此类推，计数与名字一一对应
+ * 设置密钥后，每个长度组内用 x -> (a*x + b) mod N 打乱顺序，a 与 N 互素，仍是一一对应
+ * 关键字和常用全局对象名通过预先计算的集合排除，每个名字 O(1)
+ * @author
+ */
+public class NameGenerator {
+    private static final Set<String> excluded = new HashSet<String>();
+    static {
+        excluded.addAll(Build_in.keepKeywords);
+        for (String name : new String[] {
+                "undefined", "NaN", "Infinity", "await", "async", "of", "get", "set",
+                "Map", "Set", "URL", "top", "JSON", "Math", "Date", "self", "name", "Blob", "File",
+                "Intl", "Proxy", "Array", "Error", "Image", "Number", "Object", "String", "Symbol",
+                "window", "document", "console", "globalThis" }) {
+            excluded.add(name);
+        }
+    }
+
+    private long counter = 0;
+    private SplittableRandom keyStream;
+    private long[] multipliers = new long[0];
+    private long[] offsets = new long[0];
+
+    /**
+     *
+     * 按顺序生成 A, B, ..., 9Z, ...
+     */
+    public NameGenerator() {
+    }
+
+    /**
+     *
+     * @param key 打乱顺序的密钥，相同密钥生成相同的序列
+     */
+    public NameGenerator(long key) {
+        this.keyStream = new SplittableRandom(key);
+    }
+
+    /**
+     * @param length
+     * @return 长度为 length 的名字个数
+     */
+    static long blockSize(int length) {
+        long size = Build_in.firstChar;
+        for (int i = 1; i < length; i++) {
+            size *= Build_in.notFirstChar;
+        }
+        return size;
+    }
+
+    /**
+     * @param index
+     * @return 第 index 个名字的长度
+     */
+    static int nameLength(long index) {
+        int length = 1;
+        long size = blockSize(length);
+        while (index >= size) {
+            index -= size;
+            length += 1;
+            size = blockSize(length);
+        }
+        return length;
+    }
+
+    /**
+     *
+     * 为每个长度组按需生成 a 和 b；组大小为 2^k*27，a 取不被 2 和 3 整除的数
+     */
+    private void ensureKey(int length) {
+        if (length <= this.multipliers.length) {
+            return;
+        }
+        long[] multipliers = new long[length];
+        long[] offsets = new long[length];
+        System.arraycopy(this.multipliers, 0, multipliers, 0, this.multipliers.length);
+        System.arraycopy(this.offsets, 0, offsets, 0, this.offsets.length);
+        for (int i = this.multipliers.length; i < length; i++) {
+            long size = blockSize(i + 1);
+            long a = this.keyStream.nextLong(size);
+            while (a % 2 == 0 || a % 3 == 0) {
+                a = (a + 1) % size;
+            }
+            multipliers[i] = a;
+            offsets[i] = this.keyStream.nextLong(size);
+        }
+        this.multipliers = multipliers;
+        this.offsets = offsets;
+    }
+
+    /**
+     *
+     * 第 index 个名字（不做排除）
+     * @param index
+     * @return
+     */
+    String nameAt(long index) {
+        int length = 1;
+        long size = blockSize(length);
+        while (index >= size) {
+            index -= size;
+            length += 1;
+            size = blockSize(length);
+        }
+        if (this.keyStream != null) {
+            this.ensureKey(length);
+            index = (mulMod(this.multipliers[length - 1], index, size) + this.offsets[length - 1]) % size;
+        }
+        char[] name = new char[length];
+        for (int i = length - 1; i > 0; i--) {
+            name[i] = Build_in.varCharArray[(int) (index % Build_in.notFirstChar)];
+            index /= Build_in.notFirstChar;
+        }
+        name[0] = Build_in.varCharArray[(int) index];
+        return new String(name);
+    }
+
+    /**
+     *
+     * a*b mod m，长名字的组很大，乘积溢出时改用 BigInteger
+     */
+    private static long mulMod(long a, long b, long m) {
+        if (Math.multiplyHigh(a, b) == 0 && a * b >= 0) {
+            return a * b % m;
+        }
+        return BigInteger.valueOf(a).multiply(BigInteger.valueOf(b)).mod(BigInteger.valueOf(m)).longValue();
+    }
+
+    /**
+     * @param name
+     * @return name 是否是关键字或常用全局对象名
+     */
+    static boolean isExcluded(String name) {
+        return excluded.contains(name);
+    }
+
+    /**
+     * @return 下一个没有被排除的名字
+     */
+    public String next() {
+        String name = this.nameAt(this.counter++);
+        while (excluded.contains(name)) {
+            name = this.nameAt(this.counter++);
+        }
+        return name;
+    }
+
+    /**
+     * @return 已消耗的计数
+     */
+    public long getCounter() {
+        return counter;
+    }
+}
@@ -3,11 +3,22 @@ package com.qiqijin.jspatronum;
 import org.mozilla.javascript.CompilerEnvirons;
 import org.mozilla.javascript.ErrorReporter;
 import org.mozilla.javascript.Parser;
+import org.mozilla.javascript.RhinoException;
 import org.mozilla.javascript.ast.*;
 
 import java.io.IOException;
+import java.io.PrintWriter;
 import java.io.Reader;
 import java.io.Writer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  *
@@ -22,6 +33,23 @@ public class Obfuscator {
     private Boolean disableConsole;
     private Boolean controlFlowObfuscation;
     String hostName;
+    private PrintWriter log;
+    private boolean reparse = false;
+    private boolean stringDictionary = false;
+    private boolean shortNames = false;
+    private int maxLiteralParams = VisitorLiteralToVar.MAX_PARAMS;
+    private Map<String, String> defines = Collections.emptyMap();
+    private Profile profile;
+    private SizeReport sizeReport;
+    private String profileDriver;
+    private Integer hotFunctions;
+    private Integer overheadBudget;
+    private boolean hoistedPredicates = false;
+    private Charset charset = StandardCharsets.UTF_8;
+    private boolean parallel = false;
+    private RandomStreams randomStreams = new RandomStreams();
+    private ScopeAnalysis scopeAnalysis = new ScopeAnalysis();
+    private Set<AstNode> excluded = Collections.newSetFromMap(new IdentityHashMap<AstNode, Boolean>());
     
     /**
      * 
@@ -39,14 +67,178 @@ public class Obfuscator {
         this.errorReporter = errorReporter;
         this.compilerEnvirons = CompilerEnvirons.ideEnvirons();
         this.astRoot = new Parser(this.compilerEnvirons, this.errorReporter).parse(in, null, 1);
+        ScopeRebuilder.linkArrowFunctions(this.astRoot);
+    }
+
+    /**
+     *
+     * @param in 待混淆的代码
+     * @param options 混淆选项
+     * @param errorReporter 记录代码的 error
+     *
+     * @throws IOException
+     */
+    public Obfuscator(Reader in, Options options, ErrorReporter errorReporter) throws IOException {
+        this(in, options.getCompress(), options.getDisableConsole(), options.getHostName(),
+             options.getControlFlow(), errorReporter);
+        this.reparse = options.getReparse() != null && options.getReparse().booleanValue();
+        this.stringDictionary = options.getStringDictionary() != null && options.getStringDictionary().booleanValue();
+        this.shortNames = options.getShortNames() != null && options.getShortNames().booleanValue();
+        if (options.getMaxLiteralParams() != null) {
+            this.maxLiteralParams = options.getMaxLiteralParams().intValue();
+        }
+        if (options.getDefines() != null) {
+            this.defines = options.getDefines();
+        }
+        this.profileDriver = options.getProfileDriver();
+        this.hotFunctions = options.getHotFunctions();
+        this.overheadBudget = options.getOverheadBudget();
+        this.hoistedPredicates = "hoisted".equals(options.getPredicateStrategy());
+        this.charset = SourceIO.charset(options);
+        this.parallel = options.getParallel() != null && options.getParallel().booleanValue();
+    }
+
+    /**
+     *
+     * 输出混淆过程的统计信息，未设置 log 时忽略
+     * @param message
+     */
+    private void info(String message) {
+        if (this.log != null) {
+            this.log.println("  " + message);
+        }
+    }
+
+    /**
+     *
+     * 设置统计信息的输出
+     * @param log
+     */
+    public void setLog(PrintWriter log) {
+        this.log = log;
+    }
+
+    /**
+     *
+     * 记录各个 pass、freshAST 的耗时，设置后 pass 不再合并遍历
+     * @param profile
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     *
+     * 记录每个 pass 之后的代码大小，设置后 pass 不再合并遍历
+     * @param sizeReport
+     */
+    public void setSizeReport(SizeReport sizeReport) {
+        this.sizeReport = sizeReport;
+    }
+
+    /**
+     *
+     * 设置各个 pass 使用的随机数，默认每次运行不同
+     * @param randomStreams
+     */
+    public void setRandomStreams(RandomStreams randomStreams) {
+        this.randomStreams = randomStreams;
+    }
+
+    /**
+     *
+     * 用驱动脚本在 Rhino 中运行原始代码，控制流混淆跳过其中的热点函数
+     * 没有指定 --profile-driver 或没有开启控制流混淆时忽略，必须在 obfuscate 之前调用
+     * @param source 构造时解析的代码，函数按位置对应
+     *
+     * @throws IOException 读取驱动脚本失败
+     */
+    public void excludeHotFunctions(String source) throws IOException {
+        if (this.profileDriver == null || this.controlFlowObfuscation == null || !this.controlFlowObfuscation.booleanValue()) {
+            return;
+        }
+        String driver = SourceIO.decode(SourceIO.read(Paths.get(this.profileDriver)), this.charset);
+        if (this.profile != null) {
+            this.profile.begin("profileDriver", this.astRoot);
+        }
+        HotFunctionProfiler profiler = new HotFunctionProfiler(source);
+        try {
+            profiler.run(driver, this.profileDriver);
+        } catch (RhinoException e) {
+            this.errorReporter.warning("profiling stopped early, using the partial profile: " + e.details(),
+                                       e.sourceName(), e.lineNumber(), e.lineSource(), e.columnNumber());
+        } catch (HotFunctionProfiler.BudgetExceededError e) {
+            this.errorReporter.warning("profiling stopped early, using the partial profile: " + e.getMessage(),
+                                       this.profileDriver, -1, null, -1);
+        }
+        profiler.map(this.astRoot);
+        List<HotFunctionProfiler.FunctionStats> hot = profiler.select(this.hotFunctions, this.overheadBudget);
+        long remaining = profiler.getProfiledTime();
+        for (HotFunctionProfiler.FunctionStats stats : hot) {
+            this.excluded.add(stats.getNode());
+            remaining -= stats.getSelfTime();
+        }
+        if (this.profile != null) {
+            this.profile.end(this.astRoot);
+        }
+        this.infoHotFunctions(profiler, hot, remaining);
+    }
+
+    private void infoHotFunctions(HotFunctionProfiler profiler, List<HotFunctionProfiler.FunctionStats> hot, long remaining) {
+        long total = profiler.getProfiledTime();
+        double share = total == 0 ? 0 : (double) remaining / total;
+        this.info("hot functions: " + hot.size() + " of " + profiler.getFunctions().size() + " excluded from control flow, "
+                  + String.format("%.1f%%", share * 100) + " of " + String.format("%.1f", total / 1e6) + " ms left obfuscated");
+        for (HotFunctionProfiler.FunctionStats stats : hot) {
+            String name = stats.getName().isEmpty() ? "(anonymous)" : stats.getName();
+            this.info("  " + name + " line " + stats.getLine() + ": " + stats.getCalls() + " calls, "
+                      + String.format("%.1f", stats.getSelfTime() / 1e6) + " ms self, "
+                      + String.format("%.1f", stats.getTotalTime() / 1e6) + " ms total");
+        }
+    }
+
+    /**
+     * @return 当前的语法树
+     */
+    AstRoot getAstRoot() {
+        return astRoot;
     }
 
     /**
      *
      * 刷新修改后的语法树
+     * 默认在原树上重建整棵树的父节点和作用域，遇到不支持的结构或指定 --reparse 时打印后重新解析
      */
     private void freshAST() {
-        this.astRoot = new Parser(this.compilerEnvirons, this.errorReporter).parse(this.astRoot.toSource(), null, 1);
+        if (this.profile != null) {
+            this.profile.begin("freshAST", this.astRoot);
+        }
+        // 作用域和符号表重建，之前的分析作废
+        this.scopeAnalysis.invalidate();
+        if (!this.rebuildAST()) {
+            this.astRoot = new Parser(this.compilerEnvirons, this.errorReporter).parse(CodePrinter.print(this.astRoot, false, false), null, 1);
+            ScopeRebuilder.linkArrowFunctions(this.astRoot);
+            if (!this.excluded.isEmpty()) {
+                // 热点函数按节点记录，重新解析后对应不上
+                this.errorReporter.warning("hot functions are not excluded after reparsing", null, -1, null, -1);
+                this.excluded.clear();
+            }
+        }
+        if (this.profile != null) {
+            this.profile.end(this.astRoot);
+        }
+    }
+
+    private boolean rebuildAST() {
+        if (this.reparse) {
+            return false;
+        }
+        ScopeRebuilder scopeRebuilder = new ScopeRebuilder();
+        if (scopeRebuilder.rebuild(this.astRoot)) {
+            return true;
+        }
+        this.info("scope rebuild not supported (" + scopeRebuilder.getUnsupported() + "), reparsing");
+        return false;
     }
 
     /**
@@ -64,49 +256,100 @@ public class Obfuscator {
             });
     }
 
+    private void infoLiteralPool(VisitorLiteralToVar visitorLiteralToVar) {
+        int distinct = visitorLiteralToVar.getDistinct();
+        int references = visitorLiteralToVar.getReferences();
+        double reuse = references == 0 ? 0 : 1 - (double) distinct / references;
+        String layout;
+        if (visitorLiteralToVar.isArray()) {
+            layout = "array layout (" + visitorLiteralToVar.getInlined() + " left inline), ~"
+                + visitorLiteralToVar.getArraySize() + " chars vs ~" + visitorLiteralToVar.getParamsSize() + " as parameters";
+        } else {
+            layout = "parameter layout, ~" + visitorLiteralToVar.getParamsSize() + " chars";
+        }
+        this.info("literal pool: " + distinct + " distinct, " + references + " references, reuse "
+                  + String.format("%.1f%%", reuse * 100) + ", " + layout + " (~"
+                  + visitorLiteralToVar.getUnpooledSize() + " unpooled)");
+    }
+
+    private void infoConstantFolding(VisitorConstantFolding visitorConstantFolding) {
+        this.info("constant folding: " + visitorConstantFolding.getSubstituted() + " defines substituted, "
+                  + visitorConstantFolding.getFolded() + " expressions folded, " + visitorConstantFolding.getBranches()
+                  + " branches and " + visitorConstantFolding.getUnreachable() + " unreachable statements removed");
+    }
+
+    private void infoStringTable(VisitorStringToArray visitorStringToArray) {
+        String message = "string table: " + visitorStringToArray.getEntries() + " entries, "
+            + visitorStringToArray.getIndices() + " indices for " + visitorStringToArray.getCharacters() + " characters";
+        if (this.stringDictionary) {
+            long encoded = visitorStringToArray.getEncodedSize();
+            long characterEncoded = visitorStringToArray.getCharacterEncodedSize();
+            double reduction = characterEncoded == 0 ? 0 : 1 - (double) encoded / characterEncoded;
+            message += ", ~" + encoded + " chars (per-character ~" + characterEncoded + ", "
+                + String.format("%.1f%%", reduction * 100) + " smaller)";
+        }
+        this.info(message);
+    }
+
     /**
      *
      * 测试各个类是否正常执行
      */
     private void Test() {
+        PassManager passManager = new PassManager();
+        passManager.setProfile(this.profile);
+        passManager.setSizeReport(this.sizeReport);
+        if (this.parallel) {
+            // 全局的 pass（字符串表、字面量池、重命名）仍然顺序执行
+            passManager.setPool(ForkJoinPool.commonPool());
+        }
+        // 先删掉死代码，后面的 pass 不再处理它们
+        VisitorConstantFolding visitorConstantFolding = new VisitorConstantFolding(this.defines);
+        passManager.add(visitorConstantFolding);
         if (this.disableConsole != null && this.disableConsole.booleanValue()) {
-            VisitorDisableConsole visitorDisableConsole = new VisitorDisableConsole();
-            this.astRoot.visit(visitorDisableConsole);
+            passManager.add(new VisitorDisableConsole());
         }
         if (this.hostName != null) {
-            VisitorHostNameBind visitorHostNameBind = new VisitorHostNameBind(hostName);
-            this.astRoot.visit(visitorHostNameBind);
-        }
-        VisitorGlobalVar visitorGlobalVar = new VisitorGlobalVar();
-        this.astRoot.visit(visitorGlobalVar);
-        VisitorPropertyToElement visitorPropertyToElement = new VisitorPropertyToElement();
-        this.astRoot.visit(visitorPropertyToElement);
-        VisitorLiteralToVar visitorLiteralToVar = new VisitorLiteralToVar();
-        this.astRoot.visit(visitorLiteralToVar);
-        VisitorTopFunction visitorTopFunction = new VisitorTopFunction(visitorLiteralToVar.getParams(), visitorLiteralToVar.getArguments());
-        this.astRoot.visit(visitorTopFunction);
-        VisitorStringToArray visitorStringToArray = new VisitorStringToArray();
-        this.astRoot.visit(visitorStringToArray);
+            passManager.add(new VisitorHostNameBind(hostName));
+        }
+        passManager.add(new VisitorGlobalVar(this.scopeAnalysis));
+        passManager.add(new VisitorPropertyToElement());
+        VisitorLiteralToVar visitorLiteralToVar = new VisitorLiteralToVar(this.maxLiteralParams);
+        passManager.add(visitorLiteralToVar);
+        VisitorTopFunction visitorTopFunction = new VisitorTopFunction(visitorLiteralToVar);
+        passManager.add(visitorTopFunction);
+        VisitorStringToArray visitorStringToArray = new VisitorStringToArray(this.stringDictionary, this.randomStreams.stream("StringToArray"));
+        passManager.add(visitorStringToArray);
+        passManager.run(this.astRoot);
+        this.infoConstantFolding(visitorConstantFolding);
+        this.infoLiteralPool(visitorLiteralToVar);
+        this.infoStringTable(visitorStringToArray);
+        if (this.excluded.remove(this.astRoot) && visitorTopFunction.getTopFunction() != null) {
+            // 顶层代码已经移到立即执行函数里
+            this.excluded.add(visitorTopFunction.getTopFunction());
+        }
         this.freshAST();
-        VisitorSetScope visitorSetScope = new VisitorSetScope();
-        this.astRoot.visit(visitorSetScope);
-        VisitorLocalVar visitorLocalVar = new VisitorLocalVar();
-        this.astRoot.visit(visitorLocalVar); 
-        VisitorConstant visitorConstant = new VisitorConstant();
-        this.astRoot.visit(visitorConstant);
+        passManager.add(new VisitorSetScope(this.scopeAnalysis));
+        passManager.add(new VisitorLocalVar(this.randomStreams.stream("LocalVar"), this.scopeAnalysis, this.shortNames));
+        passManager.add(new VisitorConstant());
 
         // 控制流混淆 - 放在最后执行以获得最佳效果
         if (this.controlFlowObfuscation != null && this.controlFlowObfuscation.booleanValue()) {
             // 先添加不透明谓词
-            VisitorOpaquePredicates visitorOpaquePredicates = new VisitorOpaquePredicates();
-            this.astRoot.visit(visitorOpaquePredicates);
+            passManager.add(new VisitorOpaquePredicates(this.excluded, this.hoistedPredicates, this.randomStreams.stream("OpaquePredicates")));
+            passManager.run(this.astRoot);
 
             // 刷新AST以确保不透明谓词正确集成
             this.freshAST();
 
             // 然后进行控制流平坦化
-            VisitorControlFlowFlattening visitorControlFlowFlattening = new VisitorControlFlowFlattening();
-            this.astRoot.visit(visitorControlFlowFlattening);
+            passManager.add(new VisitorControlFlowFlattening(this.excluded, this.hoistedPredicates, this.randomStreams.stream("ControlFlowFlattening")));
+        }
+        passManager.run(this.astRoot);
+        this.info("passes: " + passManager.getPassCount() + ", traversals: " + passManager.getTraversalCount()
+                  + ", saved: " + passManager.getSavedTraversals());
+        if (this.parallel) {
+            this.info("parallel traversals: " + passManager.getChunkedTraversalCount() + ", chunks: " + passManager.getChunkCount());
         }
     }
 
@@ -130,15 +373,9 @@ public class Obfuscator {
     public void compress(Writer out) throws IOException {
         // String source = this.astRoot.toSource(); 
         // String string = this.removeBlankCharacter(source);
-        String source;
-        if (this.compress != null && this.compress.booleanValue()) {
-            source = new Compressor(this.astRoot).compress();
-        } else {
-            source = this.astRoot.toSource();
-        }
-        // out.write(new StringHack().escapedCharacters(this.astRoot.toSource()));
-        source = new StringHack().escapedCharacters(source);
-        out.write(source);
+        // 打印时直接修正转义和压缩，不生成整个文件的字符串
+        boolean minify = this.compress != null && this.compress.booleanValue();
+        new CodePrinter(out, minify, true).print(this.astRoot);
     }
     
     String removeBlankCharacter(String source) {
@@ -0,0 +1,339 @@
+package com.qiqijin.jspatronum;
+
+import java.util.Map;
+
+/**
+ *
+ * 混淆选项，由命令行解析得到，每个文件的混淆任务共享同一份
+ * @author
+ */
+public class Options implements Cloneable {
+    private Boolean compress;
+    private Boolean disableConsole;
+    private String hostName;
+    private Boolean controlFlow;
+    private Boolean verbose;
+    private Boolean reparse;
+    private String profile;
+    private Boolean stringDictionary;
+    private String profileDriver;
+    private Integer hotFunctions;
+    private Integer overheadBudget;
+    private String predicateStrategy;
+    private Boolean sizeReport;
+    private Double maxExpansion;
+    private Boolean expansionFallback;
+    private String charset;
+    private Boolean parallel;
+    private Long seed;
+    private Boolean shortNames;
+    private Integer maxLiteralParams;
+    private Map<String, String> defines;
+
+    /**
+     *
+     * 单个文件需要改动选项时使用，不影响共享的一份
+     * @return 浅拷贝
+     */
+    public Options copy() {
+        try {
+            return (Options) super.clone();
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * @return the compress
+     */
+    public Boolean getCompress() {
+        return compress;
+    }
+
+    /**
+     * @param compress the compress to set
+     */
+    public void setCompress(Boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * @return the disableConsole
+     */
+    public Boolean getDisableConsole() {
+        return disableConsole;
+    }
+
+    /**
+     * @param disableConsole the disableConsole to set
+     */
+    public void setDisableConsole(Boolean disableConsole) {
+        this.disableConsole = disableConsole;
+    }
+
+    /**
+     * @return the hostName
+     */
+    public String getHostName() {
+        return hostName;
+    }
+
+    /**
+     * @param hostName the hostName to set
+     */
+    public void setHostName(String hostName) {
+        this.hostName = hostName;
+    }
+
+    /**
+     * @return the controlFlow
+     */
+    public Boolean getControlFlow() {
+        return controlFlow;
+    }
+
+    /**
+     * @param controlFlow the controlFlow to set
+     */
+    public void setControlFlow(Boolean controlFlow) {
+        this.controlFlow = controlFlow;
+    }
+
+    /**
+     * @return the verbose
+     */
+    public Boolean getVerbose() {
+        return verbose;
+    }
+
+    /**
+     * @param verbose the verbose to set
+     */
+    public void setVerbose(Boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    /**
+     * @return the reparse
+     */
+    public Boolean getReparse() {
+        return reparse;
+    }
+
+    /**
+     * @param reparse the reparse to set
+     */
+    public void setReparse(Boolean reparse) {
+        this.reparse = reparse;
+    }
+
+    /**
+     * @return the profile
+     */
+    public String getProfile() {
+        return profile;
+    }
+
+    /**
+     * @param profile the profile to set
+     */
+    public void setProfile(String profile) {
+        this.profile = profile;
+    }
+
+    /**
+     * @return the stringDictionary
+     */
+    public Boolean getStringDictionary() {
+        return stringDictionary;
+    }
+
+    /**
+     * @param stringDictionary the stringDictionary to set
+     */
+    public void setStringDictionary(Boolean stringDictionary) {
+        this.stringDictionary = stringDictionary;
+    }
+
+    /**
+     * @return the profileDriver
+     */
+    public String getProfileDriver() {
+        return profileDriver;
+    }
+
+    /**
+     * @param profileDriver the profileDriver to set
+     */
+    public void setProfileDriver(String profileDriver) {
+        this.profileDriver = profileDriver;
+    }
+
+    /**
+     * @return the hotFunctions
+     */
+    public Integer getHotFunctions() {
+        return hotFunctions;
+    }
+
+    /**
+     * @param hotFunctions the hotFunctions to set
+     */
+    public void setHotFunctions(Integer hotFunctions) {
+        this.hotFunctions = hotFunctions;
+    }
+
+    /**
+     * @return the overheadBudget
+     */
+    public Integer getOverheadBudget() {
+        return overheadBudget;
+    }
+
+    /**
+     * @param overheadBudget the overheadBudget to set
+     */
+    public void setOverheadBudget(Integer overheadBudget) {
+        this.overheadBudget = overheadBudget;
+    }
+
+    /**
+     * @return the predicateStrategy
+     */
+    public String getPredicateStrategy() {
+        return predicateStrategy;
+    }
+
+    /**
+     * @param predicateStrategy the predicateStrategy to set
+     */
+    public void setPredicateStrategy(String predicateStrategy) {
+        this.predicateStrategy = predicateStrategy;
+    }
+
+    /**
+     * @return the sizeReport
+     */
+    public Boolean getSizeReport() {
+        return sizeReport;
+    }
+
+    /**
+     * @param sizeReport the sizeReport to set
+     */
+    public void setSizeReport(Boolean sizeReport) {
+        this.sizeReport = sizeReport;
+    }
+
+    /**
+     * @return the maxExpansion
+     */
+    public Double getMaxExpansion() {
+        return maxExpansion;
+    }
+
+    /**
+     * @param maxExpansion the maxExpansion to set
+     */
+    public void setMaxExpansion(Double maxExpansion) {
+        this.maxExpansion = maxExpansion;
+    }
+
+    /**
+     * @return the expansionFallback
+     */
+    public Boolean getExpansionFallback() {
+        return expansionFallback;
+    }
+
+    /**
+     * @param expansionFallback the expansionFallback to set
+     */
+    public void setExpansionFallback(Boolean expansionFallback) {
+        this.expansionFallback = expansionFallback;
+    }
+
+    /**
+     * @return the charset
+     */
+    public String getCharset() {
+        return charset;
+    }
+
+    /**
+     * @param charset the charset to set
+     */
+    public void setCharset(String charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * @return the parallel
+     */
+    public Boolean getParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param parallel the parallel to set
+     */
+    public void setParallel(Boolean parallel) {
+        this.parallel = parallel;
+    }
+
+    /**
+     * @return the seed
+     */
+    public Long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @param seed the seed to set
+     */
+    public void setSeed(Long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     * @return the shortNames
+     */
+    public Boolean getShortNames() {
+        return shortNames;
+    }
+
+    /**
+     * @param shortNames the shortNames to set
+     */
+    public void setShortNames(Boolean shortNames) {
+        this.shortNames = shortNames;
+    }
+
+    /**
+     * @return the maxLiteralParams
+     */
+    public Integer getMaxLiteralParams() {
+        return maxLiteralParams;
+    }
+
+    /**
+     * @param maxLiteralParams the maxLiteralParams to set
+     */
+    public void setMaxLiteralParams(Integer maxLiteralParams) {
+        this.maxLiteralParams = maxLiteralParams;
+    }
+
+    /**
+     * @return the defines
+     */
+    public Map<String, String> getDefines() {
+        return defines;
+    }
+
+    /**
+     * @param defines the defines to set
+     */
+    public void setDefines(Map<String, String> defines) {
+        this.defines = defines;
+    }
+}
@@ -0,0 +1,69 @@
+package com.qiqijin.jspatronum;
+
+import java.util.Collections;
+import java.util.Set;
+
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+
+/**
+ *
+ * 由 PassManager 调度的混淆 pass
+ * 声明读写的节点类型和依赖，PassManager 据此把互不冲突的 pass 合并到同一次遍历
+ * @author
+ */
+public interface Pass extends NodeVisitor {
+
+    /**
+     *
+     * 访问时会读取的节点类型（含子类）
+     * @return
+     */
+    Set<Class<? extends AstNode>> getReadTypes();
+
+    /**
+     *
+     * 会被替换、插入、删除或修改属性的节点类型（含子类），插入新子树时写 AstNode.class
+     * @return
+     */
+    Set<Class<? extends AstNode>> getWriteTypes();
+
+    /**
+     *
+     * 必须在本 pass 开始前完整遍历过整棵树的 pass
+     * @return
+     */
+    default Set<Class<? extends Pass>> getDependencies() {
+        return Collections.emptySet();
+    }
+
+    /**
+     *
+     * 是否只修改当前访问的节点本身，不改变树结构。
+     * 局部 pass 对后面的 pass 来说，同一次先序遍历中与单独遍历看到的结果相同
+     * @return
+     */
+    default boolean isLocal() {
+        return false;
+    }
+
+    /**
+     *
+     * 是否只改写访问节点所在的最近的语句或函数（可以读取祖先节点），并且总是深入子节点。
+     * 这样的 pass 可以按语句和函数分块，用 fork 出的实例并行执行
+     * @return
+     */
+    default boolean isChunkable() {
+        return false;
+    }
+
+    /**
+     *
+     * 为一个子树创建执行用的实例，按子树在树中的顺序在同一个线程里依次调用，
+     * 实例之间不能共享可变状态；没有可变状态的 pass 返回自身
+     * @return
+     */
+    default Pass fork() {
+        return this;
+    }
+}
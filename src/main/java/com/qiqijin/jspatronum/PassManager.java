@@ -0,0 +1,274 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ForkJoinPool;
+
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+
+/**
+ *
+ * pass 调度器
+ * 按加入顺序把没有冲突的相邻 pass 合并成一次深度优先遍历，只有真实依赖才单独遍历
+ * 设置线程池后，可以分块的 pass 在大文件上分块并行遍历
+ * @author
+ */
+public class PassManager {
+    private List<Pass> pending = new ArrayList<Pass>();
+    private boolean fusion = true;
+    private int passCount = 0;
+    private int traversalCount = 0;
+    private Profile profile;
+    private SizeReport sizeReport;
+    private ForkJoinPool pool;
+    private int chunkedTraversalCount = 0;
+    private int chunkCount = 0;
+
+    /**
+     *
+     * 合并遍历：每个节点依次交给组内的 pass，
+     * 某个 pass 不再深入时，其余 pass 单独遍历该节点的子树
+     */
+    private static class FusedVisitor implements NodeVisitor {
+        private List<Pass> passes;
+        private AstNode visited;
+
+        FusedVisitor(List<Pass> passes, AstNode visited) {
+            this.passes = passes;
+            this.visited = visited;
+        }
+
+        @Override
+        public boolean visit(AstNode astNode) {
+            if (astNode == this.visited) {
+                return true;
+            }
+            List<Pass> descending = new ArrayList<Pass>(this.passes.size());
+            for (Pass pass : this.passes) {
+                if (pass.visit(astNode)) {
+                    descending.add(pass);
+                }
+            }
+            if (descending.size() == this.passes.size()) {
+                return true;
+            }
+            if (!descending.isEmpty()) {
+                astNode.visit(new FusedVisitor(descending, astNode));
+            }
+            return false;
+        }
+    }
+
+    private static boolean overlaps(Set<Class<? extends AstNode>> types1, Set<Class<? extends AstNode>> types2) {
+        for (Class<? extends AstNode> type1 : types1) {
+            for (Class<? extends AstNode> type2 : types2) {
+                if (type1.isAssignableFrom(type2) || type2.isAssignableFrom(type1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * 判断 pass 能否和先加入同一遍历的 before 合并
+     */
+    private static boolean canFuse(Pass before, Pass pass) {
+        if (pass.getDependencies().contains(before.getClass())) {
+            return false;
+        }
+        // before 改写了 pass 要看的节点，合并后 pass 会看到不同的树
+        if (!before.isLocal() &&
+            (overlaps(before.getWriteTypes(), pass.getReadTypes()) ||
+             overlaps(before.getWriteTypes(), pass.getWriteTypes()))) {
+            return false;
+        }
+        // pass 改写了 before 还没访问到的子节点
+        if (!pass.isLocal() && overlaps(pass.getWriteTypes(), before.getReadTypes())) {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * 把待执行的 pass 划分为若干次遍历
+     */
+    List<List<Pass>> schedule(List<Pass> passes) {
+        List<List<Pass>> groups = new ArrayList<List<Pass>>();
+        List<Pass> group = null;
+        for (Pass pass : passes) {
+            boolean fusible = this.fusion && group != null;
+            if (fusible) {
+                for (Pass before : group) {
+                    // 并行时可以分块的 pass 单独成组，不被其他 pass 拖回顺序遍历
+                    if (!canFuse(before, pass) || this.pool != null && before.isChunkable() != pass.isChunkable()) {
+                        fusible = false;
+                        break;
+                    }
+                }
+            }
+            if (!fusible) {
+                group = new ArrayList<Pass>();
+                groups.add(group);
+            }
+            group.add(pass);
+        }
+        return groups;
+    }
+
+    /**
+     *
+     * 加入一个 pass，等到下一次 run 时执行
+     * @param pass
+     */
+    public void add(Pass pass) {
+        this.pending.add(pass);
+    }
+
+    /**
+     *
+     * 任务被取消（如守护进程中超时）时停止：在两次遍历之间、打印每个函数前和写出结果前检查
+     */
+    static void checkInterrupted() {
+        if (Thread.currentThread().isInterrupted()) {
+            throw new CancellationException("interrupted");
+        }
+    }
+
+    /**
+     *
+     * 一次遍历执行一组 pass，都可以分块且设置了线程池时分块并行
+     */
+    private void traverse(List<Pass> group, AstNode root) {
+        if (this.pool != null) {
+            boolean chunkable = true;
+            for (Pass pass : group) {
+                chunkable = chunkable && pass.isChunkable();
+            }
+            ChunkedTraversal traversal = new ChunkedTraversal(group, root);
+            if (chunkable && traversal.run(this.pool)) {
+                this.chunkedTraversalCount += 1;
+                this.chunkCount += traversal.getChunkCount();
+                return;
+            }
+        }
+        if (group.size() == 1) {
+            root.visit(group.get(0));
+        } else {
+            root.visit(new FusedVisitor(group, null));
+        }
+    }
+
+    /**
+     *
+     * 在 root 上执行所有待执行的 pass
+     * @param root
+     */
+    public void run(AstNode root) {
+        if (this.profile != null || this.sizeReport != null) {
+            // 逐个 pass 单独遍历，计时并记录大小
+            for (Pass pass : this.pending) {
+                checkInterrupted();
+                String name = pass.getClass().getSimpleName();
+                if (this.profile != null) {
+                    this.profile.begin(name, root);
+                }
+                this.traverse(Collections.singletonList(pass), root);
+                if (this.profile != null) {
+                    this.profile.end(root);
+                }
+                if (this.sizeReport != null) {
+                    this.sizeReport.add(name, root);
+                }
+                this.passCount += 1;
+                this.traversalCount += 1;
+            }
+            this.pending.clear();
+            return;
+        }
+        for (List<Pass> group : this.schedule(this.pending)) {
+            checkInterrupted();
+            this.traverse(group, root);
+            this.passCount += group.size();
+            this.traversalCount += 1;
+        }
+        this.pending.clear();
+    }
+
+    /**
+     *
+     * 关闭后每个 pass 单独遍历，便于单独统计
+     * @param fusion
+     */
+    public void setFusion(boolean fusion) {
+        this.fusion = fusion;
+    }
+
+    /**
+     *
+     * 设置后每个 pass 单独遍历，并记录到 profile 中
+     * @param profile
+     */
+    public void setProfile(Profile profile) {
+        this.profile = profile;
+    }
+
+    /**
+     *
+     * 设置后每个 pass 单独遍历，并把之后的代码大小记录到 sizeReport 中
+     * @param sizeReport
+     */
+    public void setSizeReport(SizeReport sizeReport) {
+        this.sizeReport = sizeReport;
+    }
+
+    /**
+     *
+     * 设置后可以分块的 pass 在 pool 里分块并行遍历，null 时全部顺序遍历
+     * @param pool
+     */
+    public void setPool(ForkJoinPool pool) {
+        this.pool = pool;
+    }
+
+    /**
+     * @return 已执行的 pass 数
+     */
+    public int getPassCount() {
+        return passCount;
+    }
+
+    /**
+     * @return 实际遍历次数
+     */
+    public int getTraversalCount() {
+        return traversalCount;
+    }
+
+    /**
+     * @return 合并遍历节省的遍历次数
+     */
+    public int getSavedTraversals() {
+        return passCount - traversalCount;
+    }
+
+    /**
+     * @return 分块并行的遍历次数
+     */
+    public int getChunkedTraversalCount() {
+        return chunkedTraversalCount;
+    }
+
+    /**
+     * @return 分块并行遍历的分块总数
+     */
+    public int getChunkCount() {
+        return chunkCount;
+    }
+}
@@ -0,0 +1,190 @@
+package com.qiqijin.jspatronum;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.NodeVisitor;
+
+/**
+ *
+ * 单个文件各阶段的耗时、CPU 时间、分配字节数和节点数
+ * CPU 时间和分配字节数按当前线程统计，不支持时（如虚拟线程）记为 -1
+ * @author
+ */
+public class Profile {
+    private static final com.sun.management.ThreadMXBean threadMXBean = initThreadMXBean();
+
+    private String filename;
+    private List<Stage> stages = new ArrayList<Stage>();
+    private Stage current;
+    private long startWall;
+    private long startCpu;
+    private long startAllocated;
+
+    /**
+     *
+     * 一个阶段的统计
+     */
+    public static class Stage {
+        private String name;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+        private int nodesBefore;
+        private int nodesAfter;
+
+        Stage(String name, int nodesBefore) {
+            this.name = name;
+            this.nodesBefore = nodesBefore;
+        }
+
+        /**
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the wallNanos
+         */
+        public long getWallNanos() {
+            return wallNanos;
+        }
+
+        /**
+         * @return the cpuNanos
+         */
+        public long getCpuNanos() {
+            return cpuNanos;
+        }
+
+        /**
+         * @return the allocatedBytes
+         */
+        public long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+
+        /**
+         * @return the nodesBefore
+         */
+        public int getNodesBefore() {
+            return nodesBefore;
+        }
+
+        /**
+         * @return the nodesAfter
+         */
+        public int getNodesAfter() {
+            return nodesAfter;
+        }
+    }
+
+    private static com.sun.management.ThreadMXBean initThreadMXBean() {
+        if (!(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean)) {
+            return null;
+        }
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        if (bean.isCurrentThreadCpuTimeSupported()) {
+            bean.setThreadCpuTimeEnabled(true);
+        }
+        if (bean.isThreadAllocatedMemorySupported()) {
+            bean.setThreadAllocatedMemoryEnabled(true);
+        }
+        return bean;
+    }
+
+    private static long cpuTime() {
+        if (threadMXBean == null || !threadMXBean.isCurrentThreadCpuTimeSupported()) {
+            return -1;
+        }
+        return threadMXBean.getCurrentThreadCpuTime();
+    }
+
+    private static long allocatedBytes() {
+        if (threadMXBean == null || !threadMXBean.isThreadAllocatedMemorySupported()) {
+            return -1;
+        }
+        return threadMXBean.getCurrentThreadAllocatedBytes();
+    }
+
+    private static long difference(long end, long start) {
+        return end < 0 || start < 0 ? -1 : end - start;
+    }
+
+    /**
+     *
+     * 统计语法树的节点数
+     * @param astNode
+     * @return
+     */
+    public static int countNodes(AstNode astNode) {
+        if (astNode == null) {
+            return 0;
+        }
+        final int[] count = {0};
+        astNode.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode node) {
+                    count[0]++;
+                    return true;
+                }
+            });
+        return count[0];
+    }
+
+    /**
+     *
+     * @param filename 输入文件
+     */
+    public Profile(String filename) {
+        this.filename = filename;
+    }
+
+    /**
+     *
+     * 开始一个阶段，节点计数在计时之前完成
+     * @param name 阶段名
+     * @param root 阶段开始时的语法树，还没有语法树时为 null
+     */
+    public void begin(String name, AstNode root) {
+        this.current = new Stage(name, countNodes(root));
+        this.startAllocated = allocatedBytes();
+        this.startCpu = cpuTime();
+        this.startWall = System.nanoTime();
+    }
+
+    /**
+     *
+     * 结束当前阶段，节点计数在计时之后完成
+     * @param root 阶段结束时的语法树
+     */
+    public void end(AstNode root) {
+        long wall = System.nanoTime();
+        long cpu = cpuTime();
+        long allocated = allocatedBytes();
+        this.current.wallNanos = wall - this.startWall;
+        this.current.cpuNanos = difference(cpu, this.startCpu);
+        this.current.allocatedBytes = difference(allocated, this.startAllocated);
+        this.current.nodesAfter = countNodes(root);
+        this.stages.add(this.current);
+        this.current = null;
+    }
+
+    /**
+     * @return the filename
+     */
+    public String getFilename() {
+        return filename;
+    }
+
+    /**
+     * @return 按执行顺序排列的阶段
+     */
+    public List<Stage> getStages() {
+        return stages;
+    }
+}
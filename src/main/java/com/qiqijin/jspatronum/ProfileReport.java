@@ -0,0 +1,113 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ *
+ * 把多个文件的 Profile 写成 JSON 报告，summary 按阶段名汇总所有文件
+ * 汇总时跳过记为 -1 的 CPU 时间和分配字节数
+ * @author
+ */
+public class ProfileReport {
+    private List<Profile> profiles = new ArrayList<Profile>();
+
+    /**
+     *
+     * 按阶段名累加的统计
+     */
+    private static class Total {
+        private int count;
+        private long wallNanos;
+        private long cpuNanos;
+        private long allocatedBytes;
+
+        void add(Profile.Stage stage) {
+            this.count++;
+            this.wallNanos += stage.getWallNanos();
+            this.cpuNanos += Math.max(stage.getCpuNanos(), 0);
+            this.allocatedBytes += Math.max(stage.getAllocatedBytes(), 0);
+        }
+    }
+
+    /**
+     *
+     * 加入一个文件的统计
+     * @param profile
+     */
+    public void add(Profile profile) {
+        this.profiles.add(profile);
+    }
+
+    static String quote(String string) {
+        StringBuilder builder = new StringBuilder("\"");
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                builder.append('\\').append(c);
+            } else if (c < 0x20) {
+                builder.append(String.format("\\u%04x", (int) c));
+            } else {
+                builder.append(c);
+            }
+        }
+        return builder.append('"').toString();
+    }
+
+    private static void writeTotal(Writer out, Total total) throws IOException {
+        out.write("\"count\": " + total.count + ", \"wallNanos\": " + total.wallNanos
+                  + ", \"cpuNanos\": " + total.cpuNanos + ", \"allocatedBytes\": " + total.allocatedBytes);
+    }
+
+    /**
+     *
+     * 输出 JSON 报告
+     * @param out
+     *
+     * @throws IOException
+     */
+    public void write(Writer out) throws IOException {
+        Map<String, Total> summary = new LinkedHashMap<String, Total>();
+        Total all = new Total();
+        out.write("{\n  \"files\": [");
+        for (int i = 0; i < this.profiles.size(); i++) {
+            Profile profile = this.profiles.get(i);
+            Total fileTotal = new Total();
+            out.write(i == 0 ? "\n" : ",\n");
+            out.write("    {\n      \"file\": " + quote(profile.getFilename()) + ",\n      \"stages\": [");
+            List<Profile.Stage> stages = profile.getStages();
+            for (int j = 0; j < stages.size(); j++) {
+                Profile.Stage stage = stages.get(j);
+                out.write(j == 0 ? "\n" : ",\n");
+                out.write("        {\"name\": " + quote(stage.getName())
+                          + ", \"wallNanos\": " + stage.getWallNanos()
+                          + ", \"cpuNanos\": " + stage.getCpuNanos()
+                          + ", \"allocatedBytes\": " + stage.getAllocatedBytes()
+                          + ", \"nodesBefore\": " + stage.getNodesBefore()
+                          + ", \"nodesAfter\": " + stage.getNodesAfter() + "}");
+                fileTotal.add(stage);
+                all.add(stage);
+                summary.computeIfAbsent(stage.getName(), name -> new Total()).add(stage);
+            }
+            out.write("\n      ],\n      \"total\": {");
+            writeTotal(out, fileTotal);
+            out.write("}\n    }");
+        }
+        out.write("\n  ],\n  \"summary\": {\n    \"files\": " + this.profiles.size() + ",\n    \"stages\": [");
+        boolean first = true;
+        for (Map.Entry<String, Total> entry : summary.entrySet()) {
+            out.write(first ? "\n" : ",\n");
+            out.write("      {\"name\": " + quote(entry.getKey()) + ", ");
+            writeTotal(out, entry.getValue());
+            out.write("}");
+            first = false;
+        }
+        out.write("\n    ],\n    \"total\": {");
+        writeTotal(out, all);
+        out.write("}\n  }\n}\n");
+    }
+}
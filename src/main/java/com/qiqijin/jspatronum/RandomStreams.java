@@ -0,0 +1,65 @@
+package com.qiqijin.jspatronum;
+
+import java.util.SplittableRandom;
+
+/**
+ *
+ * 混淆用到的随机数，每个文件一份
+ * 指定 --seed 时文件的种子由它和文件内容得到，内容和选项相同的文件输出逐字节相同，与文件名、处理顺序和线程无关
+ * 每个 pass 按名字从文件的种子派生自己的 SplittableRandom，增减其他 pass 不影响它；并行时再 split 给各个任务
+ * @author
+ */
+public class RandomStreams {
+    private static final long GOLDEN_GAMMA = 0x9e3779b97f4a7c15L;
+
+    private long seed;
+
+    /**
+     *
+     * 没有指定种子，每次运行的结果不同
+     */
+    public RandomStreams() {
+        this(new SplittableRandom().nextLong());
+    }
+
+    /**
+     *
+     * @param seed 文件的种子
+     */
+    public RandomStreams(long seed) {
+        this.seed = seed;
+    }
+
+    /**
+     *
+     * @param seed --seed 的值，null 时随机
+     * @param source 文件内容
+     * @return 文件的随机数
+     */
+    public static RandomStreams forFile(Long seed, String source) {
+        if (seed == null) {
+            return new RandomStreams();
+        }
+        return new RandomStreams(mix(seed.longValue(), source.hashCode()));
+    }
+
+    private static long mix(long seed, int key) {
+        return new SplittableRandom(seed + key * GOLDEN_GAMMA).nextLong();
+    }
+
+    /**
+     *
+     * @param name pass 的名字
+     * @return 这个 pass 专用的随机数流
+     */
+    public SplittableRandom stream(String name) {
+        return new SplittableRandom(mix(this.seed, name.hashCode()));
+    }
+
+    /**
+     * @return 文件的种子
+     */
+    public long getSeed() {
+        return seed;
+    }
+}
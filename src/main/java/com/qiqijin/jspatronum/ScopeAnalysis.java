@@ -0,0 +1,286 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.Scope;
+
+/**
+ *
+ * 一棵语法树的作用域分析结果，由各个 pass 共用
+ * 一次遍历解析所有 Name：规则与 Name.getDefiningScope() 相同，先沿父节点找最近的作用域，再沿作用域链查符号表
+ * 记录每个绑定（作用域里的一个名字）的全部引用，以及作用域的编号，都按节点本身区分
+ * 第一次查询时分析；作用域和符号表重建（freshAST）后调用 invalidate，下次查询重新分析
+ * 分析之后新建的 Name 查询时按原规则解析并补记；不是线程安全的，可分块的 pass 不使用
+ * @author
+ */
+public class ScopeAnalysis {
+    /**
+     *
+     * 作用域里定义的一个名字和它的全部引用
+     */
+    public static class Binding {
+        private Scope scope;
+        private String identifier;
+        private List<Name> references = new ArrayList<Name>();
+
+        Binding(Scope scope, String identifier) {
+            this.scope = scope;
+            this.identifier = identifier;
+        }
+
+        /**
+         * @return 定义所在的作用域
+         */
+        public Scope getScope() {
+            return scope;
+        }
+
+        /**
+         * @return 分析时的名字，重命名后引用的标识符会不同
+         */
+        public String getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * @return 按先序排列的引用，包括声明处的 Name
+         */
+        public List<Name> getReferences() {
+            return references;
+        }
+    }
+
+    /**
+     * 缓存中表示找不到定义
+     */
+    private static final Binding UNRESOLVED = new Binding(null, null);
+
+    private AstNode root;
+    private Map<Scope, Integer> scopeIds = new IdentityHashMap<Scope, Integer>();
+    private Map<Scope, Map<String, Binding>> tables = new IdentityHashMap<Scope, Map<String, Binding>>();
+    private Map<Name, Binding> bindings = new IdentityHashMap<Name, Binding>();
+    // （最近的作用域, 标识符）的解析结果，同一作用域里重复的名字只沿作用域链查一次
+    private Map<Scope, Map<String, Binding>> resolved = new IdentityHashMap<Scope, Map<String, Binding>>();
+    // 作用域内引用的外层绑定和找不到定义的名字，第一次查询时计算
+    private Map<Scope, Set<Binding>> outerBindings;
+    private Map<Scope, Set<String>> outerNames;
+
+    /**
+     *
+     * 分析一棵树，之前的结果作废
+     * @param root
+     */
+    public void analyze(AstNode root) {
+        this.invalidate();
+        this.root = root;
+        root.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (astNode instanceof Scope) {
+                        scopeIds.put((Scope) astNode, scopeIds.size());
+                    } else if (astNode.getClass() == Name.class) {
+                        resolve((Name) astNode);
+                    }
+                    return true;
+                }
+            });
+    }
+
+    /**
+     *
+     * 语法树的作用域或符号表已经改变，丢弃分析结果
+     */
+    public void invalidate() {
+        this.root = null;
+        this.scopeIds.clear();
+        this.tables.clear();
+        this.bindings.clear();
+        this.resolved.clear();
+        this.outerBindings = null;
+        this.outerNames = null;
+    }
+
+    /**
+     *
+     * 还没有分析时分析 astNode 所在的树
+     */
+    private void ensureAnalyzed(AstNode astNode) {
+        if (this.root != null) {
+            return;
+        }
+        AstNode top = astNode;
+        while (top.getParent() != null) {
+            top = top.getParent();
+        }
+        this.analyze(top);
+    }
+
+    private Binding resolve(Name name) {
+        Scope enclosing = name.getEnclosingScope();
+        Binding binding = UNRESOLVED;
+        if (enclosing != null) {
+            String identifier = name.getIdentifier();
+            Map<String, Binding> cache = this.resolved.get(enclosing);
+            if (cache == null) {
+                cache = new HashMap<String, Binding>();
+                this.resolved.put(enclosing, cache);
+            }
+            binding = cache.get(identifier);
+            if (binding == null) {
+                Scope scope = enclosing.getDefiningScope(identifier);
+                binding = scope == null ? UNRESOLVED : this.binding(scope, identifier);
+                cache.put(identifier, binding);
+            }
+        }
+        if (binding != UNRESOLVED) {
+            binding.references.add(name);
+        }
+        this.bindings.put(name, binding);
+        return binding;
+    }
+
+    private Binding binding(Scope scope, String identifier) {
+        Map<String, Binding> table = this.tables.get(scope);
+        if (table == null) {
+            table = new LinkedHashMap<String, Binding>();
+            this.tables.put(scope, table);
+        }
+        Binding binding = table.get(identifier);
+        if (binding == null) {
+            binding = new Binding(scope, identifier);
+            table.put(identifier, binding);
+        }
+        return binding;
+    }
+
+    /**
+     *
+     * @param name
+     * @return name 引用的绑定，全局对象上的属性、未声明的变量和属性名为 null
+     */
+    public Binding getBinding(Name name) {
+        this.ensureAnalyzed(name);
+        Binding binding = this.bindings.get(name);
+        if (binding == null) {
+            binding = this.resolve(name);
+        }
+        return binding == UNRESOLVED ? null : binding;
+    }
+
+    /**
+     *
+     * 与分析时的 name.getDefiningScope() 相同
+     * @param name
+     * @return 定义 name 的作用域，没有时为 null
+     */
+    public Scope getDefiningScope(Name name) {
+        Binding binding = this.getBinding(name);
+        return binding == null ? null : binding.scope;
+    }
+
+    /**
+     *
+     * @param name
+     * @return name 是否是顶层定义的变量或函数
+     */
+    public boolean isGlobal(Name name) {
+        Scope scope = this.getDefiningScope(name);
+        return scope != null && scope.getClass() == AstRoot.class;
+    }
+
+    /**
+     *
+     * @param scope
+     * @return scope 里被引用过的绑定，按第一次引用的顺序
+     */
+    public Collection<Binding> getBindings(Scope scope) {
+        this.ensureAnalyzed(scope);
+        Map<String, Binding> table = this.tables.get(scope);
+        return table == null ? Collections.<Binding>emptyList() : table.values();
+    }
+
+    /**
+     *
+     * @param scope
+     * @return 作用域按先序的编号，分析之后新建的作用域为 -1
+     */
+    public int getScopeId(Scope scope) {
+        this.ensureAnalyzed(scope);
+        Integer id = this.scopeIds.get(scope);
+        return id == null ? -1 : id.intValue();
+    }
+
+    /**
+     *
+     * 每个引用从所在的作用域沿作用域链向上，直到定义它的作用域，途经的作用域都记下这个引用
+     */
+    private void computeOuterReferences() {
+        this.outerBindings = new IdentityHashMap<Scope, Set<Binding>>();
+        this.outerNames = new IdentityHashMap<Scope, Set<String>>();
+        for (Map.Entry<Name, Binding> entry : this.bindings.entrySet()) {
+            Name name = entry.getKey();
+            Binding binding = entry.getValue();
+            Scope stop = binding == UNRESOLVED ? null : binding.scope;
+            for (Scope scope = name.getEnclosingScope(); scope != null && scope != stop; scope = scope.getParentScope()) {
+                if (binding == UNRESOLVED) {
+                    Set<String> names = this.outerNames.get(scope);
+                    if (names == null) {
+                        names = new HashSet<String>();
+                        this.outerNames.put(scope, names);
+                    }
+                    names.add(name.getIdentifier());
+                } else {
+                    Set<Binding> outer = this.outerBindings.get(scope);
+                    if (outer == null) {
+                        outer = Collections.newSetFromMap(new IdentityHashMap<Binding, Boolean>());
+                        this.outerBindings.put(scope, outer);
+                    }
+                    outer.add(binding);
+                }
+            }
+        }
+    }
+
+    /**
+     *
+     * scope 里的名字不能和这些绑定的名字相同，否则会遮住它们
+     * 只包括第一次查询前已经解析的引用
+     * @param scope
+     * @return scope 及其内层作用域引用的、定义在 scope 外的绑定
+     */
+    public Set<Binding> getOuterBindings(Scope scope) {
+        this.ensureAnalyzed(scope);
+        if (this.outerBindings == null) {
+            this.computeOuterReferences();
+        }
+        Set<Binding> outer = this.outerBindings.get(scope);
+        return outer == null ? Collections.<Binding>emptySet() : outer;
+    }
+
+    /**
+     *
+     * @param scope
+     * @return scope 及其内层作用域引用的、找不到定义的名字（全局对象上的属性、未声明的变量）
+     */
+    public Set<String> getOuterNames(Scope scope) {
+        this.ensureAnalyzed(scope);
+        if (this.outerBindings == null) {
+            this.computeOuterReferences();
+        }
+        Set<String> names = this.outerNames.get(scope);
+        return names == null ? Collections.<String>emptySet() : names;
+    }
+}
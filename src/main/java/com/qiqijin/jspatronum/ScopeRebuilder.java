@@ -0,0 +1,233 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.ArrayComprehension;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.GeneratorExpression;
+import org.mozilla.javascript.ast.IfStatement;
+import org.mozilla.javascript.ast.LabeledStatement;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.ScriptNode;
+import org.mozilla.javascript.ast.SwitchCase;
+import org.mozilla.javascript.ast.Symbol;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+import org.mozilla.javascript.ast.WithStatement;
+
+/**
+ *
+ * 在整棵树上重新设置父节点、作用域链和符号表，代替打印后重新解析
+ * 符号的定义规则与 Rhino Parser 一致，Name.getDefiningScope() 的结果与重新解析后相同
+ * 不是增量的：每个刷新点之前，TopFunction 把全部代码移进了立即执行函数，LocalVar 改了每个作用域里的名字而不改符号表，
+ * 几乎所有函数都要重建，所以总是从根节点开始，只省去打印和解析
+ * 箭头函数和普通函数一样以外层作用域为父作用域：(a) =&gt; { let b = a; return () =&gt; a + b; } 里的 a、b 都解析到外层箭头函数
+ * 和重新解析的已知差别：Rhino 只能带错误恢复解析的输入两边都不可靠；重新解析会去掉对象数字键的 0x 前缀（{0x4c7: 1} 打印成 {4c7: 1}），重建不会
+ * @author
+ */
+public class ScopeRebuilder {
+    private String unsupported;
+
+    /**
+     *
+     * 遇到无法重建的结构时抛出，由调用方退回到重新解析
+     */
+    static class UnsupportedException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        UnsupportedException(String message) {
+            super(message);
+        }
+    }
+
+    /**
+     * @return 上一次重建失败的原因
+     */
+    public String getUnsupported() {
+        return unsupported;
+    }
+
+    /**
+     *
+     * 重建整棵树
+     * @param root 语法树的根节点
+     * @return 是否成功，失败时语法树需要重新解析
+     */
+    public boolean rebuild(AstNode root) {
+        try {
+            this.rebuildNode(root, null, null, Collections.newSetFromMap(new IdentityHashMap<AstNode, Boolean>()));
+            return true;
+        } catch (UnsupportedException e) {
+            this.unsupported = e.getMessage();
+            return false;
+        }
+    }
+
+    /**
+     *
+     * Rhino 解析箭头函数时不设置父作用域（普通函数在 IDE 模式下设置），函数体里引用外层的变量和参数时找不到定义
+     * 每次解析之后补上，否则 LocalVar 不改这些引用、GlobalVar 不替换其中的全局变量，输出里留下未定义的名字
+     * @param root 刚解析出的语法树
+     */
+    static void linkArrowFunctions(AstNode root) {
+        root.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode node) {
+                    if (node instanceof FunctionNode) {
+                        FunctionNode functionNode = (FunctionNode) node;
+                        if (functionNode.getFunctionType() == FunctionNode.ARROW_FUNCTION &&
+                            functionNode.getParentScope() == null && functionNode.getParent() != null) {
+                            functionNode.setParentScope(functionNode.getParent().getEnclosingScope());
+                        }
+                    }
+                    return true;
+                }
+            });
+    }
+
+    /**
+     *
+     * 父节点不是语句容器时，函数处在表达式的位置上
+     */
+    private static boolean isExpressionPosition(FunctionNode functionNode) {
+        AstNode parent = functionNode.getParent();
+        return parent != null &&
+            !(parent instanceof Scope || parent instanceof Block || parent instanceof IfStatement ||
+              parent instanceof LabeledStatement || parent instanceof SwitchCase || parent instanceof WithStatement);
+    }
+
+    /**
+     *
+     * 取出直接子节点，顺序与 visit 相同
+     */
+    private static List<AstNode> children(final AstNode astNode) {
+        final List<AstNode> children = new ArrayList<AstNode>();
+        astNode.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode node) {
+                    if (node == astNode) {
+                        return true;
+                    }
+                    children.add(node);
+                    return false;
+                }
+            });
+        return children;
+    }
+
+    private void rebuildNode(AstNode astNode, Scope scope, ScriptNode script, Set<AstNode> seen)
+        throws UnsupportedException {
+        if (!seen.add(astNode)) {
+            // 同一个节点挂在树的多个位置上
+            throw new UnsupportedException("shared node " + astNode.getClass().getSimpleName());
+        }
+        if (astNode instanceof ArrayComprehension || astNode instanceof GeneratorExpression) {
+            throw new UnsupportedException(astNode.getClass().getSimpleName());
+        }
+
+        Scope innerScope = scope;
+        ScriptNode innerScript = script;
+        if (astNode instanceof FunctionNode) {
+            FunctionNode functionNode = (FunctionNode) astNode;
+            if (isExpressionPosition(functionNode) &&
+                (functionNode.getFunctionType() == FunctionNode.FUNCTION_STATEMENT ||
+                 functionNode.getFunctionType() == FunctionNode.FUNCTION_EXPRESSION_STATEMENT)) {
+                // 函数声明被改写成了表达式，重新解析时会得到函数表达式
+                functionNode.setFunctionType(FunctionNode.FUNCTION_EXPRESSION);
+            }
+            Name functionName = functionNode.getFunctionName();
+            if (functionName != null && functionNode.getFunctionType() != FunctionNode.FUNCTION_EXPRESSION) {
+                defineSymbol(Token.FUNCTION, functionName.getIdentifier(), scope, script);
+            }
+        }
+        if (astNode instanceof ScriptNode) {
+            ScriptNode scriptNode = (ScriptNode) astNode;
+            scriptNode.setSymbolTable(null);
+            scriptNode.setSymbols(new ArrayList<Symbol>());
+            scriptNode.setParentScope(scope);
+            scriptNode.setTop(scriptNode);
+            innerScope = scriptNode;
+            innerScript = scriptNode;
+        } else if (astNode instanceof Scope) {
+            Scope blockScope = (Scope) astNode;
+            blockScope.setSymbolTable(null);
+            blockScope.setParentScope(scope);
+            if (script != null) {
+                blockScope.setTop(script);
+            }
+            innerScope = blockScope;
+        }
+
+        if (astNode instanceof FunctionNode) {
+            for (AstNode param : ((FunctionNode) astNode).getParams()) {
+                if (!(param instanceof Name)) {
+                    throw new UnsupportedException("destructuring parameter");
+                }
+                defineSymbol(Token.LP, ((Name) param).getIdentifier(), innerScope, innerScript);
+            }
+        } else if (astNode instanceof VariableDeclaration) {
+            VariableDeclaration variableDeclaration = (VariableDeclaration) astNode;
+            for (VariableInitializer variableInitializer : variableDeclaration.getVariables()) {
+                if (!(variableInitializer.getTarget() instanceof Name)) {
+                    throw new UnsupportedException("destructuring declaration");
+                }
+                String name = ((Name) variableInitializer.getTarget()).getIdentifier();
+                defineSymbol(variableDeclaration.getType(), name, innerScope, innerScript);
+            }
+        }
+
+        for (AstNode child : children(astNode)) {
+            child.setParent(astNode);
+            this.rebuildNode(child, innerScope, innerScript, seen);
+        }
+    }
+
+    /**
+     *
+     * 解析时函数的父作用域还没有设置，重复定义的检查止于最近的函数或脚本
+     */
+    private static Scope findDefiningScope(String name, Scope scope) {
+        for (Scope s = scope; s != null; s = s.getParentScope()) {
+            if (s.getSymbol(name) != null) {
+                return s;
+            }
+            if (s instanceof ScriptNode) {
+                break;
+            }
+        }
+        return null;
+    }
+
+    /**
+     *
+     * 与 Parser.defineSymbol 相同的定义规则，重复定义时保留先定义的符号
+     */
+    private static void defineSymbol(int declType, String name, Scope scope, ScriptNode script)
+        throws UnsupportedException {
+        if (scope == null || script == null) {
+            throw new UnsupportedException("declaration outside of a script");
+        }
+        Scope definingScope = findDefiningScope(name, scope);
+        Symbol symbol = definingScope != null ? definingScope.getSymbol(name) : null;
+        int symDeclType = symbol != null ? symbol.getDeclType() : -1;
+        if (symbol != null &&
+            (symDeclType == Token.CONST || declType == Token.CONST ||
+             (definingScope == scope && symDeclType == Token.LET))) {
+            return;
+        }
+        if (declType == Token.LET) {
+            scope.putSymbol(new Symbol(declType, name));
+        } else if (declType == Token.LP || symbol == null) {
+            script.putSymbol(new Symbol(declType, name));
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package com.qiqijin.jspatronum;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPOutputStream;
+
+import org.mozilla.javascript.ast.AstNode;
+
+/**
+ *
+ * 单个文件在各阶段之后的代码大小：原始、压缩（Compressor）后和压缩再 gzip 后的字节数
+ * 语法树按输出时的转义打印后计算，gzip 大小接近浏览器实际下载的大小
+ * @author
+ */
+public class SizeReport {
+    private List<Size> sizes = new ArrayList<Size>();
+
+    /**
+     *
+     * 一个阶段之后的大小，单位字节
+     */
+    public static class Size {
+        private String name;
+        private long raw;
+        private long minified;
+        private long gzip;
+
+        Size(String name, long raw, long minified, long gzip) {
+            this.name = name;
+            this.raw = raw;
+            this.minified = minified;
+            this.gzip = gzip;
+        }
+
+        /**
+         * @return the name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the raw
+         */
+        public long getRaw() {
+            return raw;
+        }
+
+        /**
+         * @return the minified
+         */
+        public long getMinified() {
+            return minified;
+        }
+
+        /**
+         * @return the gzip
+         */
+        public long getGzip() {
+            return gzip;
+        }
+    }
+
+    private static long gzip(byte[] bytes) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(bytes.length / 4 + 64);
+        try (GZIPOutputStream gzip = new GZIPOutputStream(out)) {
+            gzip.write(bytes);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return out.size();
+    }
+
+    /**
+     *
+     * 用 Compressor 压缩代码
+     * @param source
+     * @return 压缩后的代码
+     */
+    static String minify(String source) {
+        StringWriter minified = new StringWriter(source.length());
+        try {
+            new Compressor().compress(new StringReader(source), minified);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return minified.toString();
+    }
+
+    /**
+     *
+     * 记录一段代码的大小
+     * @param name 阶段名
+     * @param source 代码，已经是输出时的形式
+     */
+    public void add(String name, String source) {
+        this.add(name, source, minify(source));
+    }
+
+    private void add(String name, String source, String minified) {
+        byte[] minifiedBytes = minified.getBytes(StandardCharsets.UTF_8);
+        this.sizes.add(new Size(name, source.getBytes(StandardCharsets.UTF_8).length,
+                                minifiedBytes.length, gzip(minifiedBytes)));
+    }
+
+    /**
+     *
+     * 记录语法树打印后的大小，压缩后的代码直接由语法树打印
+     * @param name 阶段名
+     * @param root
+     */
+    public void add(String name, AstNode root) {
+        this.add(name, CodePrinter.print(root, false, true), CodePrinter.print(root, true, true));
+    }
+
+    /**
+     * @return 按记录顺序排列的大小，第一项是输入
+     */
+    public List<Size> getSizes() {
+        return sizes;
+    }
+
+    private static String ratio(long size, long base) {
+        return base == 0 ? "-" : String.format("%.2fx", (double) size / base);
+    }
+
+    /**
+     *
+     * 输出每个阶段的大小，step 是压缩后大小相对上一阶段的倍数，total 是相对输入的倍数
+     * @param out
+     */
+    public void write(PrintWriter out) {
+        out.println(String.format("  %-30s %10s %10s %10s %8s %8s", "size (bytes)", "raw", "min", "gzip", "step", "total"));
+        long input = this.sizes.isEmpty() ? 0 : this.sizes.get(0).minified;
+        long previous = input;
+        for (Size size : this.sizes) {
+            out.println(String.format("  %-30s %10d %10d %10d %8s %8s", size.name, size.raw, size.minified, size.gzip,
+                                      ratio(size.minified, previous), ratio(size.minified, input)));
+            previous = size.minified;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package com.qiqijin.jspatronum;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ *
+ * 输入输出文件的读写，字符集由 --charset 指定，默认 UTF-8
+ * 大文件内存映射读取，输出边编码边写入同目录的临时文件，完成后改名，读者看不到写了一半的文件
+ * @author
+ */
+public class SourceIO {
+    /**
+     * 超过这个大小的输入用内存映射读取，小文件映射的开销比复制大
+     */
+    static final long MAP_THRESHOLD = 1 << 20;
+
+    /**
+     * 输出时每次编码写入的字节数
+     */
+    static final int BUFFER_SIZE = 1 << 16;
+
+    private static final char BOM = '\uFEFF';
+    private static final char REPLACEMENT = '\uFFFD';
+
+    /**
+     *
+     * @return --charset 指定的字符集，没有指定时为 UTF-8
+     */
+    public static Charset charset(Options options) {
+        return options.getCharset() == null ? StandardCharsets.UTF_8 : Charset.forName(options.getCharset());
+    }
+
+    /**
+     *
+     * 读取文件的全部字节
+     * @param path
+     * @return 大文件为只读的内存映射，位置为 0
+     *
+     * @throws IOException
+     */
+    public static ByteBuffer read(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size >= MAP_THRESHOLD) {
+                return channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            }
+            ByteBuffer bytes = ByteBuffer.allocate((int) size);
+            while (bytes.hasRemaining() && channel.read(bytes) >= 0) {
+            }
+            bytes.flip();
+            return bytes;
+        }
+    }
+
+    /**
+     *
+     * 按字符集解码，去掉开头的 BOM；遇到不合法的字节时报告位置，不替换成乱码
+     * 先用 String 的构造函数解码（对 ASCII 有快速路径），出现替换字符时再严格检查一遍
+     * @param bytes 不改变它的位置
+     * @param charset
+     * @return 解码后的代码
+     *
+     * @throws IOException 字节不符合字符集
+     */
+    public static String decode(ByteBuffer bytes, Charset charset) throws IOException {
+        byte[] array;
+        int offset;
+        int length = bytes.remaining();
+        if (bytes.hasArray()) {
+            array = bytes.array();
+            offset = bytes.arrayOffset() + bytes.position();
+        } else {
+            array = new byte[length];
+            bytes.duplicate().get(array);
+            offset = 0;
+        }
+        String text = new String(array, offset, length, charset);
+        if (text.indexOf(REPLACEMENT) >= 0) {
+            // 也可能是代码里本来就有的替换字符
+            check(ByteBuffer.wrap(array, offset, length), charset);
+        }
+        return !text.isEmpty() && text.charAt(0) == BOM ? text.substring(1) : text;
+    }
+
+    private static void check(ByteBuffer in, Charset charset) throws IOException {
+        CharsetDecoder decoder = charset.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPORT)
+            .onUnmappableCharacter(CodingErrorAction.REPORT);
+        CharBuffer out = CharBuffer.allocate(BUFFER_SIZE);
+        while (true) {
+            CoderResult result = decoder.decode(in, out, true);
+            if (result.isError()) {
+                throw new IOException("input is not valid " + charset.name() + " at byte " + in.position());
+            }
+            if (result.isUnderflow()) {
+                return;
+            }
+            out.clear();
+        }
+    }
+
+    /**
+     *
+     * 写入的目标：符号链接写到它指向的文件，和直接打开写入时一样
+     */
+    private static Path target(Path path) throws IOException {
+        return Files.isSymbolicLink(path) ? path.toRealPath() : path.toAbsolutePath();
+    }
+
+    /**
+     *
+     * 在目标的目录里创建临时文件，改名才是原子的
+     * 不用 createTempFile，它只给所有者读写权限；新文件按 umask 创建，已有文件沿用原来的权限
+     */
+    private static Path tempFile(Path path) throws IOException {
+        Path temp;
+        while (true) {
+            temp = path.resolveSibling("." + path.getFileName() + "." + Long.toHexString(ThreadLocalRandom.current().nextLong()) + ".tmp");
+            try {
+                Files.createFile(temp);
+                break;
+            } catch (FileAlreadyExistsException e) {
+                // 重名时换一个
+            }
+        }
+        try {
+            if (Files.exists(path)) {
+                Files.setPosixFilePermissions(temp, Files.getPosixFilePermissions(path));
+            }
+        } catch (UnsupportedOperationException e) {
+            // 不是 POSIX 文件系统
+        }
+        return temp;
+    }
+
+    private static void replace(Path temp, Path path) throws IOException {
+        try {
+            Files.move(temp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     *
+     * 写入临时文件后改名为 path
+     * @param path
+     * @param bytes
+     *
+     * @throws IOException
+     */
+    public static void write(Path path, byte[] bytes) throws IOException {
+        path = target(path);
+        Path temp = tempFile(path);
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            replace(temp, path);
+        } finally {
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    /**
+     *
+     * 边编码边写入临时文件，commit 后才改名为目标文件；没有 commit 就关闭时删除临时文件
+     */
+    public static class AtomicWriter extends Writer {
+        private Path path;
+        private Path temp;
+        private FileChannel channel;
+        private Writer writer;
+        private boolean committed = false;
+
+        /**
+         *
+         * @param path 目标文件
+         * @param charset 输出的字符集，不写 BOM
+         *
+         * @throws IOException
+         */
+        public AtomicWriter(Path path, Charset charset) throws IOException {
+            this.path = target(path);
+            this.temp = tempFile(this.path);
+            this.channel = FileChannel.open(this.temp, StandardOpenOption.WRITE);
+            this.writer = Channels.newWriter(this.channel, charset.newEncoder()
+                                             .onMalformedInput(CodingErrorAction.REPORT)
+                                             .onUnmappableCharacter(CodingErrorAction.REPORT), BUFFER_SIZE);
+        }
+
+        @Override
+        public void write(char[] buffer, int offset, int length) throws IOException {
+            this.writer.write(buffer, offset, length);
+        }
+
+        @Override
+        public void write(String string, int offset, int length) throws IOException {
+            this.writer.write(string, offset, length);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.writer.flush();
+        }
+
+        /**
+         *
+         * 写完剩余内容，把临时文件改名为目标文件
+         *
+         * @throws IOException
+         */
+        public void commit() throws IOException {
+            this.writer.close();
+            replace(this.temp, this.path);
+            this.committed = true;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (this.committed) {
+                return;
+            }
+            try {
+                this.channel.close();
+            } finally {
+                Files.deleteIfExists(this.temp);
+            }
+        }
+    }
+}
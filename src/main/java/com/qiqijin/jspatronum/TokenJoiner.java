@@ -0,0 +1,222 @@
+package com.qiqijin.jspatronum;
+
+import java.util.Set;
+
+/**
+ *
+ * 压缩时记号之间的分隔规则，Compressor 的词法扫描和 CodePrinter 的压缩输出共用
+ * 调用方删除空白时记下 space/newline，写下一个记号前用 separator 决定要补的换行或空格，
+ * 写出的每个字符都通过 wrote 告诉它；它记住上一个记号的类别，用来区分正则和除号、判断换行是否影响自动分号
+ * @author
+ */
+class TokenJoiner {
+    private static final int MAX_KEYWORD_LENGTH = 10;
+
+    private static final int NONE = 0;
+    private static final int WORD = 1;
+    private static final int NUMBER = 2;
+    private static final int LITERAL = 3;
+    private static final int PUNCTUATOR = 4;
+
+    /**
+     * 后面出现的 / 是正则的关键字
+     */
+    private static final Set<String> regexKeywords = Set.of(
+        "return", "typeof", "instanceof", "in", "of", "new", "delete", "void",
+        "throw", "case", "do", "else", "yield", "await");
+
+    /**
+     * 后面不能插入换行的关键字，换行必须保留
+     */
+    private static final Set<String> restrictedKeywords = Set.of(
+        "return", "break", "continue", "throw", "yield", "async");
+
+    private int lastKind = NONE;
+    private int lastChar = -1;
+    private boolean lastIncDec;
+    private StringBuilder lastWord = new StringBuilder(MAX_KEYWORD_LENGTH);
+    private boolean pendingSpace;
+    private boolean pendingNewline;
+
+    /**
+     *
+     * 回到输出开头的状态
+     */
+    void reset() {
+        this.lastKind = NONE;
+        this.lastChar = -1;
+        this.lastIncDec = false;
+        this.lastWord.setLength(0);
+        this.pendingSpace = false;
+        this.pendingNewline = false;
+    }
+
+    static boolean isLineTerminator(int c) {
+        return c == '\n' || c == '\r' || c == '\u2028' || c == '\u2029';
+    }
+
+    static boolean isNameChar(int c) {
+        if (c < 128) {
+            return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+                c == '$' || c == '_' || c == '\\';
+        }
+        return Character.isJavaIdentifierPart(c);
+    }
+
+    /**
+     *
+     * 删除了一段不含换行的空白
+     */
+    void space() {
+        this.pendingSpace = true;
+    }
+
+    /**
+     *
+     * 删除了一段含换行的空白
+     */
+    void newline() {
+        this.pendingNewline = true;
+    }
+
+    /**
+     *
+     * 丢弃删除的空白，下一个记号直接相连（字面量内部）
+     */
+    void clearPending() {
+        this.pendingSpace = false;
+        this.pendingNewline = false;
+    }
+
+    /**
+     * @return 上一个记号之后删除过空白
+     */
+    boolean isSeparated() {
+        return this.pendingSpace || this.pendingNewline;
+    }
+
+    /**
+     * @return 在输出开头或者刚删除了换行，--&gt; 在这里是单行注释
+     */
+    boolean isLineStart() {
+        return this.pendingNewline || this.lastKind == NONE;
+    }
+
+    /**
+     *
+     * 写出了一个字符
+     */
+    void wrote(int c) {
+        this.lastChar = c;
+    }
+
+    /**
+     *
+     * 开始一个标识符、关键字或数字，之后的字符交给 wordChar
+     */
+    void beginWord(int c) {
+        this.lastKind = c >= '0' && c <= '9' ? NUMBER : WORD;
+        this.lastWord.setLength(0);
+    }
+
+    void wordChar(char c) {
+        if (this.lastWord.length() <= MAX_KEYWORD_LENGTH) {
+            this.lastWord.append(c);
+        }
+    }
+
+    /**
+     *
+     * 写出一个运算符或标点之前调用
+     * @param c 运算符字符
+     * @param separated 和上一个字符之间删除过空白
+     */
+    void punctuator(int c, boolean separated) {
+        this.lastIncDec = (c == '+' || c == '-') && !separated &&
+            this.lastKind == PUNCTUATOR && this.lastChar == c && !this.lastIncDec;
+        this.lastKind = PUNCTUATOR;
+    }
+
+    /**
+     *
+     * 写出了字符串、正则或模板字符串
+     */
+    void literal() {
+        this.lastKind = LITERAL;
+    }
+
+    /**
+     *
+     * 根据上一个记号判断 / 开始的是正则还是除号
+     */
+    boolean isRegexAllowed() {
+        switch (this.lastKind) {
+        case NONE:
+            return true;
+        case WORD:
+            return regexKeywords.contains(this.lastWord.toString());
+        case PUNCTUATOR:
+            // 代码块结尾的 } 后面更可能是语句，按正则处理只会少压缩，不会出错
+            return this.lastChar != ')' && this.lastChar != ']' && !this.lastIncDec;
+        default:
+            return false;
+        }
+    }
+
+    /**
+     *
+     * 上一个记号可以结束一条语句
+     */
+    private boolean canEndStatement() {
+        return this.lastKind == WORD || this.lastKind == NUMBER || this.lastKind == LITERAL ||
+            this.lastChar == ')' || this.lastChar == ']' || this.lastChar == '}' || this.lastIncDec;
+    }
+
+    /**
+     *
+     * 删除换行后，下一个记号可能和上一行接成一条语句
+     */
+    private boolean canStartStatement(int c, int next) {
+        if (isNameChar(c) || c == '(' || c == '[' || c == '{' || c == '!' || c == '~' ||
+            c == '"' || c == '\'' || c == '`') {
+            return true;
+        }
+        if (c == '+' || c == '-') {
+            return next == c;
+        }
+        return c == '/' && this.isRegexAllowed();
+    }
+
+    private boolean needsSpace(int c) {
+        int last = this.lastChar;
+        return (isNameChar(last) && isNameChar(c)) ||
+            (this.lastKind == NUMBER && c == '.') ||
+            (last == '+' && c == '+') || (last == '-' && c == '-') ||
+            (last == '/' && (c == '/' || c == '*')) ||
+            (last == '<' && c == '!') || (last == '-' && c == '>');
+    }
+
+    /**
+     *
+     * 写下一个记号前，决定被删除的空白是否需要保留为换行或空格，并清除记下的空白
+     * @param c 下一个记号的首字符
+     * @param next 第二个字符，不知道时为 -1
+     * @return 要先写出的 '\n' 或 ' '，不需要时为 -1
+     */
+    int separator(int c, int next) {
+        if (!this.pendingSpace && !this.pendingNewline) {
+            return -1;
+        }
+        int separator = -1;
+        if (this.pendingNewline && this.lastKind != NONE &&
+            ((this.lastKind == WORD && restrictedKeywords.contains(this.lastWord.toString())) ||
+             (this.canEndStatement() && this.canStartStatement(c, next)))) {
+            separator = '\n';
+        } else if (this.needsSpace(c)) {
+            separator = ' ';
+        }
+        this.pendingSpace = false;
+        this.pendingNewline = false;
+        return separator;
+    }
+}
@@ -1,5 +1,8 @@
 package com.qiqijin.jspatronum;
 
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.random.RandomGenerator;
+
 /**
  *
  * 工具函数
@@ -30,12 +33,23 @@ public class Tool {
 	 * @return
 	 */
     public static String getRandomName(int nums) {
-        int len = (int)Math.ceil(Math.random()*nums);
+        return getRandomName(nums, ThreadLocalRandom.current());
+    }
+
+	/**
+	 *
+	 * 用指定的随机数生成变量名，pass 里传入自己的流以便按 --seed 复现
+	 * @param nums
+	 * @param random
+	 * @return
+	 */
+    public static String getRandomName(int nums, RandomGenerator random) {
+        int len = (int)Math.ceil(random.nextDouble()*nums);
         if (len > 0) {
             char[] name = new char[len];
-            name[0] = Build_in.varCharArray[(int)Math.floor(Math.random()*Build_in.firstChar)]; 
+            name[0] = Build_in.varCharArray[(int)Math.floor(random.nextDouble()*Build_in.firstChar)]; 
             for (int i = 1; i < len; i++) {
-                name[i] = Build_in.varCharArray[(int)Math.floor(Math.random()*Build_in.notFirstChar)]; 
+                name[i] = Build_in.varCharArray[(int)Math.floor(random.nextDouble()*Build_in.notFirstChar)]; 
             }
             return new String(name);
         } else {
@@ -1,15 +1,15 @@
 package com.qiqijin.jspatronum;
 
 import java.net.URLEncoder;
+import java.util.Set;
 
 import org.mozilla.javascript.ast.ArrayLiteral;
 import org.mozilla.javascript.ast.AstNode;
 import org.mozilla.javascript.ast.FunctionCall;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.NumberLiteral;
 import org.mozilla.javascript.ast.StringLiteral;
 
-public class VisitorConstant implements NodeVisitor{
+public class VisitorConstant implements Pass {
 
     private boolean isIntStr(String numStr) {
         for (int i = 0; i < numStr.length(); i++) {
@@ -76,9 +76,23 @@ public class VisitorConstant implements NodeVisitor{
 		return true;
 	}
 
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(NumberLiteral.class, StringLiteral.class, ArrayLiteral.class);
+    }
 
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(NumberLiteral.class, StringLiteral.class);
+    }
 
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
 
-
-
+    @Override
+    public boolean isChunkable() {
+        return true;
+    }
 }
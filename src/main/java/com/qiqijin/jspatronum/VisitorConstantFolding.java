@@ -0,0 +1,744 @@
+package com.qiqijin.jspatronum;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.mozilla.javascript.Node;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Token;
+import org.mozilla.javascript.ast.ArrayLiteral;
+import org.mozilla.javascript.ast.Assignment;
+import org.mozilla.javascript.ast.AstNode;
+import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.Block;
+import org.mozilla.javascript.ast.BreakStatement;
+import org.mozilla.javascript.ast.CatchClause;
+import org.mozilla.javascript.ast.ConditionalExpression;
+import org.mozilla.javascript.ast.ContinueStatement;
+import org.mozilla.javascript.ast.ElementGet;
+import org.mozilla.javascript.ast.ExpressionStatement;
+import org.mozilla.javascript.ast.FunctionCall;
+import org.mozilla.javascript.ast.FunctionNode;
+import org.mozilla.javascript.ast.IfStatement;
+import org.mozilla.javascript.ast.InfixExpression;
+import org.mozilla.javascript.ast.KeywordLiteral;
+import org.mozilla.javascript.ast.Name;
+import org.mozilla.javascript.ast.NewExpression;
+import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.NumberLiteral;
+import org.mozilla.javascript.ast.ObjectProperty;
+import org.mozilla.javascript.ast.ParenthesizedExpression;
+import org.mozilla.javascript.ast.PropertyGet;
+import org.mozilla.javascript.ast.ReturnStatement;
+import org.mozilla.javascript.ast.Scope;
+import org.mozilla.javascript.ast.StringLiteral;
+import org.mozilla.javascript.ast.ThrowStatement;
+import org.mozilla.javascript.ast.UnaryExpression;
+import org.mozilla.javascript.ast.VariableDeclaration;
+import org.mozilla.javascript.ast.VariableInitializer;
+import org.mozilla.javascript.ast.WhileLoop;
+import org.mozilla.javascript.ast.WithStatement;
+
+/**
+ *
+ * 混淆前的常量折叠和死代码删除，在其他 pass 之前执行，减少后面要混淆的代码
+ * --define 的名字替换为常量；只由字面量组成的表达式按 JS 语义（ScriptRuntime）求值，结果不比原式长时替换；
+ * 条件为常量的 if、?: 和 while (false) 只保留会执行的分支，return、throw、break、continue 之后的语句删除
+ * 删除的代码中声明的 var 和函数名保留为 var 声明；顶层不能这样保留（GlobalVar 不支持没有初始值的 var），有声明时不删除
+ * 按先序的逆序处理节点，子节点总是先于父节点
+ * @author
+ */
+public class VisitorConstantFolding implements Pass {
+    /**
+     * 表示 JS 的 null
+     */
+    private static final Object NULL = new Object();
+    private static final Pattern NUMBER = Pattern.compile("(\\d+(\\.\\d*)?|\\.\\d+)([eE][+-]?\\d+)?");
+
+    private Map<String, String> defines;
+    private int substituted = 0;
+    private int folded = 0;
+    private int branches = 0;
+    private int unreachable = 0;
+
+    public VisitorConstantFolding() {
+        this(Collections.<String, String>emptyMap());
+    }
+
+    /**
+     *
+     * @param defines --define 的名字和值：true、false、null、数字、带引号的字符串，其余按字符串处理
+     */
+    public VisitorConstantFolding(Map<String, String> defines) {
+        this.defines = defines;
+    }
+
+    /**
+     *
+     * --define 的值对应的字面量
+     * @param value
+     * @return
+     */
+    static AstNode defineValue(String value) {
+        if (value.equals("true")) {
+            return createKeyword(Token.TRUE);
+        } else if (value.equals("false")) {
+            return createKeyword(Token.FALSE);
+        } else if (value.equals("null")) {
+            return createKeyword(Token.NULL);
+        } else if (NUMBER.matcher(value).matches()) {
+            return createNumber(Double.parseDouble(value));
+        } else if (value.length() >= 2 && (value.charAt(0) == '"' || value.charAt(0) == '\'')
+                   && value.charAt(value.length() - 1) == value.charAt(0)) {
+            return createString(value.substring(1, value.length() - 1));
+        }
+        return createString(value);
+    }
+
+    private static KeywordLiteral createKeyword(int type) {
+        KeywordLiteral keywordLiteral = new KeywordLiteral();
+        keywordLiteral.setType(type);
+        return keywordLiteral;
+    }
+
+    private static StringLiteral createString(String value) {
+        StringLiteral stringLiteral = new StringLiteral();
+        stringLiteral.setQuoteCharacter('\"');
+        stringLiteral.setValue(value);
+        return stringLiteral;
+    }
+
+    /**
+     *
+     * 数字字面量，负数为取负的一元表达式；NaN、无穷、-0 和需要指数形式的数返回 null
+     */
+    private static AstNode createNumber(double number) {
+        if (Double.isNaN(number) || Double.isInfinite(number) || number == 0 && 1 / number < 0) {
+            return null;
+        }
+        String value = ScriptRuntime.numberToString(Math.abs(number), 10);
+        if (value.indexOf('e') >= 0) {
+            // VisitorConstant 只改写不带指数的数
+            return null;
+        }
+        NumberLiteral numberLiteral = new NumberLiteral();
+        numberLiteral.setValue(value);
+        numberLiteral.setNumber(Math.abs(number));
+        if (number >= 0) {
+            return numberLiteral;
+        }
+        UnaryExpression negative = new UnaryExpression();
+        negative.setOperator(Token.NEG);
+        negative.setOperand(numberLiteral);
+        return negative;
+    }
+
+    private static AstNode createLiteral(Object value) {
+        if (value == NULL) {
+            return createKeyword(Token.NULL);
+        } else if (value instanceof Boolean) {
+            return createKeyword(((Boolean) value).booleanValue() ? Token.TRUE : Token.FALSE);
+        } else if (value instanceof String) {
+            return createString((String) value);
+        }
+        return createNumber(((Double) value).doubleValue());
+    }
+
+    private static Object toJs(Object value) {
+        return value == NULL ? null : value;
+    }
+
+    /**
+     *
+     * 只由字面量组成、没有副作用的表达式的值
+     * @return Double、String、Boolean 或 NULL，不是常量时为 null
+     */
+    private static Object constant(AstNode astNode) {
+        Class<?> type = astNode.getClass();
+        if (type == NumberLiteral.class) {
+            return ((NumberLiteral) astNode).getNumber();
+        } else if (type == StringLiteral.class) {
+            return ((StringLiteral) astNode).getValue();
+        } else if (type == KeywordLiteral.class) {
+            switch (astNode.getType()) {
+            case Token.TRUE:
+                return Boolean.TRUE;
+            case Token.FALSE:
+                return Boolean.FALSE;
+            case Token.NULL:
+                return NULL;
+            default:
+                return null;
+            }
+        } else if (type == ParenthesizedExpression.class) {
+            return constant(((ParenthesizedExpression) astNode).getExpression());
+        } else if (type == UnaryExpression.class) {
+            return unary((UnaryExpression) astNode);
+        } else if (type == InfixExpression.class) {
+            return infix((InfixExpression) astNode);
+        } else if (type == ConditionalExpression.class) {
+            ConditionalExpression conditional = (ConditionalExpression) astNode;
+            Object test = constant(conditional.getTestExpression());
+            if (test == null) {
+                return null;
+            }
+            return constant(ScriptRuntime.toBoolean(toJs(test)) ? conditional.getTrueExpression() : conditional.getFalseExpression());
+        }
+        return null;
+    }
+
+    private static Object unary(UnaryExpression unaryExpression) {
+        Object operand = constant(unaryExpression.getOperand());
+        if (operand == null) {
+            return null;
+        }
+        switch (unaryExpression.getOperator()) {
+        case Token.NOT:
+            return Boolean.valueOf(!ScriptRuntime.toBoolean(toJs(operand)));
+        case Token.TYPEOF:
+            return ScriptRuntime.typeof(toJs(operand));
+        case Token.NEG:
+            return operand instanceof Double ? Double.valueOf(-((Double) operand).doubleValue()) : null;
+        case Token.POS:
+            return operand instanceof Double ? operand : null;
+        case Token.BITNOT:
+            return operand instanceof Double ? Double.valueOf(~ScriptRuntime.toInt32(((Double) operand).doubleValue())) : null;
+        default:
+            return null;
+        }
+    }
+
+    private static Object infix(InfixExpression infixExpression) {
+        int operator = infixExpression.getOperator();
+        Object left = constant(infixExpression.getLeft());
+        if (left == null) {
+            return null;
+        }
+        if (operator == Token.AND || operator == Token.OR) {
+            boolean truthy = ScriptRuntime.toBoolean(toJs(left));
+            return (operator == Token.AND) == truthy ? constant(infixExpression.getRight()) : left;
+        }
+        Object right = constant(infixExpression.getRight());
+        if (right == null) {
+            return null;
+        }
+        if (operator == Token.ADD) {
+            if (left instanceof String || right instanceof String) {
+                return ScriptRuntime.toString(toJs(left)) + ScriptRuntime.toString(toJs(right));
+            }
+        } else if (operator == Token.SHEQ || operator == Token.SHNE) {
+            boolean equal = left.getClass() == right.getClass() && (left instanceof Double
+                ? ((Double) left).doubleValue() == ((Double) right).doubleValue() : left.equals(right));
+            return Boolean.valueOf(equal == (operator == Token.SHEQ));
+        } else if (operator == Token.EQ || operator == Token.NE) {
+            // 类型不同时涉及转换，不折叠
+            if (left.getClass() == right.getClass()) {
+                boolean equal = left instanceof Double
+                    ? ((Double) left).doubleValue() == ((Double) right).doubleValue() : left.equals(right);
+                return Boolean.valueOf(equal == (operator == Token.EQ));
+            }
+            return null;
+        } else if (left instanceof String && right instanceof String) {
+            int compare = ((String) left).compareTo((String) right);
+            switch (operator) {
+            case Token.LT:
+                return Boolean.valueOf(compare < 0);
+            case Token.LE:
+                return Boolean.valueOf(compare <= 0);
+            case Token.GT:
+                return Boolean.valueOf(compare > 0);
+            case Token.GE:
+                return Boolean.valueOf(compare >= 0);
+            default:
+                return null;
+            }
+        }
+        if (!(left instanceof Double) || !(right instanceof Double)) {
+            return null;
+        }
+        double x = ((Double) left).doubleValue();
+        double y = ((Double) right).doubleValue();
+        switch (operator) {
+        case Token.ADD:
+            return Double.valueOf(x + y);
+        case Token.SUB:
+            return Double.valueOf(x - y);
+        case Token.MUL:
+            return Double.valueOf(x * y);
+        case Token.DIV:
+            return Double.valueOf(x / y);
+        case Token.MOD:
+            return Double.valueOf(x % y);
+        case Token.BITOR:
+            return Double.valueOf(ScriptRuntime.toInt32(x) | ScriptRuntime.toInt32(y));
+        case Token.BITXOR:
+            return Double.valueOf(ScriptRuntime.toInt32(x) ^ ScriptRuntime.toInt32(y));
+        case Token.BITAND:
+            return Double.valueOf(ScriptRuntime.toInt32(x) & ScriptRuntime.toInt32(y));
+        case Token.LSH:
+            return Double.valueOf(ScriptRuntime.toInt32(x) << (ScriptRuntime.toUint32(y) & 0x1f));
+        case Token.RSH:
+            return Double.valueOf(ScriptRuntime.toInt32(x) >> (ScriptRuntime.toUint32(y) & 0x1f));
+        case Token.URSH:
+            return Double.valueOf(ScriptRuntime.toUint32(x) >>> (ScriptRuntime.toUint32(y) & 0x1f));
+        case Token.LT:
+            return Boolean.valueOf(x < y);
+        case Token.LE:
+            return Boolean.valueOf(x <= y);
+        case Token.GT:
+            return Boolean.valueOf(x > y);
+        case Token.GE:
+            return Boolean.valueOf(x >= y);
+        default:
+            return null;
+        }
+    }
+
+    /**
+     *
+     * astNode（可以在括号里）是否是函数调用的目标
+     */
+    private static boolean isCallTarget(AstNode astNode) {
+        AstNode target = astNode;
+        while (target.getParent() instanceof ParenthesizedExpression) {
+            target = target.getParent();
+        }
+        return target.getParent() instanceof FunctionCall && ((FunctionCall) target.getParent()).getTarget() == target;
+    }
+
+    private static boolean isLiteral(AstNode astNode) {
+        Class<?> type = astNode.getClass();
+        return type == NumberLiteral.class || type == StringLiteral.class || type == KeywordLiteral.class;
+    }
+
+    /**
+     *
+     * 在父节点中用 replacement 替换表达式 astNode，只处理取值的位置
+     * @return 父节点不支持时为 false
+     */
+    private static boolean replaceExpression(AstNode astNode, AstNode replacement) {
+        AstNode parent = astNode.getParent();
+        if (parent == null) {
+            return false;
+        }
+        Class<?> type = parent.getClass();
+        if (replacement instanceof UnaryExpression && parent instanceof UnaryExpression) {
+            // 避免 - -1 打印成 --1
+            return false;
+        }
+        if (type == InfixExpression.class || type == Assignment.class && ((Assignment) parent).getRight() == astNode) {
+            InfixExpression infixExpression = (InfixExpression) parent;
+            if (infixExpression.getLeft() == astNode) {
+                infixExpression.setLeft(replacement);
+            } else {
+                infixExpression.setRight(replacement);
+            }
+        } else if (type == ObjectProperty.class && ((ObjectProperty) parent).getRight() == astNode) {
+            ((ObjectProperty) parent).setRight(replacement);
+        } else if (type == UnaryExpression.class) {
+            ((UnaryExpression) parent).setOperand(replacement);
+        } else if (type == ParenthesizedExpression.class) {
+            ((ParenthesizedExpression) parent).setExpression(replacement);
+        } else if (type == ConditionalExpression.class) {
+            ConditionalExpression conditional = (ConditionalExpression) parent;
+            if (conditional.getTestExpression() == astNode) {
+                conditional.setTestExpression(replacement);
+            } else if (conditional.getTrueExpression() == astNode) {
+                conditional.setTrueExpression(replacement);
+            } else {
+                conditional.setFalseExpression(replacement);
+            }
+        } else if (type == ExpressionStatement.class && replacement.getClass() != StringLiteral.class) {
+            // 单独的字符串语句可能成为指令
+            ((ExpressionStatement) parent).setExpression(replacement);
+        } else if (type == VariableInitializer.class && ((VariableInitializer) parent).getInitializer() == astNode) {
+            ((VariableInitializer) parent).setInitializer(replacement);
+        } else if ((type == FunctionCall.class || type == NewExpression.class) && ((FunctionCall) parent).getTarget() != astNode) {
+            List<AstNode> arguments = ((FunctionCall) parent).getArguments();
+            arguments.set(arguments.indexOf(astNode), replacement);
+            replacement.setParent(parent);
+        } else if (type == ArrayLiteral.class) {
+            List<AstNode> elements = ((ArrayLiteral) parent).getElements();
+            elements.set(elements.indexOf(astNode), replacement);
+            replacement.setParent(parent);
+        } else if (type == ElementGet.class && ((ElementGet) parent).getElement() == astNode) {
+            ((ElementGet) parent).setElement(replacement);
+        } else if (type == ReturnStatement.class) {
+            ((ReturnStatement) parent).setReturnValue(replacement);
+        } else if (type == ThrowStatement.class) {
+            ((ThrowStatement) parent).setExpression(replacement);
+        } else if (type == IfStatement.class && ((IfStatement) parent).getCondition() == astNode) {
+            ((IfStatement) parent).setCondition(replacement);
+        } else if (type == WhileLoop.class && ((WhileLoop) parent).getCondition() == astNode) {
+            ((WhileLoop) parent).setCondition(replacement);
+        } else {
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     *
+     * 没有声明、不在 with 和同名 catch 参数之内的名字才是 --define 的全局常量
+     */
+    private boolean isDefined(Name name) {
+        if (!this.defines.containsKey(name.getIdentifier()) || name.getDefiningScope() != null) {
+            return false;
+        }
+        for (AstNode ancestor = name.getParent(); ancestor != null; ancestor = ancestor.getParent()) {
+            if (ancestor.getClass() == WithStatement.class) {
+                return false;
+            } else if (ancestor.getClass() == CatchClause.class) {
+                AstNode varName = ((CatchClause) ancestor).getVarName();
+                if (varName instanceof Name && ((Name) varName).getIdentifier().equals(name.getIdentifier())) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void substitute(Name name) {
+        if (this.isDefined(name) && replaceExpression(name, defineValue(this.defines.get(name.getIdentifier())))) {
+            this.substituted += 1;
+        }
+    }
+
+    private static int printedLength(AstNode astNode) {
+        return CodePrinter.print(astNode, true, false).length();
+    }
+
+    /**
+     *
+     * 常量表达式替换为字面量；&&、|| 和 ?: 的条件为常量时替换为选中的操作数
+     */
+    private void foldExpression(AstNode astNode) {
+        AstNode replacement = null;
+        Object value = constant(astNode);
+        if (value != null) {
+            replacement = createLiteral(value);
+            if (replacement == null || printedLength(replacement) > printedLength(astNode)) {
+                return;
+            }
+        } else if (astNode.getClass() == ConditionalExpression.class) {
+            ConditionalExpression conditional = (ConditionalExpression) astNode;
+            Object test = constant(conditional.getTestExpression());
+            if (test != null) {
+                replacement = ScriptRuntime.toBoolean(toJs(test)) ? conditional.getTrueExpression() : conditional.getFalseExpression();
+            }
+        } else if (astNode.getClass() == InfixExpression.class) {
+            InfixExpression infixExpression = (InfixExpression) astNode;
+            int operator = infixExpression.getOperator();
+            Object left = constant(infixExpression.getLeft());
+            if (left != null && (operator == Token.AND || operator == Token.OR)
+                && (operator == Token.AND) == ScriptRuntime.toBoolean(toJs(left))) {
+                replacement = infixExpression.getRight();
+            }
+        }
+        // 属性引用被选中后作为调用目标时 this 会改变，eval 被选中后会变成直接 eval，能访问局部作用域
+        if (replacement == null || replacement instanceof PropertyGet || replacement instanceof ElementGet
+            || replacement.getClass() == Name.class && ((Name) replacement).getIdentifier().equals("eval")) {
+            return;
+        }
+        if (!isLiteral(replacement) && isCallTarget(astNode)) {
+            // 调用目标只替换为字面量
+            return;
+        }
+        if (replaceExpression(astNode, replacement)) {
+            this.folded += 1;
+        }
+    }
+
+    private static boolean isContainer(AstNode astNode) {
+        Class<?> type = astNode.getClass();
+        return type == Block.class || type == Scope.class || type == AstRoot.class;
+    }
+
+    /**
+     *
+     * 收集删除的代码中需要保留的 var 名字和函数名（包括块里声明的函数），不进入内层函数
+     * @return 有无法保留的声明（解构）时为 false
+     */
+    private static boolean collectDeclarations(AstNode astNode, final List<String> names) {
+        final boolean[] supported = {true};
+        astNode.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode node) {
+                    if (node instanceof FunctionNode) {
+                        Name functionName = ((FunctionNode) node).getFunctionName();
+                        if (functionName != null && ((FunctionNode) node).getFunctionType() != FunctionNode.FUNCTION_EXPRESSION) {
+                            names.add(functionName.getIdentifier());
+                        }
+                        return false;
+                    } else if (node.getClass() == VariableDeclaration.class && ((VariableDeclaration) node).isVar()) {
+                        for (VariableInitializer initializer : ((VariableDeclaration) node).getVariables()) {
+                            if (initializer.getTarget() instanceof Name) {
+                                names.add(((Name) initializer.getTarget()).getIdentifier());
+                            } else {
+                                supported[0] = false;
+                            }
+                        }
+                    }
+                    return true;
+                }
+            });
+        return supported[0];
+    }
+
+    /**
+     *
+     * 代替删除的代码，只声明其中的 var；没有声明时为 null
+     * @return 顶层或者有无法保留的声明时，代码不能删除，返回 astNode 本身
+     */
+    private static AstNode declarationsOf(AstNode astNode, AstNode position) {
+        List<String> names = new ArrayList<String>();
+        if (astNode != null && !collectDeclarations(astNode, names)) {
+            return astNode;
+        }
+        if (names.isEmpty()) {
+            return null;
+        }
+        if (position.getEnclosingFunction() == null) {
+            return astNode;
+        }
+        return createDeclaration(names);
+    }
+
+    private static VariableDeclaration createDeclaration(List<String> names) {
+        VariableDeclaration declaration = new VariableDeclaration();
+        declaration.setType(Token.VAR);
+        declaration.setIsStatement(true);
+        for (String identifier : names) {
+            VariableInitializer initializer = new VariableInitializer();
+            Name name = new Name();
+            name.setIdentifier(identifier);
+            initializer.setTarget(name);
+            declaration.addVariable(initializer);
+        }
+        return declaration;
+    }
+
+    /**
+     *
+     * 分支的语句能否直接放进外层的语句列表：块里没有 let、const 和函数声明
+     */
+    private static boolean canInline(AstNode branch) {
+        for (Node child = branch.getFirstChild(); child != null; child = child.getNext()) {
+            if (child instanceof FunctionNode) {
+                return false;
+            } else if (child.getClass() == VariableDeclaration.class && !((VariableDeclaration) child).isVar()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isElsePart(AstNode statement) {
+        AstNode parent = statement.getParent();
+        return parent.getClass() == IfStatement.class && ((IfStatement) parent).getElsePart() == statement;
+    }
+
+    /**
+     *
+     * 只替换语句列表里的语句和 else 分支，其他位置（循环体、标签等）不能删除语句
+     */
+    private static boolean isReplaceable(AstNode statement) {
+        AstNode parent = statement.getParent();
+        return parent != null && (isContainer(parent) || isElsePart(statement));
+    }
+
+    /**
+     *
+     * 用 replacement 代替语句 statement，replacement 为 null 时删除
+     */
+    private static void replaceStatement(AstNode statement, AstNode replacement) {
+        AstNode parent = statement.getParent();
+        if (isElsePart(statement)) {
+            ((IfStatement) parent).setElsePart(replacement);
+        } else if (replacement == null) {
+            parent.removeChild(statement);
+        } else if (replacement.getClass() == Scope.class && canInline(replacement)) {
+            List<AstNode> statements = new ArrayList<AstNode>();
+            for (Node child = replacement.getFirstChild(); child != null; child = child.getNext()) {
+                statements.add((AstNode) child);
+            }
+            for (AstNode child : statements) {
+                replacement.removeChild(child);
+                parent.addChildBefore(child, statement);
+                child.setParent(parent);
+            }
+            parent.removeChild(statement);
+        } else {
+            parent.replaceChild(statement, replacement);
+            replacement.setParent(parent);
+        }
+    }
+
+    private void foldIf(IfStatement ifStatement) {
+        Object condition = constant(ifStatement.getCondition());
+        if (condition == null || !isReplaceable(ifStatement)) {
+            return;
+        }
+        boolean taken = ScriptRuntime.toBoolean(toJs(condition));
+        AstNode kept = taken ? ifStatement.getThenPart() : ifStatement.getElsePart();
+        AstNode dropped = taken ? ifStatement.getElsePart() : ifStatement.getThenPart();
+        AstNode declarations = declarationsOf(dropped, ifStatement);
+        if (declarations == dropped && dropped != null) {
+            return;
+        }
+        AstNode replacement = kept;
+        if (declarations != null) {
+            if (kept == null) {
+                replacement = declarations;
+            } else if (kept.getClass() == Scope.class) {
+                kept.addChild(declarations);
+                declarations.setParent(kept);
+            } else {
+                Scope scope = new Scope();
+                scope.addChild(kept);
+                kept.setParent(scope);
+                scope.addChild(declarations);
+                declarations.setParent(scope);
+                replacement = scope;
+            }
+        }
+        replaceStatement(ifStatement, replacement);
+        this.branches += 1;
+    }
+
+    private void foldWhile(WhileLoop whileLoop) {
+        Object condition = constant(whileLoop.getCondition());
+        if (condition == null || ScriptRuntime.toBoolean(toJs(condition)) || !isReplaceable(whileLoop)) {
+            return;
+        }
+        AstNode declarations = declarationsOf(whileLoop.getBody(), whileLoop);
+        if (declarations == whileLoop.getBody()) {
+            return;
+        }
+        replaceStatement(whileLoop, declarations);
+        this.branches += 1;
+    }
+
+    private static boolean isJump(Node statement) {
+        Class<?> type = statement.getClass();
+        return type == ReturnStatement.class || type == ThrowStatement.class
+            || type == BreakStatement.class || type == ContinueStatement.class;
+    }
+
+    /**
+     *
+     * 删除语句列表中跳转语句之后的语句，函数声明保留
+     */
+    private void removeUnreachable(AstNode container) {
+        Node jump = null;
+        for (Node child = container.getFirstChild(); child != null; child = child.getNext()) {
+            if (isJump(child)) {
+                jump = child;
+                break;
+            }
+        }
+        if (jump == null || jump.getNext() == null) {
+            return;
+        }
+        List<AstNode> removed = new ArrayList<AstNode>();
+        List<String> names = new ArrayList<String>();
+        for (Node child = jump.getNext(); child != null; child = child.getNext()) {
+            if (child instanceof FunctionNode) {
+                continue;
+            }
+            if (!collectDeclarations((AstNode) child, names)) {
+                return;
+            }
+            removed.add((AstNode) child);
+        }
+        if (removed.isEmpty() || !names.isEmpty() && container.getEnclosingFunction() == null) {
+            return;
+        }
+        for (AstNode child : removed) {
+            container.removeChild(child);
+        }
+        if (!names.isEmpty()) {
+            AstNode declarations = createDeclaration(names);
+            container.addChildAfter(declarations, jump);
+            declarations.setParent(container);
+        }
+        this.unreachable += removed.size();
+    }
+
+    private void fold(AstNode astNode) {
+        Class<?> type = astNode.getClass();
+        if (type == Name.class) {
+            this.substitute((Name) astNode);
+        } else if (type == InfixExpression.class || type == UnaryExpression.class
+                   || type == ConditionalExpression.class || type == ParenthesizedExpression.class) {
+            this.foldExpression(astNode);
+        } else if (type == IfStatement.class) {
+            this.foldIf((IfStatement) astNode);
+        } else if (type == WhileLoop.class) {
+            this.foldWhile((WhileLoop) astNode);
+        }
+        if (isContainer(astNode)) {
+            this.removeUnreachable(astNode);
+        }
+    }
+
+    @Override
+    public boolean visit(AstNode astNode) {
+        if (astNode.getClass() == AstRoot.class) {
+            final List<AstNode> nodes = new ArrayList<AstNode>();
+            astNode.visit(new NodeVisitor() {
+                    @Override
+                    public boolean visit(AstNode node) {
+                        nodes.add(node);
+                        return true;
+                    }
+                });
+            for (int i = nodes.size() - 1; i >= 0; i--) {
+                this.fold(nodes.get(i));
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return 替换的 --define 名字数
+     */
+    public int getSubstituted() {
+        return substituted;
+    }
+
+    /**
+     * @return 折叠的表达式数
+     */
+    public int getFolded() {
+        return folded;
+    }
+
+    /**
+     * @return 删除的常量条件分支数
+     */
+    public int getBranches() {
+        return branches;
+    }
+
+    /**
+     * @return 删除的不可达语句数
+     */
+    public int getUnreachable() {
+        return unreachable;
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstNode.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
+}
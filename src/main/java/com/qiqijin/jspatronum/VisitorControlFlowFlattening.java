@@ -1,8 +1,11 @@
 package com.qiqijin.jspatronum;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.List;
-import java.util.Random;
+import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.mozilla.javascript.ast.*;
 
@@ -12,12 +15,54 @@ import org.mozilla.javascript.ast.*;
  *
  * @author Gin
  */
-public class VisitorControlFlowFlattening implements NodeVisitor {
+public class VisitorControlFlowFlattening implements Pass {
 
-    private Random random = new Random();
+    private SplittableRandom random;
     private int stateCounter = 0;
-    private String stateVarName = "state_" + Math.abs(random.nextInt());
-    private String switchVarName = "switch_" + Math.abs(random.nextInt());
+    private String stateVarName;
+    private String switchVarName;
+    private String predicateVarName;
+    private Set<AstNode> excluded;
+    private boolean hoisted;
+    private Set<FunctionNode> flattened = Collections.newSetFromMap(new IdentityHashMap<FunctionNode, Boolean>());
+
+    public VisitorControlFlowFlattening() {
+        this(Collections.<AstNode>emptySet(), false);
+    }
+
+    /**
+     * @param excluded 不做平坦化、也不插入谓词的函数（如 profile 得到的热点函数）
+     * @param hoisted 不透明谓词在函数开头和状态变量一起计算一次，分发循环和 if 只读取变量
+     */
+    public VisitorControlFlowFlattening(Set<AstNode> excluded, boolean hoisted) {
+        this(excluded, hoisted, new SplittableRandom());
+    }
+
+    /**
+     * @param random 谓词、虚假分支和变量名都取自它，相同的流得到相同的结果
+     */
+    public VisitorControlFlowFlattening(Set<AstNode> excluded, boolean hoisted, SplittableRandom random) {
+        this.excluded = excluded;
+        this.hoisted = hoisted;
+        this.random = random;
+        this.stateVarName = "state_" + random.nextInt(Integer.MAX_VALUE);
+        this.switchVarName = "switch_" + random.nextInt(Integer.MAX_VALUE);
+        this.predicateVarName = VisitorOpaquePredicates.PREFIX + random.nextInt(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 并行分块时使用的实例，变量名相同，随机数流从原实例 split 出来
+     * 已经平坦化的外层函数一起复制，其中的 if 仍然读取谓词变量
+     */
+    private VisitorControlFlowFlattening(VisitorControlFlowFlattening parent) {
+        this.excluded = parent.excluded;
+        this.hoisted = parent.hoisted;
+        this.random = parent.random.split();
+        this.stateVarName = parent.stateVarName;
+        this.switchVarName = parent.switchVarName;
+        this.predicateVarName = parent.predicateVarName;
+        this.flattened.addAll(parent.flattened);
+    }
 
     /**
      * 创建状态变量声明
@@ -35,6 +80,15 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         stateInit.setTarget(stateName);
         stateInit.setInitializer(initialState);
         stateDecl.addVariable(stateInit);
+        if (hoisted) {
+            VariableInitializer predicateInit = new VariableInitializer();
+            Name predicateName = new Name();
+            predicateName.setIdentifier(predicateVarName);
+            predicateInit.setTarget(predicateName);
+            predicateInit.setInitializer(createOpaquePredicateTrue());
+            stateDecl.addVariable(predicateInit);
+        }
+        stateDecl.setIsStatement(true);
 
         return stateDecl;
     }
@@ -65,10 +119,10 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         add.setLeft(mult);
         add.setRight(one);
 
-        // ((x * 2) + 1) % 2
+        // ((x * 2) + 1) % 2，InfixExpression 输出时不加括号
         InfixExpression mod = new InfixExpression();
         mod.setOperator(org.mozilla.javascript.Token.MOD);
-        mod.setLeft(add);
+        mod.setLeft(new ParenthesizedExpression(add));
         NumberLiteral twoClone = new NumberLiteral();
         twoClone.setValue("2");
         mod.setRight(twoClone);
@@ -84,6 +138,18 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         return compare;
     }
 
+    /**
+     * 真谓词，hoisted 策略下在已平坦化的函数里读取开头计算好的变量
+     */
+    private AstNode predicateTrue(FunctionNode function) {
+        if (hoisted && flattened.contains(function)) {
+            Name predicateName = new Name();
+            predicateName.setIdentifier(predicateVarName);
+            return predicateName;
+        }
+        return createOpaquePredicateTrue();
+    }
+
     /**
      * 创建虚假的控制流分支
      */
@@ -135,12 +201,42 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
      */
     private List<AstNode> getBlockStatements(Block block) {
         List<AstNode> statements = new ArrayList<AstNode>();
-        for (AstNode node : block) {
-            statements.add(node);
+        for (org.mozilla.javascript.Node node : block) {
+            statements.add((AstNode) node);
         }
         return statements;
     }
 
+    /**
+     * let、const 放进 case 后每次分发都重新进入 switch 的块作用域，后面的 case 会处于暂时性死区
+     */
+    private boolean hasLexicalDeclaration(List<AstNode> statements) {
+        for (AstNode statement : statements) {
+            if (statement instanceof VariableDeclaration && !((VariableDeclaration) statement).isVar()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 函数体的语句数，不算不透明谓词插入的变量声明，是否平坦化和 --predicate-strategy 无关
+     */
+    private int countStatements(Block body) {
+        int count = 0;
+        for (AstNode statement : getBlockStatements(body)) {
+            if (!VisitorOpaquePredicates.isPredicateDeclaration(statement)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    private boolean isFunctionDeclaration(AstNode statement) {
+        return statement instanceof FunctionNode
+            && ((FunctionNode) statement).getFunctionType() == FunctionNode.FUNCTION_STATEMENT;
+    }
+
     /**
      * 转换函数体为控制流平坦化结构
      */
@@ -153,15 +249,36 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         Block originalBlock = (Block) body;
         List<AstNode> originalStatements = getBlockStatements(originalBlock);
 
-        if (originalStatements.size() < 2) {
+        if (originalStatements.size() < 2 || hasLexicalDeclaration(originalStatements)) {
             return; // 太简单的函数不需要混淆
         }
 
         // 创建新的函数体
         Block newBody = new Block();
 
+        // "use strict" 等指令和函数声明留在函数体顶层：指令必须在最前面，函数声明放进 case 后要执行到那个 case 才会赋值
+        // 谓词变量也留在顶层，先于状态机赋值
+        List<AstNode> declarations = new ArrayList<AstNode>();
+        for (int i = 0; i < originalStatements.size() && VisitorOpaquePredicates.isDirective(originalStatements.get(i)); i++) {
+            declarations.add(originalStatements.get(i));
+        }
+        for (AstNode statement : originalStatements) {
+            if (isFunctionDeclaration(statement) || VisitorOpaquePredicates.isPredicateDeclaration(statement)) {
+                declarations.add(statement);
+            }
+        }
+        originalStatements.removeAll(declarations);
+        for (AstNode declaration : declarations) {
+            newBody.addStatement(declaration);
+        }
+        if (originalStatements.isEmpty()) {
+            function.setBody(newBody);
+            return;
+        }
+
         // 添加状态变量声明
         newBody.addStatement(createStateVariable());
+        flattened.add(function);
 
         // 添加虚假控制流
         newBody.addStatement(createBogusControlFlow());
@@ -170,7 +287,7 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         WhileLoop mainLoop = new WhileLoop();
 
         // 循环条件：不透明谓词 (总是为true)
-        mainLoop.setCondition(createOpaquePredicateTrue());
+        mainLoop.setCondition(predicateTrue(function));
 
         // 创建switch语句
         SwitchStatement switchStmt = new SwitchStatement();
@@ -215,7 +332,7 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
                 caseBlock.addStatement(breakStmt);
             }
 
-            caseStmt.setStatements(caseBlock);
+            caseStmt.setStatements(getBlockStatements(caseBlock));
             switchStmt.addCase(caseStmt);
         }
 
@@ -224,11 +341,13 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         Block defaultBlock = new Block();
         BreakStatement defaultBreak = new BreakStatement();
         defaultBlock.addStatement(defaultBreak);
-        defaultCase.setStatements(defaultBlock);
+        defaultCase.setStatements(getBlockStatements(defaultBlock));
         switchStmt.addCase(defaultCase);
 
+        // case 用 continue 进入下一个状态，执行到 switch 之后说明已经走完
         Block loopBody = new Block();
         loopBody.addStatement(switchStmt);
+        loopBody.addStatement(new BreakStatement());
         mainLoop.setBody(loopBody);
 
         newBody.addStatement(mainLoop);
@@ -247,8 +366,8 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         // 创建混淆后的条件：(原条件 && 不透明谓词)
         InfixExpression obfuscatedCondition = new InfixExpression();
         obfuscatedCondition.setOperator(org.mozilla.javascript.Token.AND);
-        obfuscatedCondition.setLeft(condition);
-        obfuscatedCondition.setRight(createOpaquePredicateTrue());
+        obfuscatedCondition.setLeft(new ParenthesizedExpression(condition));
+        obfuscatedCondition.setRight(predicateTrue(ifStmt.getEnclosingFunction()));
 
         ifStmt.setCondition(obfuscatedCondition);
 
@@ -260,13 +379,14 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
         if (node instanceof FunctionNode) {
             FunctionNode function = (FunctionNode) node;
             // 跳过太小的函数避免过度混淆
-            if (function.getBody() instanceof Block) {
+            if (function.getBody() instanceof Block && !excluded.contains(function)) {
                 Block body = (Block) function.getBody();
-                if (body.size() >= 3) { // 只对有一定复杂度的函数进行处理
+                if (countStatements(body) >= 3) { // 只对有一定复杂度的函数进行处理
                     flattenFunctionBody(function);
                 }
             }
-        } else if (node instanceof IfStatement) {
+        } else if (node instanceof IfStatement
+                   && (excluded.isEmpty() || !excluded.contains(node.getEnclosingFunction()))) {
             IfStatement ifStmt = (IfStatement) node;
             // 为if语句添加不透明谓词
             return obfuscateIfStatement(ifStmt) != null;
@@ -274,4 +394,24 @@ public class VisitorControlFlowFlattening implements NodeVisitor {
 
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isChunkable() {
+        return true;
+    }
+
+    @Override
+    public Pass fork() {
+        return new VisitorControlFlowFlattening(this);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(FunctionNode.class, Block.class, IfStatement.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
+}
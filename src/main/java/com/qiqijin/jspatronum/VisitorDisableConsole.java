@@ -1,5 +1,7 @@
 package com.qiqijin.jspatronum;
 
+import java.util.Set;
+
 import org.mozilla.javascript.ast.AstNode;
 import org.mozilla.javascript.ast.AstRoot;
 import org.mozilla.javascript.ast.Block;
@@ -7,7 +9,6 @@ import org.mozilla.javascript.ast.ExpressionStatement;
 import org.mozilla.javascript.ast.FunctionCall;
 import org.mozilla.javascript.ast.FunctionNode;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.ObjectLiteral;
 import org.mozilla.javascript.ast.ObjectProperty;
 import org.mozilla.javascript.ast.PropertyGet;
@@ -15,7 +16,7 @@ import org.mozilla.javascript.ast.ReturnStatement;
 import org.mozilla.javascript.ast.StringLiteral;
 import org.mozilla.javascript.ast.ThrowStatement;
 
-public class VisitorDisableConsole implements NodeVisitor {
+public class VisitorDisableConsole implements Pass {
 
     private AstNode createDisableConsoleNode() {
 
@@ -83,4 +84,14 @@ public class VisitorDisableConsole implements NodeVisitor {
         }
         return false;
 	}
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstRoot.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
 }
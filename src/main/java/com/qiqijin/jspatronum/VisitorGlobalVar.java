@@ -1,6 +1,7 @@
 package com.qiqijin.jspatronum;
 
 import java.util.List;
+import java.util.Set;
 
 import org.mozilla.javascript.Token;
 import org.mozilla.javascript.ast.Assignment;
@@ -13,9 +14,7 @@ import org.mozilla.javascript.ast.FunctionNode;
 import org.mozilla.javascript.ast.InfixExpression;
 import org.mozilla.javascript.ast.KeywordLiteral;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.PropertyGet;
-import org.mozilla.javascript.ast.Scope;
 import org.mozilla.javascript.ast.VariableDeclaration;
 import org.mozilla.javascript.ast.VariableInitializer;
 
@@ -24,14 +23,23 @@ import org.mozilla.javascript.ast.VariableInitializer;
  * 全局变量转换为this属性
  * @author
  */
-public class VisitorGlobalVar implements NodeVisitor {
+public class VisitorGlobalVar implements Pass {
+    private ScopeAnalysis scopeAnalysis;
+
+    public VisitorGlobalVar() {
+        this(new ScopeAnalysis());
+    }
+
+    /**
+     *
+     * @param scopeAnalysis 语法树的作用域分析，和其他 pass 共用
+     */
+    public VisitorGlobalVar(ScopeAnalysis scopeAnalysis) {
+        this.scopeAnalysis = scopeAnalysis;
+    }
 
     private boolean isGlobalVar(Name name) {
-        Scope defineScope = name.getDefiningScope();
-        if (defineScope != null && defineScope.getClass() == AstRoot.class) {
-            return true;
-        }
-        return false;
+        return this.scopeAnalysis.isGlobal(name);
     }
 
     private PropertyGet createPropertyGet(Name name) {
@@ -66,7 +74,11 @@ public class VisitorGlobalVar implements NodeVisitor {
 
     private void elementGetToProperty(ElementGet elementGet, Name name) {
         PropertyGet propertyGet = this.createPropertyGet(name);
-        elementGet.setTarget(propertyGet);
+        if (elementGet.getTarget() == name) {
+            elementGet.setTarget(propertyGet);
+        } else {
+            elementGet.setElement(propertyGet);
+        }
     }
 
     private void infixExpressionToProperty(InfixExpression infixExpression, Name name) {
@@ -135,4 +147,14 @@ public class VisitorGlobalVar implements NodeVisitor {
         }
         return true;
     }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(Name.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(VariableDeclaration.class, ExpressionStatement.class, Assignment.class, PropertyGet.class, Name.class, InfixExpression.class, ElementGet.class, FunctionCall.class, FunctionNode.class, KeywordLiteral.class);
+    }
 }
@@ -1,5 +1,7 @@
 package com.qiqijin.jspatronum;
 
+import java.util.Set;
+
 import org.mozilla.javascript.Token;
 import org.mozilla.javascript.ast.Assignment;
 import org.mozilla.javascript.ast.AstNode;
@@ -12,13 +14,12 @@ import org.mozilla.javascript.ast.FunctionCall;
 import org.mozilla.javascript.ast.IfStatement;
 import org.mozilla.javascript.ast.InfixExpression;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.PropertyGet;
 import org.mozilla.javascript.ast.Scope;
 import org.mozilla.javascript.ast.StringLiteral;
 import org.mozilla.javascript.ast.ThrowStatement;
 
-public class VisitorHostNameBind implements NodeVisitor {
+public class VisitorHostNameBind implements Pass {
     private String hostName;
 
     VisitorHostNameBind(String hostName) {
@@ -48,6 +49,8 @@ public class VisitorHostNameBind implements NodeVisitor {
         Name objectNode = new Name();
         Name keysNode = new Name();
         Name windowNode = new Name();
+        Name iteratedWindowNode = new Name();
+        Name iteratorKeyNode = new Name();
         Scope forScope = new Scope();
         ExpressionStatement expressionStatement = new ExpressionStatement();
         Assignment assignment = new Assignment();
@@ -81,8 +84,11 @@ public class VisitorHostNameBind implements NodeVisitor {
         functionCall.addArgument(windowNode);
         // forInLoop.setIteratedObject(functionCall);
         // forInLoop.setIterator(keyNode);
-        forInLoop.setIteratedObject(windowNode);
-        forInLoop.setIterator(keyNode);
+        // 循环头和循环体各用一份节点，同一节点不能挂在树的两处
+        iteratedWindowNode.setIdentifier("window");
+        iteratorKeyNode.setIdentifier("key");
+        forInLoop.setIteratedObject(iteratedWindowNode);
+        forInLoop.setIterator(iteratorKeyNode);
         forInLoop.setBody(forScope);
         // if
         ifScope.addChild(forInLoop);
@@ -108,4 +114,14 @@ public class VisitorHostNameBind implements NodeVisitor {
         }
         return false;
 	}
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstRoot.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
 }
@@ -1,19 +1,21 @@
 package com.qiqijin.jspatronum;
 
 import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
-import org.mozilla.javascript.Token;
 import org.mozilla.javascript.ast.ArrayLiteral;
 import org.mozilla.javascript.ast.AstNode;
-import org.mozilla.javascript.ast.AstRoot;
 import org.mozilla.javascript.ast.ConditionalExpression;
 import org.mozilla.javascript.ast.ElementGet;
 import org.mozilla.javascript.ast.FunctionCall;
 import org.mozilla.javascript.ast.InfixExpression;
 import org.mozilla.javascript.ast.KeywordLiteral;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
+import org.mozilla.javascript.ast.NumberLiteral;
 import org.mozilla.javascript.ast.ObjectProperty;
 import org.mozilla.javascript.ast.PropertyGet;
 import org.mozilla.javascript.ast.Scope;
@@ -23,12 +25,43 @@ import org.mozilla.javascript.ast.VariableInitializer;
 /**
  *
  * 字面量转换为函数参数
+ * 相同的字面量共用一个参数，按字面量种类和值建立哈希索引，每次查找不需要打印节点
+ * 遍历后由 layout 确定布局：不同的字面量超过 maxParams 个时，引用最多的仍作为参数，其余放进一个数组参数，
+ * 引用处取下标，按引用次数从多到少排列；提升后比留在原处更长的字面量不提升
  * @author
  */
-public class VisitorLiteralToVar implements NodeVisitor {
+public class VisitorLiteralToVar implements Pass {
+    /**
+     * 默认最多使用的参数个数，参数过多的函数在 JS 引擎中很慢，甚至超过参数个数的上限
+     */
+    public static final int MAX_PARAMS = 255;
+
     private List<AstNode> params = new ArrayList<AstNode>();
     private List<AstNode> arguments = new ArrayList<AstNode>();
+    // 每个参数对应的引用处节点
+    private List<List<Name>> uses = new ArrayList<List<Name>>();
+    private Map<String, Integer> pool = new HashMap<String, Integer>();
     private int count = 0;
+    private int references = 0;
+    private int maxParams;
+    private boolean laidOut = false;
+    private boolean array = false;
+    private int inlined = 0;
+    private long paramsSize = 0;
+    private long arraySize = 0;
+    private long unpooledSize = 0;
+
+    public VisitorLiteralToVar() {
+        this(MAX_PARAMS);
+    }
+
+    /**
+     *
+     * @param maxParams 不同的字面量超过这个数时使用数组
+     */
+    public VisitorLiteralToVar(int maxParams) {
+        this.maxParams = maxParams;
+    }
 
     private Name createParam() {
         this.count += 1;
@@ -37,7 +70,7 @@ public class VisitorLiteralToVar implements NodeVisitor {
         return name;
     }
 
-    private void infixToVar(InfixExpression infixExpression, AstNode astNode, Name name) {
+    private void infixToVar(InfixExpression infixExpression, AstNode astNode, AstNode name) {
         if (infixExpression.getLeft() == astNode) {
             infixExpression.setLeft(name);
         } else {
@@ -45,7 +78,7 @@ public class VisitorLiteralToVar implements NodeVisitor {
         }
     }
 
-    private void elementGetToVar(ElementGet elementGet, AstNode astNode, Name name) {
+    private void elementGetToVar(ElementGet elementGet, AstNode astNode, AstNode name) {
         if (elementGet.getTarget() == astNode) {
             elementGet.setTarget(name);
         } else {
@@ -53,43 +86,39 @@ public class VisitorLiteralToVar implements NodeVisitor {
         }
     }
 
-    private boolean argumentsHasNode(AstNode astNode) {
-        for (AstNode argument : this.arguments) {
-            if (argument.toSource().equals(astNode.toSource())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private AstNode getParamFromArgument(AstNode astNode) {
-        for (int i = 0; i < this.arguments.size(); i++) {
-            if (this.arguments.get(i).toSource().equals(astNode.toSource())) {
-                return this.params.get(i);
-            }
+    /**
+     *
+     * 字面量在池中的键，种类不同的字面量即使值相同也不合并
+     * 字符串的引号已统一为双引号，值相同即打印结果相同
+     */
+    private static String poolKey(AstNode astNode) {
+        if (astNode.getClass() == StringLiteral.class) {
+            return "s:" + ((StringLiteral) astNode).getValue();
         }
-        return null;
+        return "n:" + ((Name) astNode).getIdentifier();
     }
 
-    private void functionCallToVar(FunctionCall functionCall, AstNode astNode, Name name) {
+    private void functionCallToVar(FunctionCall functionCall, AstNode astNode, AstNode name) {
         List<AstNode> arguments = functionCall.getArguments();
         for (int i = 0; i < arguments.size(); i++) {
             if (arguments.get(i) == astNode) {
                 arguments.set(i, name);
+                name.setParent(functionCall);
             }
         }
     }
 
-    private void arrayLiteralToVar(ArrayLiteral arrayLiteral, AstNode astNode, Name name) {
+    private void arrayLiteralToVar(ArrayLiteral arrayLiteral, AstNode astNode, AstNode name) {
         List<AstNode> arrayList = arrayLiteral.getElements();
         for (int i = 0; i < arrayList.size(); i++) {
             if (arrayList.get(i) == astNode) {
                 arrayList.set(i, name);
+                name.setParent(arrayLiteral);
             }
         }
     }
 
-    private void conditionalExpressionToVar(ConditionalExpression conditionalExpression, AstNode astNode, Name name) {
+    private void conditionalExpressionToVar(ConditionalExpression conditionalExpression, AstNode astNode, AstNode name) {
         if (conditionalExpression.getFalseExpression() == astNode) {
             conditionalExpression.setFalseExpression(name);
         } else if (conditionalExpression.getTestExpression() == astNode) {
@@ -99,20 +128,36 @@ public class VisitorLiteralToVar implements NodeVisitor {
         } 
     }
 
-    private void variableInitializerToVar(VariableInitializer variableInitializer, AstNode astNode, Name name) {
+    private void variableInitializerToVar(VariableInitializer variableInitializer, AstNode astNode, AstNode name) {
         variableInitializer.setInitializer(name);
     }
 
     private void literalToVar(AstNode astNode) {
-        Name name;
-        if (this.argumentsHasNode(astNode)) {
-			name = (Name) this.getParamFromArgument(astNode);
-        }
-        else {
-            name = this.createParam();
+        String key = poolKey(astNode);
+        Integer index = this.pool.get(key);
+        if (index == null) {
+            index = this.params.size();
             this.arguments.add(astNode);
-            this.params.add(name);
+            this.params.add(this.createParam());
+            this.uses.add(new ArrayList<Name>());
+            this.pool.put(key, index);
         }
+        this.references += 1;
+        // 每个引用处使用独立的节点，参数节点只挂在函数参数列表上
+        Name name = new Name();
+        name.setIdentifier(((Name) this.params.get(index)).getIdentifier());
+        this.replace(astNode, name);
+        if (name.getParent() != null) {
+            // 父节点不是可以替换的类型时字面量留在原处
+            this.uses.get(index).add(name);
+        }
+    }
+
+    /**
+     *
+     * 在 astNode 的父节点中用 name 替换它
+     */
+    private void replace(AstNode astNode, AstNode name) {
         AstNode parentNode = astNode.getParent();
         
         if (parentNode instanceof InfixExpression) {
@@ -130,25 +175,6 @@ public class VisitorLiteralToVar implements NodeVisitor {
 		}
 	}
 
-	private boolean isThisKeyword(AstNode astNode) {
-        if (astNode.getClass() == KeywordLiteral.class &&
-            ((KeywordLiteral) astNode).getType() == Token.THIS) {
-            AstNode parent = astNode.getParent();
-            if (parent.getClass() == PropertyGet.class) {
-                PropertyGet propertyGet = (PropertyGet) parent;
-                AstNode property = propertyGet.getProperty();
-                if (property.getClass() == Name.class) {
-                    Name name = (Name)property;
-                    Scope scope = name.getDefiningScope();
-                    if (scope != null && scope.getClass() == AstRoot.class) {
-                        return true;
-                    }
-                }
-            }
-        }
-        return false;
-    }
-    
     private boolean isGlobalWindow(AstNode astNode) {
         if (astNode.getClass() == Name.class) {
             Name name = (Name) astNode;
@@ -191,6 +217,134 @@ public class VisitorLiteralToVar implements NodeVisitor {
             return true;
         }
 
+    /**
+     *
+     * 字面量原样输出的长度；数组里的字符串会被 VisitorConstant 编码为 unicode 转义，每个字符占 6 个
+     * @param use 引用处，null 时按池中的实参计算
+     */
+    private static long inlineSize(AstNode literal, Name use) {
+        if (literal.getClass() == StringLiteral.class) {
+            int length = ((StringLiteral) literal).getValue().length();
+            boolean inArray = use != null && use.getParent() != null && use.getParent().getClass() == ArrayLiteral.class;
+            return inArray ? length * 6L + 2 : length + 2;
+        }
+        return ((Name) literal).getIdentifier().length();
+    }
+
+    /**
+     *
+     * 下标经 VisitorConstant 改写为十六进制后的长度
+     */
+    private static int indexSize(int index) {
+        return Integer.toHexString(index).length() + 2;
+    }
+
+    private static NumberLiteral createIndex(int index) {
+        NumberLiteral numberLiteral = new NumberLiteral();
+        numberLiteral.setValue(String.valueOf(index));
+        return numberLiteral;
+    }
+
+    private static AstNode copyLiteral(AstNode literal) {
+        if (literal.getClass() == StringLiteral.class) {
+            StringLiteral stringLiteral = new StringLiteral();
+            stringLiteral.setQuoteCharacter('\"');
+            stringLiteral.setValue(((StringLiteral) literal).getValue());
+            return stringLiteral;
+        }
+        Name name = new Name();
+        name.setIdentifier(((Name) literal).getIdentifier());
+        return name;
+    }
+
+    /**
+     *
+     * 遍历结束后、生成顶层函数前确定布局，估算的是压缩输出中字面量和引用所占的字符数
+     * 参数布局：第 i 个参数重命名后的名字在参数列表和每个引用处各出现一次
+     * 数组布局：数组作为第一个参数，引用最多的 maxParams-1 个字面量仍作为参数，其余的引用处为 数组名[下标]；
+     * 只有提升后更短的字面量才放进数组，其余留在原处
+     */
+    public void layout() {
+        if (this.laidOut) {
+            return;
+        }
+        this.laidOut = true;
+        for (int i = 0; i < this.params.size(); i++) {
+            AstNode literal = this.arguments.get(i);
+            this.paramsSize += paramSize(i, literal, this.uses.get(i).size());
+            for (Name use : this.uses.get(i)) {
+                this.unpooledSize += inlineSize(literal, use);
+            }
+        }
+        if (this.params.size() <= this.maxParams) {
+            return;
+        }
+        this.array = true;
+        List<Integer> ranked = new ArrayList<Integer>();
+        for (int i = 0; i < this.params.size(); i++) {
+            ranked.add(i);
+        }
+        // 稳定排序，引用次数相同的按第一次出现的顺序
+        ranked.sort(Comparator.comparingInt((Integer i) -> this.uses.get(i).size()).reversed());
+        int kept = Math.max(this.maxParams - 1, 0);
+        Name arrayParam = new Name();
+        arrayParam.setIdentifier("gin");
+        ArrayLiteral values = new ArrayLiteral();
+        List<AstNode> params = new ArrayList<AstNode>();
+        List<AstNode> arguments = new ArrayList<AstNode>();
+        params.add(arrayParam);
+        arguments.add(values);
+        this.arraySize = NameGenerator.nameLength(0) + 1 + 2 + 1;
+        for (Integer i : ranked) {
+            AstNode literal = this.arguments.get(i);
+            List<Name> names = this.uses.get(i);
+            if (params.size() <= kept) {
+                this.arraySize += paramSize(params.size(), literal, names.size());
+                params.add(this.params.get(i));
+                arguments.add(literal);
+                continue;
+            }
+            int index = values.getElements().size();
+            long hoisted = inlineSize(literal, null) + 1;
+            long inline = 0;
+            for (Name use : names) {
+                hoisted += NameGenerator.nameLength(0) + 2 + indexSize(index);
+                inline += inlineSize(literal, use);
+            }
+            if (hoisted < inline) {
+                values.addElement(literal);
+                for (Name use : names) {
+                    ElementGet elementGet = new ElementGet();
+                    Name target = new Name();
+                    target.setIdentifier(arrayParam.getIdentifier());
+                    elementGet.setTarget(target);
+                    elementGet.setElement(createIndex(index));
+                    this.replace(use, elementGet);
+                }
+                this.arraySize += hoisted;
+            } else {
+                for (Name use : names) {
+                    this.replace(use, copyLiteral(literal));
+                }
+                this.inlined += 1;
+                this.arraySize += inline;
+            }
+        }
+        this.params.clear();
+        this.params.addAll(params);
+        this.arguments.clear();
+        this.arguments.addAll(arguments);
+    }
+
+    /**
+     *
+     * 第 position 个参数：参数名、实参和两个逗号，加上每个引用处的参数名
+     */
+    private static long paramSize(int position, AstNode literal, int references) {
+        int nameLength = NameGenerator.nameLength(position);
+        return nameLength + 1 + inlineSize(literal, null) + 1 + (long) references * nameLength;
+    }
+
         /**
          * @return the params
          */
@@ -204,4 +358,63 @@ public class VisitorLiteralToVar implements NodeVisitor {
         public List<AstNode> getArguments() {
             return arguments;
         }
+
+    /**
+     * @return 池中不同字面量的个数
+     */
+    public int getDistinct() {
+        return this.uses.size();
+    }
+
+    /**
+     * @return 是否使用数组布局
+     */
+    public boolean isArray() {
+        return this.array;
+    }
+
+    /**
+     * @return 数组布局下留在原处的不同字面量个数
+     */
+    public int getInlined() {
+        return this.inlined;
+    }
+
+    /**
+     * @return 参数布局估算的字符数
+     */
+    public long getParamsSize() {
+        return this.paramsSize;
+    }
+
+    /**
+     * @return 数组布局估算的字符数，没有使用时为 0
+     */
+    public long getArraySize() {
+        return this.arraySize;
+    }
+
+    /**
+     * @return 所有字面量留在原处时的字符数
+     */
+    public long getUnpooledSize() {
+        return this.unpooledSize;
+    }
+
+    /**
+     * @return 被替换的字面量引用数
+     */
+    public int getReferences() {
+        return this.references;
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(StringLiteral.class, Name.class, KeywordLiteral.class, PropertyGet.class, ObjectProperty.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(StringLiteral.class, Name.class, InfixExpression.class, ElementGet.class, FunctionCall.class, ArrayLiteral.class, ConditionalExpression.class, VariableInitializer.class);
+    }
 }
@@ -1,29 +1,73 @@
 package com.qiqijin.jspatronum;
 
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.mozilla.javascript.ast.AstNode;
 import org.mozilla.javascript.ast.AstRoot;
 import org.mozilla.javascript.ast.InfixExpression;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.ObjectProperty;
 import org.mozilla.javascript.ast.Scope;
 
 /**
  *
  * 局部变量重命名
+ * 新名字由 NameGenerator 按计数生成，互不重复，密钥随机以免输出按顺序排列
+ * 名字引用的绑定来自共用的 ScopeAnalysis，同一绑定的所有引用得到同一个新名字
+ * 短名字模式下每个作用域从第一个名字重新分配，引用多的绑定先取，不重叠的作用域重复使用同样的短名字；
+ * 跳过作用域内引用的外层名字，以免遮住它们
  * @author
  */
-public class VisitorLocalVar implements NodeVisitor {
+public class VisitorLocalVar implements Pass {
 
-    private int number = 0;
-    List<String> names = new ArrayList<String>();
-    Map<String, String> nameMap = new HashMap<String, String>();
-    private Map<Integer, Map<String, String>> scopeNamesMap = new HashMap<Integer, Map<String, String>>();
+    private NameGenerator nameGenerator;
+    private ScopeAnalysis scopeAnalysis;
+    // 已经访问过的非顶层作用域，只重命名定义在其中的名字
+    private Set<Scope> scopes = Collections.newSetFromMap(new IdentityHashMap<Scope, Boolean>());
+    private Map<ScopeAnalysis.Binding, String> newNames = new IdentityHashMap<ScopeAnalysis.Binding, String>();
+    private boolean shortNames = false;
+
+    public VisitorLocalVar() {
+        this(new SplittableRandom());
+    }
+
+    /**
+     *
+     * @param random 取 NameGenerator 的密钥，相同的流得到相同的名字
+     */
+    public VisitorLocalVar(SplittableRandom random) {
+        this(random, new ScopeAnalysis());
+    }
+
+    /**
+     *
+     * @param random 取 NameGenerator 的密钥，相同的流得到相同的名字
+     * @param scopeAnalysis 语法树的作用域分析，和其他 pass 共用
+     */
+    public VisitorLocalVar(SplittableRandom random, ScopeAnalysis scopeAnalysis) {
+        this(random, scopeAnalysis, false);
+    }
+
+    /**
+     *
+     * @param random 取 NameGenerator 的密钥，相同的流得到相同的名字
+     * @param scopeAnalysis 语法树的作用域分析，和其他 pass 共用
+     * @param shortNames 按引用次数分配短名字，并在不重叠的作用域间重复使用
+     */
+    public VisitorLocalVar(SplittableRandom random, ScopeAnalysis scopeAnalysis, boolean shortNames) {
+        this.nameGenerator = new NameGenerator(random.nextLong());
+        this.scopeAnalysis = scopeAnalysis;
+        this.shortNames = shortNames;
+    }
 
     private boolean isObjectPropertyName(Name name) {
         AstNode parentNode = name.getParent();
@@ -37,63 +81,92 @@ public class VisitorLocalVar implements NodeVisitor {
         return false;
     }
 
-    private boolean isLegalVariableName(String name) {
-        if (Build_in.keepKeywords.contains(name)) {
-            return false;
-        }
-        return true;
-    }
-    
     private void randomRename(Name name) {
         if (isObjectPropertyName(name)) {
             return;
         } 
-        Scope scope = name.getDefiningScope(); 
-        if (scope != null && this.scopeNamesMap.containsKey(scope.hashCode())) {
-            Map<String, String> nameMap = this.scopeNamesMap.get(scope.hashCode());
-            if (!nameMap.containsKey(name.getIdentifier())) {
-                String newName = Tool.getRandomName(Tool.lengthOfVar(this.number));
-                while (!isLegalVariableName(newName) || names.contains(newName)) {
-                    newName = Tool.getRandomName(Tool.lengthOfVar(this.number));
+        ScopeAnalysis.Binding binding = this.scopeAnalysis.getBinding(name);
+        if (binding != null && this.scopes.contains(binding.getScope())) {
+            String newName = this.newNames.get(binding);
+            if (newName == null) {
+                if (this.shortNames) {
+                    // 访问作用域之后才出现的绑定，名字没有参与分配，保留原名
+                    return;
                 }
-                names.add(newName); 
-                nameMap.put(name.getIdentifier(), newName);
+                newName = this.nameGenerator.next();
+                this.newNames.put(binding, newName);
             }
-            name.setIdentifier(nameMap.get(name.getIdentifier()));
+            name.setIdentifier(newName);
         }
 	}
 
-    private int countVar(AstRoot astRoot) {
-        class VisitorCountVar implements NodeVisitor {
-            private int varNumber = 0;
-            @Override
-            public boolean visit(AstNode astNode) {
-                if (astNode.getClass() == Name.class) {
-                    varNumber += 1; 
+    /**
+     *
+     * 为 scope 里定义的绑定分配名字，外层作用域已经先分配好
+     */
+    private void assignShortNames(Scope scope) {
+        Collection<ScopeAnalysis.Binding> bindings = this.scopeAnalysis.getBindings(scope);
+        if (bindings.isEmpty()) {
+            return;
+        }
+        Set<String> taken = new HashSet<String>(this.scopeAnalysis.getOuterNames(scope));
+        for (ScopeAnalysis.Binding outer : this.scopeAnalysis.getOuterBindings(scope)) {
+            String newName = this.newNames.get(outer);
+            taken.add(newName != null ? newName : outer.getIdentifier());
+        }
+        if (scope.getSymbolTable() != null) {
+            // 没有被引用的符号不重命名，新名字不能与它们相同
+            Set<String> referenced = new HashSet<String>();
+            for (ScopeAnalysis.Binding binding : bindings) {
+                referenced.add(binding.getIdentifier());
+            }
+            for (String identifier : scope.getSymbolTable().keySet()) {
+                if (!referenced.contains(identifier)) {
+                    taken.add(identifier);
                 }
-                return true;
             }
-            /**
-             * @return the varNumber
-             */
-            public int getVarNumber() {
-                return varNumber;
-			}
         }
-        VisitorCountVar visitorCountVar = new VisitorCountVar();
-        astRoot.visit(visitorCountVar); 
-        return visitorCountVar.getVarNumber();
+        List<ScopeAnalysis.Binding> ranked = new ArrayList<ScopeAnalysis.Binding>(bindings);
+        // 稳定排序，次数相同的按第一次引用的顺序
+        ranked.sort(Comparator.comparingInt((ScopeAnalysis.Binding binding) -> binding.getReferences().size()).reversed());
+        long index = 0;
+        for (ScopeAnalysis.Binding binding : ranked) {
+            String newName = this.nameGenerator.nameAt(index++);
+            while (NameGenerator.isExcluded(newName) || taken.contains(newName)) {
+                newName = this.nameGenerator.nameAt(index++);
+            }
+            this.newNames.put(binding, newName);
+        }
     }
 
     @Override
     public boolean visit(AstNode astNode) {
         if (astNode.getClass() == AstRoot.class) {
-            number = this.countVar((AstRoot) astNode);
+            // 顶层变量不重命名
+            return true;
         } else if (astNode instanceof Scope) {
-            scopeNamesMap.put(astNode.hashCode(), new HashMap<String, String>());
+            this.scopes.add((Scope) astNode);
+            if (this.shortNames) {
+                this.assignShortNames((Scope) astNode);
+            }
         } else if (astNode.getClass() == Name.class)  {
             this.randomRename((Name) astNode);
         }
 		return true;
     }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstRoot.class, Scope.class, Name.class, ObjectProperty.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(Name.class);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
 }
@@ -1,6 +1,8 @@
 package com.qiqijin.jspatronum;
 
-import java.util.Random;
+import java.util.Collections;
+import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.mozilla.javascript.ast.*;
 
@@ -10,10 +12,58 @@ import org.mozilla.javascript.ast.*;
  *
  * @author Gin
  */
-public class VisitorOpaquePredicates implements NodeVisitor {
+public class VisitorOpaquePredicates implements Pass {
 
-    private Random random = new Random();
+    static final String PREFIX = "opaque_";
+
+    private SplittableRandom random;
     private int predicateCounter = 0;
+    private Set<AstNode> excluded;
+    private boolean hoisted;
+    // 顶层函数（模块加载时执行一次）计算谓词存入 shared 变量，嵌套函数进入时复制到自己的局部变量
+    private String sharedTrueVarName;
+    private String sharedFalseVarName;
+    private String trueVarName;
+    private String falseVarName;
+
+    public VisitorOpaquePredicates() {
+        this(Collections.<AstNode>emptySet(), false);
+    }
+
+    /**
+     * @param excluded 不插入谓词的函数（如 profile 得到的热点函数），只影响函数自身的语句
+     * @param hoisted 顶层函数开头计算一次真、假谓词，嵌套函数进入时复制到局部变量，条件里只读取变量，
+     *                避免循环每次迭代都重新计算
+     */
+    public VisitorOpaquePredicates(Set<AstNode> excluded, boolean hoisted) {
+        this(excluded, hoisted, new SplittableRandom());
+    }
+
+    /**
+     * @param random 谓词和变量名都取自它，相同的流得到相同的结果
+     */
+    public VisitorOpaquePredicates(Set<AstNode> excluded, boolean hoisted, SplittableRandom random) {
+        this.excluded = excluded;
+        this.hoisted = hoisted;
+        this.random = random;
+        this.sharedTrueVarName = PREFIX + random.nextInt(Integer.MAX_VALUE);
+        this.sharedFalseVarName = PREFIX + random.nextInt(Integer.MAX_VALUE);
+        this.trueVarName = PREFIX + random.nextInt(Integer.MAX_VALUE);
+        this.falseVarName = PREFIX + random.nextInt(Integer.MAX_VALUE);
+    }
+
+    /**
+     * 并行分块时使用的实例，变量名相同，随机数流从原实例 split 出来
+     */
+    private VisitorOpaquePredicates(VisitorOpaquePredicates parent) {
+        this.excluded = parent.excluded;
+        this.hoisted = parent.hoisted;
+        this.random = parent.random.split();
+        this.sharedTrueVarName = parent.sharedTrueVarName;
+        this.sharedFalseVarName = parent.sharedFalseVarName;
+        this.trueVarName = parent.trueVarName;
+        this.falseVarName = parent.falseVarName;
+    }
 
     /**
      * 生成总是为true的不透明谓词
@@ -108,10 +158,10 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         add.setLeft(mult);
         add.setRight(one);
 
-        // ((x * 2) + 1) % 2
+        // ((x * 2) + 1) % 2，InfixExpression 输出时不加括号
         InfixExpression mod = new InfixExpression();
         mod.setOperator(org.mozilla.javascript.Token.MOD);
-        mod.setLeft(add);
+        mod.setLeft(new ParenthesizedExpression(add));
         NumberLiteral twoClone = new NumberLiteral();
         twoClone.setValue("2");
         mod.setRight(twoClone);
@@ -186,8 +236,8 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         // (x | 0) == (x | 0)
         InfixExpression compare = new InfixExpression();
         compare.setOperator(org.mozilla.javascript.Token.EQ);
-        compare.setLeft(bitwiseOr1);
-        compare.setRight(bitwiseOr2);
+        compare.setLeft(new ParenthesizedExpression(bitwiseOr1));
+        compare.setRight(new ParenthesizedExpression(bitwiseOr2));
 
         return compare;
     }
@@ -239,7 +289,7 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         NumberLiteral numClone3 = new NumberLiteral();
         numClone3.setValue(String.valueOf(x));
         bitAnd.setLeft(numClone3);
-        bitAnd.setRight(add);
+        bitAnd.setRight(new ParenthesizedExpression(add));
 
         // (x & (x + 1)) < 0
         NumberLiteral zero = new NumberLiteral();
@@ -247,7 +297,7 @@ public class VisitorOpaquePredicates implements NodeVisitor {
 
         InfixExpression compare = new InfixExpression();
         compare.setOperator(org.mozilla.javascript.Token.LT);
-        compare.setLeft(bitAnd);
+        compare.setLeft(new ParenthesizedExpression(bitAnd));
         compare.setRight(zero);
 
         return compare;
@@ -284,6 +334,144 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         return compare;
     }
 
+    private Name createName(String identifier) {
+        Name name = new Name();
+        name.setIdentifier(identifier);
+        return name;
+    }
+
+    private VariableInitializer createInitializer(String identifier, AstNode value) {
+        VariableInitializer initializer = new VariableInitializer();
+        initializer.setTarget(createName(identifier));
+        initializer.setInitializer(value);
+        return initializer;
+    }
+
+    /**
+     * 条件里使用的真谓词，hoisted 策略下为函数开头准备好的变量
+     */
+    private AstNode truePredicate(AstNode condition) {
+        if (!hoisted) {
+            return createAlwaysTruePredicate();
+        }
+        return createName(isHost(condition.getEnclosingFunction()) ? sharedTrueVarName : trueVarName);
+    }
+
+    private AstNode falsePredicate(AstNode condition) {
+        if (!hoisted) {
+            return createAlwaysFalsePredicate();
+        }
+        return createName(isHost(condition.getEnclosingFunction()) ? sharedFalseVarName : falseVarName);
+    }
+
+    private boolean hasCondition(AstNode node) {
+        return node instanceof IfStatement || node instanceof WhileLoop
+            || node instanceof ForLoop && ((ForLoop) node).getCondition() != null;
+    }
+
+    /**
+     * 是否有需要插入谓词的条件
+     * @param nested 是否包括嵌套函数里的条件
+     * @param ifOnly 只找 if 语句，假谓词只用在 if 里
+     */
+    private boolean hasConditions(AstNode body, final boolean nested, final boolean ifOnly) {
+        final boolean[] found = new boolean[1];
+        body.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (found[0] || !nested && astNode instanceof FunctionNode) {
+                        return false;
+                    }
+                    found[0] = ifOnly ? astNode instanceof IfStatement : hasCondition(astNode);
+                    return !found[0];
+                }
+            });
+        return found[0];
+    }
+
+    /**
+     * 不在其他函数里、也没有被排除的函数，只在模块加载时执行一次（如 VisitorTopFunction 生成的立即执行函数）
+     */
+    private boolean isHost(AstNode function) {
+        return function instanceof FunctionNode && function.getEnclosingFunction() == null
+            && !((FunctionNode) function).isExpressionClosure() && !excluded.contains(function);
+    }
+
+    /**
+     * hoisted 时在函数开头插入的谓词变量声明，控制流平坦化不把它算作函数的语句
+     */
+    static boolean isPredicateDeclaration(org.mozilla.javascript.Node statement) {
+        if (!(statement instanceof VariableDeclaration)) {
+            return false;
+        }
+        AstNode target = ((VariableDeclaration) statement).getVariables().get(0).getTarget();
+        return target instanceof Name && ((Name) target).getIdentifier().startsWith(PREFIX);
+    }
+
+    static boolean isDirective(org.mozilla.javascript.Node statement) {
+        return statement instanceof ExpressionStatement
+            && ((ExpressionStatement) statement).getExpression() instanceof StringLiteral;
+    }
+
+    /**
+     * 在函数体（或脚本）开头、"use strict" 等指令之后声明变量，没有 if 时不声明假谓词
+     */
+    private void declare(AstNode body, boolean nested, String trueName, AstNode trueValue, String falseName, AstNode falseValue) {
+        VariableDeclaration declaration = new VariableDeclaration();
+        declaration.addVariable(createInitializer(trueName, trueValue));
+        if (hasConditions(body, nested, true)) {
+            declaration.addVariable(createInitializer(falseName, falseValue));
+        }
+        declaration.setIsStatement(true);
+
+        org.mozilla.javascript.Node before = body.getFirstChild();
+        while (before != null && isDirective(before)) {
+            before = before.getNext();
+        }
+        if (before == null) {
+            body.addChild(declaration);
+        } else {
+            body.addChildBefore(declaration, before);
+            declaration.setParent(body);
+        }
+    }
+
+    /**
+     * hoisted 策略下为函数（或脚本）准备谓词变量：
+     * 顶层函数 var opaque_A = 真谓词, opaque_B = 假谓词; 只在加载时执行一次
+     * 嵌套函数 var opaque_a = opaque_A, opaque_b = opaque_B; 每次进入只读两次外层变量
+     * 没有可用的顶层函数时（脚本顶层、被排除的顶层函数里）在函数开头直接计算
+     */
+    private void hoistPredicates(ScriptNode scriptNode) {
+        if (scriptNode instanceof AstRoot) {
+            if (hasConditions(scriptNode, false, false)) {
+                declare(scriptNode, false, trueVarName, createAlwaysTruePredicate(), falseVarName, createAlwaysFalsePredicate());
+            }
+            return;
+        }
+        FunctionNode function = (FunctionNode) scriptNode;
+        if (function.isExpressionClosure() || excluded.contains(function)) {
+            return;
+        }
+        AstNode body = function.getBody();
+        if (isHost(function)) {
+            if (hasConditions(body, true, false)) {
+                declare(body, true, sharedTrueVarName, createAlwaysTruePredicate(),
+                        sharedFalseVarName, createAlwaysFalsePredicate());
+            }
+        } else if (hasConditions(body, false, false)) {
+            FunctionNode top = function;
+            while (top.getEnclosingFunction() != null) {
+                top = top.getEnclosingFunction();
+            }
+            if (isHost(top)) {
+                declare(body, false, trueVarName, createName(sharedTrueVarName), falseVarName, createName(sharedFalseVarName));
+            } else {
+                declare(body, false, trueVarName, createAlwaysTruePredicate(), falseVarName, createAlwaysFalsePredicate());
+            }
+        }
+    }
+
     /**
      * 为if语句添加不透明谓词
      */
@@ -291,13 +479,13 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         AstNode condition = ifStmt.getCondition();
 
         // 创建复合条件：(原条件 && 总是为true的谓词) || (总是为false的谓词)
-        InfixExpression truePredicate = (InfixExpression) createAlwaysTruePredicate();
-        InfixExpression falsePredicate = (InfixExpression) createAlwaysFalsePredicate();
+        AstNode truePredicate = truePredicate(ifStmt);
+        AstNode falsePredicate = falsePredicate(ifStmt);
 
         // 原条件 && 真谓词
         InfixExpression leftPart = new InfixExpression();
         leftPart.setOperator(org.mozilla.javascript.Token.AND);
-        leftPart.setLeft(condition);
+        leftPart.setLeft(new ParenthesizedExpression(condition));
         leftPart.setRight(truePredicate);
 
         // (原条件 && 真谓词) || 假谓词
@@ -318,15 +506,21 @@ public class VisitorOpaquePredicates implements NodeVisitor {
         // 原条件 && 总是为true的谓词
         InfixExpression obfuscatedCondition = new InfixExpression();
         obfuscatedCondition.setOperator(org.mozilla.javascript.Token.AND);
-        obfuscatedCondition.setLeft(condition);
-        obfuscatedCondition.setRight(createAlwaysTruePredicate());
+        obfuscatedCondition.setLeft(new ParenthesizedExpression(condition));
+        obfuscatedCondition.setRight(truePredicate(whileLoop));
 
         whileLoop.setCondition(obfuscatedCondition);
     }
 
     @Override
     public boolean visit(AstNode node) {
-        if (node instanceof IfStatement) {
+        if (!excluded.isEmpty() && (node instanceof IfStatement || node instanceof Loop)
+            && excluded.contains(node.getEnclosingFunction())) {
+            return true;
+        }
+        if (hoisted && node instanceof ScriptNode) {
+            hoistPredicates((ScriptNode) node);
+        } else if (node instanceof IfStatement) {
             obfuscateIfStatement((IfStatement) node);
         } else if (node instanceof WhileLoop) {
             obfuscateWhileLoop((WhileLoop) node);
@@ -337,12 +531,38 @@ public class VisitorOpaquePredicates implements NodeVisitor {
                 AstNode condition = forLoop.getCondition();
                 InfixExpression obfuscated = new InfixExpression();
                 obfuscated.setOperator(org.mozilla.javascript.Token.AND);
-                obfuscated.setLeft(condition);
-                obfuscated.setRight(createAlwaysTruePredicate());
+                obfuscated.setLeft(new ParenthesizedExpression(condition));
+                obfuscated.setRight(truePredicate(forLoop));
                 forLoop.setCondition(obfuscated);
             }
         }
 
         return true;
     }
-}
\ No newline at end of file
+
+    @Override
+    public boolean isChunkable() {
+        return true;
+    }
+
+    @Override
+    public Pass fork() {
+        return new VisitorOpaquePredicates(this);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        if (hoisted) {
+            return Set.of(ScriptNode.class, IfStatement.class, WhileLoop.class, ForLoop.class);
+        }
+        return Set.of(IfStatement.class, WhileLoop.class, ForLoop.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        if (hoisted) {
+            return Set.of(ScriptNode.class, Block.class, VariableDeclaration.class, VariableInitializer.class, IfStatement.class, WhileLoop.class, ForLoop.class, InfixExpression.class, ParenthesizedExpression.class, NumberLiteral.class, FunctionCall.class, PropertyGet.class, Name.class);
+        }
+        return Set.of(IfStatement.class, WhileLoop.class, ForLoop.class, InfixExpression.class, ParenthesizedExpression.class, NumberLiteral.class, FunctionCall.class, PropertyGet.class, Name.class);
+    }
+}
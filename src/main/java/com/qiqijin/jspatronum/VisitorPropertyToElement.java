@@ -1,6 +1,7 @@
 package com.qiqijin.jspatronum;
 
 import java.util.List;
+import java.util.Set;
 
 import org.mozilla.javascript.ast.ArrayLiteral;
 import org.mozilla.javascript.ast.AstNode;
@@ -12,7 +13,6 @@ import org.mozilla.javascript.ast.ForLoop;
 import org.mozilla.javascript.ast.FunctionCall;
 import org.mozilla.javascript.ast.IfStatement;
 import org.mozilla.javascript.ast.InfixExpression;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.PropertyGet;
 import org.mozilla.javascript.ast.ReturnStatement;
 import org.mozilla.javascript.ast.StringLiteral;
@@ -25,7 +25,7 @@ import org.mozilla.javascript.ast.WhileLoop;
  * 对象属性转换为对象元素
  * @author
  */
-public class VisitorPropertyToElement implements NodeVisitor {
+public class VisitorPropertyToElement implements Pass {
 
     private ElementGet createElementGet(PropertyGet propertyGet) {
         ElementGet elementGet = new ElementGet();
@@ -190,4 +190,20 @@ public class VisitorPropertyToElement implements NodeVisitor {
         }
         return true;
     }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(PropertyGet.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(PropertyGet.class, ElementGet.class, StringLiteral.class, InfixExpression.class, FunctionCall.class, VariableInitializer.class, UnaryExpression.class, ConditionalExpression.class, ExpressionStatement.class, IfStatement.class, ReturnStatement.class, ForInLoop.class, ForLoop.class, WhileLoop.class, ArrayLiteral.class);
+    }
+
+    @Override
+    public boolean isChunkable() {
+        // 只改写属性访问的父节点，不会超出所在的语句
+        return true;
+    }
 }
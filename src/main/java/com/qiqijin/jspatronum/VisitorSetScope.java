@@ -1,11 +1,16 @@
 package com.qiqijin.jspatronum;
 
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import org.mozilla.javascript.ast.AstNode;
 import org.mozilla.javascript.ast.AstRoot;
 import org.mozilla.javascript.ast.Name;
-import org.mozilla.javascript.ast.NodeVisitor;
 import org.mozilla.javascript.ast.PropertyGet;
 import org.mozilla.javascript.ast.Scope;
 import org.mozilla.javascript.ast.ScriptNode;
@@ -14,18 +19,52 @@ import org.mozilla.javascript.ast.Symbol;
 /**
  *
  * 设置所有变量的作用域
+ * 定义的作用域来自共用的 ScopeAnalysis；没有定义的名字按 ScriptNode 的符号查找
+ * 每个 ScriptNode 的符号名建一次哈希索引；查找结果按（作用域, 标识符）缓存，同一作用域里重复的引用只需一次哈希查找
+ * 本 pass 不改动符号表，索引和缓存在整个遍历期间有效
  * @author
  */
-public class VisitorSetScope implements NodeVisitor {
+public class VisitorSetScope implements Pass {
+    /**
+     * 缓存中表示找不到定义的作用域
+     */
+    private static final Scope UNRESOLVED = new Scope();
 
-    private boolean symbolsHasName(List<Symbol> symbols, Name name) {
-        for (Symbol symbol : symbols) {
-            String nameString = symbol.getName();
-            if (nameString.equals(name.getIdentifier())){
-                return true;
+    private ScopeAnalysis scopeAnalysis;
+    private Map<ScriptNode, Set<String>> symbolIndex = new IdentityHashMap<ScriptNode, Set<String>>();
+    private Map<Scope, Map<String, Scope>> resolved = new IdentityHashMap<Scope, Map<String, Scope>>();
+
+    public VisitorSetScope() {
+        this(new ScopeAnalysis());
+    }
+
+    /**
+     *
+     * @param scopeAnalysis 语法树的作用域分析，和其他 pass 共用
+     */
+    public VisitorSetScope(ScopeAnalysis scopeAnalysis) {
+        this.scopeAnalysis = scopeAnalysis;
+    }
+
+    private Set<String> symbolNames(ScriptNode scriptNode) {
+        Set<String> names = this.symbolIndex.get(scriptNode);
+        if (names == null) {
+            List<Symbol> symbols = scriptNode.getSymbols();
+            names = new HashSet<String>(symbols.size() * 2);
+            for (Symbol symbol : symbols) {
+                names.add(symbol.getName());
             }
+            this.symbolIndex.put(scriptNode, names);
         }
-        return false;
+        return names;
+    }
+
+    private static Scope enclosingScope(AstNode astNode) {
+        AstNode parentNode = astNode.getParent();
+        while (parentNode != null && !(parentNode instanceof Scope)) {
+            parentNode = parentNode.getParent();
+        }
+        return (Scope) parentNode;
     }
 
     private boolean isProperty(Name name) {
@@ -37,29 +76,42 @@ public class VisitorSetScope implements NodeVisitor {
         return false;
     }
 
+    /**
+     *
+     * 沿父节点向上找第一个符号表中有该名字的 ScriptNode，途经的作用域都记入缓存
+     */
     private Scope findScope(Name name) {
-        Scope scope = null;
-        AstNode parentNode = name.getParent();
-        while (scope == null) {
-            if (parentNode == null) {
-                return null;
+        String identifier = name.getIdentifier();
+        List<Scope> path = new ArrayList<Scope>();
+        Scope scope = enclosingScope(name);
+        Scope found = null;
+        while (scope != null) {
+            Map<String, Scope> cache = this.resolved.get(scope);
+            if (cache != null && cache.containsKey(identifier)) {
+                found = cache.get(identifier);
+                break;
             }
-            if (parentNode instanceof ScriptNode){
-                ScriptNode scriptNode = (ScriptNode)parentNode;
-                List<Symbol> symbols = scriptNode.getSymbols();
-                if (symbolsHasName(symbols, name)) {
-                    scope = scriptNode;
-                }
+            path.add(scope);
+            if (scope instanceof ScriptNode && this.symbolNames((ScriptNode) scope).contains(identifier)) {
+                found = scope;
+                break;
             }
-            parentNode = parentNode.getParent();
+            scope = enclosingScope(scope);
         }
-        return scope;
+        if (found == null) {
+            found = UNRESOLVED;
+        }
+        for (Scope visited : path) {
+            this.resolved.computeIfAbsent(visited, key -> new HashMap<String, Scope>()).put(identifier, found);
+        }
+        return found == UNRESOLVED ? null : found;
     }
+
     @Override
     public boolean visit(AstNode astNode) {
         if (astNode.getClass() == Name.class) {
             Name name = (Name)astNode;
-            Scope definingScope = name.getDefiningScope();
+            Scope definingScope = this.scopeAnalysis.getDefiningScope(name);
             if (definingScope != null) {
                 name.setScope(definingScope);
             } else if (!isProperty(name)) {
@@ -71,4 +123,18 @@ public class VisitorSetScope implements NodeVisitor {
         return true;
     }
 
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(Name.class, PropertyGet.class, ScriptNode.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(Name.class);
+    }
+
+    @Override
+    public boolean isLocal() {
+        return true;
+    }
 }
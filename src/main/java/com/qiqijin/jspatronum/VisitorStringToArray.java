@@ -1,7 +1,13 @@
 package com.qiqijin.jspatronum;
 
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SplittableRandom;
 
 import org.mozilla.javascript.ast.ArrayLiteral;
 import org.mozilla.javascript.ast.AstNode;
@@ -18,15 +24,85 @@ import org.mozilla.javascript.ast.UnaryExpression;
 /**
  *
  * 遍历 AST 树将字符串实参转换为字符数组
+ * 字符表用哈希表去重和查下标；词典模式下，单词（连续的字母、数字、_ 和 $）估算后更省空间时作为一个表项，
+ * 一个单词只输出一个下标
  * @author
  */
-public class VisitorStringToArray implements NodeVisitor {
+public class VisitorStringToArray implements Pass {
+    private boolean dictionary;
+    private SplittableRandom random;
+    private Set<String> words = new HashSet<String>();
+    private int entries = 0;
+    private int characters = 0;
+    private int indices = 0;
+    private long encodedSize = 0;
+    private long characterEncodedSize = 0;
+
+    public VisitorStringToArray() {
+        this(false);
+    }
+
+    /**
+     *
+     * @param dictionary 是否把单词作为表项
+     */
+    public VisitorStringToArray(boolean dictionary) {
+        this(dictionary, new SplittableRandom());
+    }
+
+    /**
+     *
+     * @param dictionary 是否把单词作为表项
+     * @param random 打乱字符表的顺序，相同的流得到相同的表
+     */
+    public VisitorStringToArray(boolean dictionary, SplittableRandom random) {
+        this.dictionary = dictionary;
+        this.random = random;
+    }
+
+    /**
+     *
+     * 把字符串切分成单词和单个的其他字符
+     */
+    static List<String> tokens(String string) {
+        List<String> tokens = new ArrayList<String>();
+        int start = 0;
+        while (start < string.length()) {
+            int end = start;
+            while (end < string.length() && isWordChar(string.charAt(end))) {
+                end++;
+            }
+            if (end == start) {
+                end = start + 1;
+            }
+            tokens.add(string.substring(start, end));
+            start = end;
+        }
+        return tokens;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+    }
+
+    /**
+     * @return 下标 0 到 size-1 的平均十进制位数
+     */
+    private static double averageDigits(int size) {
+        long digits = 0;
+        for (int i = 0; i < size; i++) {
+            digits += String.valueOf(i).length();
+        }
+        return size == 0 ? 0 : (double) digits / size;
+    }
 
 	/**
 	 * 创造最外层 FunctionCall 的参数
 	 */
     private class VisitorCreateArguments implements NodeVisitor {
         private List<AstNode> arguments;
+        private Set<String> added = new HashSet<String>();
+        private Map<String, Integer> wordCounts = new LinkedHashMap<String, Integer>();
 
         public VisitorCreateArguments() {
             this.arguments = new ArrayList<AstNode>();
@@ -38,6 +114,9 @@ public class VisitorStringToArray implements NodeVisitor {
         public boolean visit(AstNode astNode) {
             if (astNode.getClass() == StringLiteral.class) {
 				this.addCharToArguments((StringLiteral) astNode);
+                if (dictionary) {
+                    this.countWords((StringLiteral) astNode);
+                }
 			}
 			return true;
 		}
@@ -45,33 +124,52 @@ public class VisitorStringToArray implements NodeVisitor {
 		private void addCharToArguments(StringLiteral astNode) {
             String literalString = astNode.getValue();
             for (int i = 0; i < literalString.length(); i++) {
-                String c = literalString.charAt(i) + "";
-                if (!this.argumentsHasChar(c)) {
-                    ArrayLiteral arrayLiteral = (ArrayLiteral) this.arguments.get(0);
-                    StringLiteral stringLiteral = new StringLiteral();
-                    stringLiteral.setQuoteCharacter('\"');
-                    stringLiteral.setValue(c);
-                    arrayLiteral.addElement(stringLiteral);
-                }
+                this.addEntry(literalString.charAt(i) + "");
 			}
 		}
 
-		private boolean argumentsHasChar(String c) {
-			ArrayLiteral arrayLiteral = (ArrayLiteral) this.arguments.get(0);
-            List<AstNode> astNodes = arrayLiteral.getElements();
-            for (AstNode astNode : astNodes) {
-				StringLiteral stringLiteral = (StringLiteral) astNode;
-                if (stringLiteral.getValue().equals(c)) {
-                    return true;
+        private void addEntry(String value) {
+            if (this.added.add(value)) {
+                ArrayLiteral arrayLiteral = (ArrayLiteral) this.arguments.get(0);
+                StringLiteral stringLiteral = new StringLiteral();
+                stringLiteral.setQuoteCharacter('\"');
+                stringLiteral.setValue(value);
+                arrayLiteral.addElement(stringLiteral);
+            }
+        }
+
+        private void countWords(StringLiteral astNode) {
+            for (String token : tokens(astNode.getValue())) {
+                if (token.length() > 1) {
+                    this.wordCounts.merge(token, 1, Integer::sum);
                 }
             }
-            return false;
-		}
+        }
+
+        /**
+         *
+         * 单词作为表项时，每次出现少输出 length-1 个下标（每个约为位数加一个逗号），
+         * 代价是表中多一个带引号和逗号的字符串
+         */
+        private void addWords() {
+            int size = this.added.size() + this.wordCounts.size();
+            double indexSize = averageDigits(size) + 1;
+            for (Map.Entry<String, Integer> entry : this.wordCounts.entrySet()) {
+                int length = entry.getKey().length();
+                if (entry.getValue() * (length - 1) * indexSize > length + 3) {
+                    words.add(entry.getKey());
+                    this.addEntry(entry.getKey());
+                }
+            }
+        }
 
 		/**
 		 * @return the arguments
 		 */
 		public List<AstNode> getArguments() {
+            if (dictionary) {
+                this.addWords();
+            }
 			return this.randomArrayArguments();
 		}
 
@@ -85,12 +183,13 @@ public class VisitorStringToArray implements NodeVisitor {
             ArrayLiteral arrayLiteral = (ArrayLiteral) this.arguments.get(0);
             List<AstNode> astNodes = arrayLiteral.getElements();
             for (int i = 0; i < astNodes.size(); i++) {
-                int randomNum = (int)(Math.random()*astNodes.size());
+                int randomNum = random.nextInt(astNodes.size());
                 AstNode tmpNode = astNodes.get(randomNum);
                 astNodes.set(randomNum, astNodes.get(i));
                 astNodes.set(i, tmpNode);
             }
             arguments.add(arrayLiteral);
+            entries = astNodes.size();
             return arguments;
 		}
     }
@@ -113,7 +212,8 @@ public class VisitorStringToArray implements NodeVisitor {
                 private int functionCallNum = 0;
                 private int functionNodeNum = 0;
                 private Name name;
-                private ArrayLiteral arrayLiteral;
+                private Map<String, Integer> tableIndex = new HashMap<String, Integer>();
+                private double characterIndexSize;
                 @Override
                 public boolean visit(AstNode astNode) {
                     if (astNode.getClass() == FunctionCall.class) {
@@ -121,7 +221,8 @@ public class VisitorStringToArray implements NodeVisitor {
                         functionCallNum += 1;
                         if (functionCallNum == 1) {
                             FunctionCall subFunctionCall = (FunctionCall) functionCall.getArguments().get(0);
-                            arrayLiteral = (ArrayLiteral) subFunctionCall.getArguments().get(0);
+                            ArrayLiteral arrayLiteral = (ArrayLiteral) subFunctionCall.getArguments().get(0);
+                            this.indexTable(arrayLiteral.getElements());
                         } else if (functionCallNum == 2) {
                             List<AstNode> oldArguments = functionCall.getArguments();
                             List<AstNode> newArguments = this.createNewArguments(oldArguments);
@@ -142,6 +243,11 @@ public class VisitorStringToArray implements NodeVisitor {
                     for (AstNode oldArgument : oldArguments) {
                         if (oldArgument.getClass() == StringLiteral.class) {
                             newArguments.add(this.oldToNewArgument((StringLiteral) oldArgument));
+                        } else if (oldArgument.getClass() == ArrayLiteral.class) {
+                            // 数组布局的字面量池
+                            ArrayLiteral arrayLiteral = (ArrayLiteral) oldArgument;
+                            arrayLiteral.setElements(this.createNewArguments(arrayLiteral.getElements()));
+                            newArguments.add(arrayLiteral);
                         } else {
                             newArguments.add(oldArgument);
                         }
@@ -151,36 +257,66 @@ public class VisitorStringToArray implements NodeVisitor {
 
                 private AstNode oldToNewArgument(StringLiteral oldArgument) {
                     FunctionCall functionCall = new FunctionCall();
-                    functionCall.setTarget(this.name);
+                    Name target = new Name();
+                    target.setIdentifier(this.name.getIdentifier());
+                    functionCall.setTarget(target);
                     List<AstNode> numArguments = this.createNumArguments(oldArgument);
                     functionCall.setArguments(numArguments);
                     return functionCall;
                 }
 
+                /**
+                 *
+                 * 建立表项到下标的索引，并估算逐字符编码时每个下标的长度用于统计
+                 */
+                private void indexTable(List<AstNode> tableNodes) {
+                    int characterEntries = 0;
+                    for (int i = 0; i < tableNodes.size(); i++) {
+                        String value = ((StringLiteral) tableNodes.get(i)).getValue();
+                        this.tableIndex.put(value, i);
+                        if (value.length() == 1) {
+                            characterEntries++;
+                        }
+                    }
+                    this.characterIndexSize = averageDigits(characterEntries) + 1;
+                    characterEncodedSize += characterEntries * 4L;
+                    for (AstNode tableNode : tableNodes) {
+                        encodedSize += ((StringLiteral) tableNode).getValue().length() + 3;
+                    }
+                }
+
+                private void addIndex(List<AstNode> numArguments, String value) {
+                    Integer index = this.tableIndex.get(value);
+                    if (index != null) {
+                        NumberLiteral numberLiteral = new NumberLiteral();
+                        numberLiteral.setValue(index + "");
+                        numArguments.add(numberLiteral);
+                        indices += 1;
+                        encodedSize += numberLiteral.getValue().length() + 1;
+                    }
+                }
+
                 private List<AstNode> createNumArguments(StringLiteral oldArgument) {
                     List<AstNode> numArguments = new ArrayList<AstNode>();
                     String oldArgumentString = oldArgument.getValue();
-                    List<AstNode> charNodes = this.arrayLiteral.getElements();
-                    for (int i = 0; i < oldArgumentString.length(); i++) {
-                        String charString = oldArgumentString.charAt(i) + "";
-                        int index = this.indexOfCharNodes(charNodes, charString);
-                        if (index != -1) {
-                            NumberLiteral numberLiteral = new NumberLiteral();
-                            numberLiteral.setValue(index + "");
-                            numArguments.add(numberLiteral);
+                    characters += oldArgumentString.length();
+                    characterEncodedSize += Math.round(oldArgumentString.length() * this.characterIndexSize);
+                    if (words.isEmpty()) {
+                        for (int i = 0; i < oldArgumentString.length(); i++) {
+                            this.addIndex(numArguments, oldArgumentString.charAt(i) + "");
                         }
+                        return numArguments;
                     }
-                    return numArguments;
-                }
-
-                private int indexOfCharNodes(List<AstNode> charNodes, String charString) {
-                    for (int i = 0; i < charNodes.size(); i++) {
-                        StringLiteral stringLiteral = (StringLiteral) charNodes.get(i);
-                        if (stringLiteral.getValue().equals(charString)) {
-                            return i;
+                    for (String token : tokens(oldArgumentString)) {
+                        if (words.contains(token)) {
+                            this.addIndex(numArguments, token);
+                        } else {
+                            for (int i = 0; i < token.length(); i++) {
+                                this.addIndex(numArguments, token.charAt(i) + "");
+                            }
                         }
                     }
-                    return -1;
+                    return numArguments;
                 }
             });
 	}
@@ -228,4 +364,53 @@ public class VisitorStringToArray implements NodeVisitor {
 		return false;
 	}
 
+    /**
+     * @return 字符表的表项数
+     */
+    public int getEntries() {
+        return entries;
+    }
+
+    /**
+     * @return 转换的字符串的总字符数
+     */
+    public int getCharacters() {
+        return characters;
+    }
+
+    /**
+     * @return 输出的下标数
+     */
+    public int getIndices() {
+        return indices;
+    }
+
+    /**
+     * @return 估算的表和下标的输出字符数
+     */
+    public long getEncodedSize() {
+        return encodedSize;
+    }
+
+    /**
+     * @return 同样的字符串只用单字符表项时估算的输出字符数
+     */
+    public long getCharacterEncodedSize() {
+        return characterEncodedSize;
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstNode.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
+
+    @Override
+    public Set<Class<? extends Pass>> getDependencies() {
+        return Set.of(VisitorTopFunction.class);
+    }
 }
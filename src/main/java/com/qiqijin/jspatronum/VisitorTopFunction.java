@@ -1,27 +1,50 @@
 package com.qiqijin.jspatronum;
 
 import java.util.List;
+import java.util.Set;
 
 import org.mozilla.javascript.ast.AstNode;
 import org.mozilla.javascript.ast.AstRoot;
+import org.mozilla.javascript.ast.FunctionNode;
 import org.mozilla.javascript.ast.NodeVisitor;
 
 
-public class VisitorTopFunction implements NodeVisitor {
+public class VisitorTopFunction implements Pass {
 
     private List<AstNode> params;
     private List<AstNode> arguments;
+    private VisitorLiteralToVar literalPool;
+    private FunctionNode topFunction;
 
     public VisitorTopFunction(List<AstNode> params, List<AstNode> arguments) {
         this.params = params;
         this.arguments = arguments;
     }
+
+    /**
+     *
+     * 参数和实参取自字面量池，生成函数前先确定池的布局
+     * @param literalPool 同一棵树上执行过的 VisitorLiteralToVar
+     */
+    public VisitorTopFunction(VisitorLiteralToVar literalPool) {
+        this(literalPool.getParams(), literalPool.getArguments());
+        this.literalPool = literalPool;
+    }
     
     private AstRoot addToTopFunction(AstRoot astRoot) {
         String string = "! function() {}()";
         AstRoot root = ImmediatelyInvokedFunction.createImmediatelyInvokedFunction(string); 
         ImmediatelyInvokedFunction.addParamsAndArguments(root, this.params, this.arguments);
         ImmediatelyInvokedFunction.addFunctionBody(root, astRoot);
+        root.visit(new NodeVisitor() {
+                @Override
+                public boolean visit(AstNode astNode) {
+                    if (topFunction == null && astNode instanceof FunctionNode) {
+                        topFunction = (FunctionNode) astNode;
+                    }
+                    return topFunction == null;
+                }
+            });
         return root;
     }
 
@@ -36,9 +59,34 @@ public class VisitorTopFunction implements NodeVisitor {
     @Override
     public boolean visit(AstNode astNode) {
         if (astNode.getClass() == AstRoot.class) {
+            if (this.literalPool != null) {
+                this.literalPool.layout();
+            }
             AstRoot astRoot = this.addToTopFunction((AstRoot) astNode);
             this.changeRoot((AstRoot) astNode, astRoot);
         }
         return false;
     }
+
+    /**
+     * @return 包含原顶层代码的立即执行函数，执行前为 null
+     */
+    FunctionNode getTopFunction() {
+        return topFunction;
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getReadTypes() {
+        return Set.of(AstRoot.class);
+    }
+
+    @Override
+    public Set<Class<? extends AstNode>> getWriteTypes() {
+        return Set.of(AstNode.class);
+    }
+
+    @Override
+    public Set<Class<? extends Pass>> getDependencies() {
+        return Set.of(VisitorLiteralToVar.class);
+    }
 }